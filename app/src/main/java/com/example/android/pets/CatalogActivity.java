@@ -15,26 +15,43 @@
  */
 package com.example.android.pets;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetFilter;
+import com.example.android.pets.data.PetStressHarness;
+import com.example.android.pets.data.PetWorkloadGenerator;
+import com.example.android.pets.data.PetsContract.facetsEntry;
 import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.sectionsEntry;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 
@@ -47,6 +64,24 @@ public class CatalogActivity extends AppCompatActivity
     PetCursorAdapter cursorAdapter;
 
     private static final int PETAPP_LOADER_ID = 200;
+    private static final int FACETS_LOADER_ID = 202;
+    private static final int SECTIONS_LOADER_ID = 203;
+
+    // List of pets, with a fast scroller over the name sections
+    private ListView petListView;
+
+    // Genders offered by the filter dialog, in spinner order after the "any gender" option
+    private static final int[] FILTER_GENDERS = {
+            petsEntry.GENDER_UNKNOWN, petsEntry.GENDER_MALE, petsEntry.GENDER_FEMALE};
+
+    // Filter applied to the list of pets
+    private PetFilter currentFilter = new PetFilter();
+
+    // Number of pets per gender for the current filter, from the facet counts
+    private final SparseIntArray genderCounts = new SparseIntArray();
+
+    // Times the loaders of the catalog
+    private final UiMetrics.LoaderTimer loaderTimer = new UiMetrics.LoaderTimer("catalog");
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -64,7 +99,7 @@ public class CatalogActivity extends AppCompatActivity
         });
 
         // Find ListView to populate
-        ListView petListView = findViewById(R.id.list);
+        petListView = findViewById(R.id.list);
 
         // Find and set the empty view on the list view when there are no items in the list
         View emptyView = findViewById(R.id.empty_view);
@@ -74,6 +109,8 @@ public class CatalogActivity extends AppCompatActivity
         cursorAdapter = new PetCursorAdapter(this, null, 0);
         // Attach cursor adapter to ListView
         petListView.setAdapter(cursorAdapter);
+        petListView.setFastScrollEnabled(true);
+        petListView.setOnScrollListener(new ScrollFrameMonitor());
 
         // Set up item click listener
         petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -90,14 +127,28 @@ public class CatalogActivity extends AppCompatActivity
                 // Set the URI on the data field of the intent
                 openEditor.setData(currentPetUri);
 
+                // Hand the row over, so the editor shows it without waiting for a query.
+                // The list reloads on every change, so the row is as fresh as the list.
+                Cursor row = (Cursor) cursorAdapter.getItem(position);
+                if (row != null) {
+                    openEditor.putExtra(EditorActivity.EXTRA_PET_NAME,
+                            row.getString(row.getColumnIndex(petsEntry.COLUMN_PET_NAME)));
+                    openEditor.putExtra(EditorActivity.EXTRA_PET_BREED,
+                            row.getString(row.getColumnIndex(petsEntry.COLUMN_PET_BREED)));
+                    openEditor.putExtra(EditorActivity.EXTRA_PET_PHOTO_VERSION, row.getLong(
+                            row.getColumnIndex(petsEntry.COLUMN_PET_PHOTO_VERSION)));
+                }
+
                 // Launch the {@link EditorActivity} to display data for the current pet
                 startActivity(openEditor);
 
             }
         });
 
-        // Initialize the CursorLoader
+        // Initialize the CursorLoaders for the pets, their facet counts and name sections
         getLoaderManager().initLoader(PETAPP_LOADER_ID, null, this);
+        getLoaderManager().initLoader(FACETS_LOADER_ID, null, this);
+        getLoaderManager().initLoader(SECTIONS_LOADER_ID, null, this);
 
     }
 
@@ -106,6 +157,9 @@ public class CatalogActivity extends AppCompatActivity
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        // The stress test writes thousands of rows, keep it out of release builds
+        menu.findItem(R.id.action_run_stress_test).setVisible(BuildConfig.DEBUG);
+        menu.findItem(R.id.action_export_ui_metrics).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -113,11 +167,26 @@ public class CatalogActivity extends AppCompatActivity
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Filter" menu option
+            case R.id.action_filter:
+                showFilterDialog();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertPet();
                 Toast.makeText(this, getString(R.string.pet_saved), Toast.LENGTH_LONG).show();
 
+                return true;
+            // Respond to a click on the "Run stress test" menu option
+            case R.id.action_run_stress_test:
+                new StressTestTask(getApplicationContext()).execute();
+                Toast.makeText(this, getString(R.string.stress_test_started),
+                        Toast.LENGTH_SHORT).show();
+
+                return true;
+            // Respond to a click on the "Export UI metrics" menu option
+            case R.id.action_export_ui_metrics:
+                exportUiMetrics();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
@@ -133,14 +202,10 @@ public class CatalogActivity extends AppCompatActivity
     }
 
     /**
-     * Helper method to insert hardcoded pet data into the database. For debugging purposes only.
+     * Helper method to insert random pet data into the database. For debugging purposes only.
      */
     private void insertPet() {
-        ContentValues values = new ContentValues();
-        values.put(petsEntry.COLUMN_PET_NAME, "Toto");
-        values.put(petsEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(petsEntry.COLUMN_PET_GENDER, petsEntry.GENDER_MALE);
-        values.put(petsEntry.COLUMN_PET_WEIGHT, 7);
+        ContentValues values = new PetWorkloadGenerator(System.nanoTime()).nextPet();
 
         Log.i("CatalogActivity", "Content Values: " + values);
 
@@ -149,21 +214,198 @@ public class CatalogActivity extends AppCompatActivity
 
     }
 
+    /**
+     * Logs the summary of the UI timings and offers to share it, to compare it with the
+     * summary of another build.
+     */
+    private void exportUiMetrics() {
+        UiMetrics.Sink sink = UiMetrics.getSink();
+        if (!(sink instanceof UiMetricsSummary)) {
+            return;
+        }
+        String summary = ((UiMetricsSummary) sink).summarize();
+        Log.i("CatalogActivity", "UI metrics:\n" + summary);
+
+        Intent share = new Intent(Intent.ACTION_SEND)
+                .setType("text/plain")
+                .putExtra(Intent.EXTRA_TEXT, summary);
+        startActivity(Intent.createChooser(share, getString(R.string.action_export_ui_metrics)));
+    }
+
+    /**
+     * Runs the provider stress test in the background and shows a summary when done.
+     */
+    private static class StressTestTask extends AsyncTask<Void, Void, PetStressHarness.Report> {
+
+        private final Context context;
+
+        StressTestTask(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        protected PetStressHarness.Report doInBackground(Void... voids) {
+            try {
+                return new PetStressHarness(context.getContentResolver(),
+                        new PetStressHarness.Config()).run();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(PetStressHarness.Report report) {
+            if (report == null) {
+                return;
+            }
+            String consistency = context.getString(report.isConsistent()
+                    ? R.string.stress_test_consistent : R.string.stress_test_inconsistent);
+            Toast.makeText(context, context.getString(R.string.stress_test_finished,
+                    Math.round(report.readsPerSecond), Math.round(report.writesPerSecond),
+                    consistency), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Shows a dialog to filter the pets by gender, weight range and breed. The gender
+     * options show how many pets each would match.
+     */
+    private void showFilterDialog() {
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_filter, null);
+        final Spinner genderSpinner = dialogView.findViewById(R.id.filter_gender);
+        final EditText minWeightEditText = dialogView.findViewById(R.id.filter_min_weight);
+        final EditText maxWeightEditText = dialogView.findViewById(R.id.filter_max_weight);
+        final EditText breedsEditText = dialogView.findViewById(R.id.filter_breeds);
+
+        // Label each gender option with its count
+        String[] genderNames = getResources().getStringArray(R.array.array_gender_options);
+        List<String> genderOptions = new ArrayList<>();
+        genderOptions.add(getString(R.string.filter_any_gender));
+        for (int i = 0; i < FILTER_GENDERS.length; i++) {
+            genderOptions.add(getString(R.string.filter_option_count, genderNames[i],
+                    genderCounts.get(FILTER_GENDERS[i])));
+        }
+        ArrayAdapter<String> genderAdapter = new ArrayAdapter<>(this,
+                android.R.layout.simple_spinner_item, genderOptions);
+        genderAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        genderSpinner.setAdapter(genderAdapter);
+
+        // Show the current filter
+        int[] genders = currentFilter.getGenders();
+        if (genders.length == 1) {
+            for (int i = 0; i < FILTER_GENDERS.length; i++) {
+                if (FILTER_GENDERS[i] == genders[0]) {
+                    genderSpinner.setSelection(i + 1);
+                }
+            }
+        }
+        if (currentFilter.getMinWeight() != null) {
+            minWeightEditText.setText(String.valueOf(currentFilter.getMinWeight()));
+        }
+        if (currentFilter.getMaxWeight() != null) {
+            maxWeightEditText.setText(String.valueOf(currentFilter.getMaxWeight()));
+        }
+        breedsEditText.setText(TextUtils.join(", ", currentFilter.getBreeds()));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.filter_dialog_title);
+        builder.setView(dialogView);
+        builder.setPositiveButton(R.string.filter_apply, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                PetFilter filter = new PetFilter();
+
+                int genderPosition = genderSpinner.getSelectedItemPosition();
+                if (genderPosition > 0) {
+                    filter.setGenders(FILTER_GENDERS[genderPosition - 1]);
+                }
+
+                filter.setWeightRange(parseWeight(minWeightEditText),
+                        parseWeight(maxWeightEditText));
+
+                List<String> breeds = new ArrayList<>();
+                for (String breed : breedsEditText.getText().toString().split(",")) {
+                    if (!breed.trim().isEmpty()) {
+                        breeds.add(breed.trim());
+                    }
+                }
+                filter.setBreeds(breeds.toArray(new String[breeds.size()]));
+
+                applyFilter(filter);
+            }
+        });
+        builder.setNeutralButton(R.string.filter_clear, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                applyFilter(new PetFilter());
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    private static Integer parseWeight(EditText editText) {
+        String weightStr = editText.getText().toString().trim();
+        try {
+            return weightStr.isEmpty() ? null : Integer.valueOf(weightStr);
+        } catch (NumberFormatException e) {
+            // Too many digits for an int, treat as no bound
+            return null;
+        }
+    }
+
+    /**
+     * Reloads the list of pets, the facet counts and the name sections for the given
+     * filter.
+     */
+    private void applyFilter(PetFilter filter) {
+        currentFilter = filter;
+        getLoaderManager().restartLoader(PETAPP_LOADER_ID, null, this);
+        getLoaderManager().restartLoader(FACETS_LOADER_ID, null, this);
+        getLoaderManager().restartLoader(SECTIONS_LOADER_ID, null, this);
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int i /*Loader ID*/, Bundle bundle) {
+        loaderTimer.started(i);
+        if (i == FACETS_LOADER_ID) {
+            // Facet counts for the current filter
+            return new CursorLoader(this,
+                    currentFilter.applyTo(facetsEntry.CONTENT_URI),
+                    null,
+                    null,
+                    null,
+                    null);
+        }
+        if (i == SECTIONS_LOADER_ID) {
+            // Pets per name section for the current filter, for the fast scroller
+            return new CursorLoader(this,
+                    currentFilter.applyTo(sectionsEntry.CONTENT_URI),
+                    null,
+                    null,
+                    null,
+                    null);
+        }
+
         // Declare and assign values for parameters needed for CursorLoader
         String[] projection = {
                 petsEntry._ID,
                 petsEntry.COLUMN_PET_NAME,
-                petsEntry.COLUMN_PET_BREED};
+                petsEntry.COLUMN_PET_BREED,
+                petsEntry.COLUMN_PET_PHOTO_VERSION};
         String selection = null;
         String[] selectionArgs = null;
         String sortOrder = null;
 
+        // List the pets alphabetically, using the provider's precomputed name order
+        Uri uri = currentFilter.applyTo(petsEntry.CONTENT_URI).buildUpon()
+                .appendQueryParameter(petsEntry.QUERY_PARAM_SORT, petsEntry.SORT_NAME)
+                .build();
+
         // Return a CursorLoader that executes the ContentProvider's query method on a
         // background thread
         return new CursorLoader(this,
-                petsEntry.CONTENT_URI,
+                uri,
                 projection,
                 selection,
                 selectionArgs,
@@ -172,14 +414,75 @@ public class CatalogActivity extends AppCompatActivity
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (loader.getId() == FACETS_LOADER_ID) {
+            loaderTimer.finished(FACETS_LOADER_ID, "facets");
+            showFacetCounts(cursor);
+            return;
+        }
+        if (loader.getId() == SECTIONS_LOADER_ID) {
+            loaderTimer.finished(SECTIONS_LOADER_ID, "sections");
+            cursorAdapter.setSectionIndexer(cursor == null ? null : new PetSectionIndexer(cursor));
+            refreshFastScroller();
+            return;
+        }
+
+        loaderTimer.finished(PETAPP_LOADER_ID, "pets");
+
         // Moves the query results into the adapter, causing the ListView fronting the
         // adapter to re-display
         cursorAdapter.swapCursor(cursor);
 
     }
 
+    /**
+     * Keeps the gender counts for the filter dialog and shows the number of matching
+     * pets while a filter is active.
+     */
+    private void showFacetCounts(Cursor cursor) {
+        genderCounts.clear();
+        int total = 0;
+
+        if (cursor != null && cursor.moveToPosition(-1)) {
+            int facetColumnIndex = cursor.getColumnIndex(facetsEntry.COLUMN_FACET);
+            int valueColumnIndex = cursor.getColumnIndex(facetsEntry.COLUMN_VALUE);
+            int countColumnIndex = cursor.getColumnIndex(facetsEntry.COLUMN_COUNT);
+            while (cursor.moveToNext()) {
+                String facet = cursor.getString(facetColumnIndex);
+                if (facetsEntry.FACET_TOTAL.equals(facet)) {
+                    total = cursor.getInt(countColumnIndex);
+                } else if (facetsEntry.FACET_GENDER.equals(facet)) {
+                    genderCounts.put(cursor.getInt(valueColumnIndex),
+                            cursor.getInt(countColumnIndex));
+                }
+            }
+        }
+
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(currentFilter.isEmpty() ? null
+                    : getString(R.string.filter_match_count, total));
+        }
+    }
+
+    /**
+     * The fast scroller reads the sections only when it is set up, so set it up again.
+     */
+    private void refreshFastScroller() {
+        petListView.setFastScrollEnabled(false);
+        petListView.setFastScrollEnabled(true);
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() == FACETS_LOADER_ID) {
+            genderCounts.clear();
+            return;
+        }
+        if (loader.getId() == SECTIONS_LOADER_ID) {
+            cursorAdapter.setSectionIndexer(null);
+            refreshFastScroller();
+            return;
+        }
+
         // Clear out adapter's reference to the Cursor to prevent memory leaks
         cursorAdapter.swapCursor(null);
     }
@@ -16,32 +16,52 @@
 package com.example.android.pets;
 
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.app.LoaderManager;
 import android.support.v4.app.NavUtils;
 import android.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.photosEntry;
+import com.example.android.pets.data.PetsContract.queriesEntry;
+import com.example.android.pets.data.PetsContract.similarEntry;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import static com.example.android.pets.data.PetsContract.petsEntry.*;
 
@@ -51,6 +71,15 @@ import static com.example.android.pets.data.PetsContract.petsEntry.*;
 public class EditorActivity extends AppCompatActivity
         implements LoaderManager.LoaderCallbacks<Cursor> {
 
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
+
+    // Extras with the catalog row of the pet being opened. The editor shows them right away
+    // and reconciles them with the pet it loads.
+    public static final String EXTRA_PET_NAME = "com.example.android.pets.extra.PET_NAME";
+    public static final String EXTRA_PET_BREED = "com.example.android.pets.extra.PET_BREED";
+    public static final String EXTRA_PET_PHOTO_VERSION =
+            "com.example.android.pets.extra.PET_PHOTO_VERSION";
+
     /**
      * EditText field to enter the pet's name
      */
@@ -71,6 +100,16 @@ public class EditorActivity extends AppCompatActivity
      */
     private Spinner mGenderSpinner;
 
+    /**
+     * TextView warning about existing pets similar to the one being entered
+     */
+    private TextView mDuplicateWarningView;
+
+    /**
+     * ImageView showing the pet's photo, tapped to pick a new one
+     */
+    private ImageView mPhotoView;
+
     /**
      * Gender of the pet. The possible values are:
      * 0 for unknown gender, 1 for male, 2 for female.
@@ -78,10 +117,62 @@ public class EditorActivity extends AppCompatActivity
     private int mGender = GENDER_UNKNOWN;
     // ID for loader
     private static final int EDITOR_LOADER = 201;
+    // ID for loader of pets similar to the one being entered
+    private static final int SIMILAR_LOADER = 204;
+    // Request code of the photo picker
+    private static final int PICK_PHOTO_REQUEST = 1;
+    // Longest the first frame waits for the columns a handed over pet is missing
+    private static final long FIRST_FRAME_WAIT_MS = 150;
+    // Pause in typing before looking for similar pets
+    private static final long SIMILAR_SEARCH_DELAY_MS = 300;
+    // Time after which a similar pet search is given up, the warning is only a hint
+    private static final long SIMILAR_SEARCH_TIMEOUT_MS = 2000;
+    // Handler and task that look for similar pets once typing pauses
+    private final Handler similarSearchHandler = new Handler();
+    private final Runnable similarSearch = new Runnable() {
+        @Override
+        public void run() {
+            searchSimilarPets();
+        }
+    };
+    // Restarts the similar pet search whenever the name or breed changes
+    private final TextWatcher similarSearchWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            similarSearchHandler.removeCallbacks(similarSearch);
+            similarSearchHandler.postDelayed(similarSearch, SIMILAR_SEARCH_DELAY_MS);
+        }
+    };
     // Declare Uri variable for existing pet record
     private Uri currentPetUri;
     // Declare boolean variable for changes to pet form
     private boolean petHasChanged = false;
+    // Whether the fields were filled from the pet. Later loads, like the one after a new
+    // photo, only update the photo so they do not overwrite what the user typed.
+    private boolean petLoaded = false;
+    // Times the loaders of the editor
+    private final UiMetrics.LoaderTimer loaderTimer = new UiMetrics.LoaderTimer("editor");
+    // Whether the catalog handed over the name, breed and photo of the pet, and the name
+    // and breed it handed over
+    private boolean petHandedOver = false;
+    private String handedOverName;
+    private String handedOverBreed;
+    // Holds back drawing until a handed over pet is complete, null once released
+    private ViewTreeObserver.OnPreDrawListener firstFrameGate;
+    private final Runnable releaseFirstFrame = new Runnable() {
+        @Override
+        public void run() {
+            releaseFirstFrame();
+        }
+    };
     // OnTouchListener that listens for any user touches on a View, i.e. modifying,
     // and updates boolean to true
     private View.OnTouchListener touchListener = new View.OnTouchListener() {
@@ -115,6 +206,11 @@ public class EditorActivity extends AppCompatActivity
             // Existing pet so update the title to "Edit Pet"
             setTitle(getString(R.string.editor_title_edit_pet));
 
+            petHandedOver = openEditor.hasExtra(EXTRA_PET_NAME);
+            if (petHandedOver) {
+                handedOverName = nullToEmpty(openEditor.getStringExtra(EXTRA_PET_NAME));
+                handedOverBreed = nullToEmpty(openEditor.getStringExtra(EXTRA_PET_BREED));
+            }
             getLoaderManager().initLoader(EDITOR_LOADER, null, this);
         }
 
@@ -123,6 +219,19 @@ public class EditorActivity extends AppCompatActivity
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
+        mDuplicateWarningView = (TextView) findViewById(R.id.duplicate_warning);
+        mPhotoView = (ImageView) findViewById(R.id.edit_pet_photo);
+
+        // Photos are files of existing pets, written as soon as they are picked
+        if (currentPetUri != null) {
+            findViewById(R.id.container_photo).setVisibility(View.VISIBLE);
+            mPhotoView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    pickPhoto();
+                }
+            });
+        }
 
         setupSpinner();
 
@@ -131,6 +240,101 @@ public class EditorActivity extends AppCompatActivity
         mWeightEditText.setOnTouchListener(touchListener);
         mGenderSpinner.setOnTouchListener(touchListener);
 
+        mNameEditText.addTextChangedListener(similarSearchWatcher);
+        mBreedEditText.addTextChangedListener(similarSearchWatcher);
+
+        // Recreated editors get their fields back from the saved view state instead
+        if (petHandedOver && savedInstanceState == null) {
+            showHandedOverPet(openEditor);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        similarSearchHandler.removeCallbacks(similarSearch);
+        releaseFirstFrame();
+        super.onDestroy();
+    }
+
+    /**
+     * Fills the fields with the catalog row handed over in the intent, and holds back the
+     * first frame until the remaining fields are loaded, or for at most
+     * {@link #FIRST_FRAME_WAIT_MS}. Loading one pet by ID usually takes far less, so the
+     * editor opens complete instead of filling in field by field.
+     */
+    private void showHandedOverPet(Intent openEditor) {
+        mNameEditText.setText(handedOverName);
+        mBreedEditText.setText(handedOverBreed);
+        showPhoto(openEditor.getLongExtra(EXTRA_PET_PHOTO_VERSION, 0));
+
+        firstFrameGate = new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                return false;
+            }
+        };
+        View content = findViewById(android.R.id.content);
+        content.getViewTreeObserver().addOnPreDrawListener(firstFrameGate);
+        content.postDelayed(releaseFirstFrame, FIRST_FRAME_WAIT_MS);
+    }
+
+    private void releaseFirstFrame() {
+        if (firstFrameGate == null) {
+            return;
+        }
+        View content = findViewById(android.R.id.content);
+        content.removeCallbacks(releaseFirstFrame);
+        content.getViewTreeObserver().removeOnPreDrawListener(firstFrameGate);
+        content.invalidate();
+        firstFrameGate = null;
+    }
+
+    private void showPhoto(long photoVersion) {
+        PetThumbnailLoader.getInstance(this).load(mPhotoView,
+                ContentUris.parseId(currentPetUri), photoVersion,
+                getResources().getDimensionPixelSize(R.dimen.editor_photo_size));
+    }
+
+    /**
+     * Looks for existing pets with a name and breed similar to the ones entered, so the
+     * user is warned before saving a duplicate.
+     */
+    private void searchSimilarPets() {
+        String petName = mNameEditText.getText().toString().trim();
+        String petBreed = mBreedEditText.getText().toString().trim();
+        if (petName.isEmpty() && petBreed.isEmpty()) {
+            getLoaderManager().destroyLoader(SIMILAR_LOADER);
+            mDuplicateWarningView.setVisibility(View.GONE);
+            return;
+        }
+
+        Bundle args = new Bundle();
+        args.putString(similarEntry.QUERY_PARAM_NAME, petName);
+        args.putString(similarEntry.QUERY_PARAM_BREED, petBreed);
+        getLoaderManager().restartLoader(SIMILAR_LOADER, args, this);
+    }
+
+    /**
+     * Lets the user pick an image to become the photo of the pet.
+     */
+    private void pickPhoto() {
+        Intent pick = new Intent(Intent.ACTION_GET_CONTENT).setType("image/*");
+        if (pick.resolveActivity(getPackageManager()) != null) {
+            startActivityForResult(pick, PICK_PHOTO_REQUEST);
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != PICK_PHOTO_REQUEST) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+            // The editor loader reloads the photo once it is written
+            Uri photoUri = photosEntry.buildPetUri(ContentUris.parseId(currentPetUri));
+            new PhotoCopyTask(this, photoUri).execute(data.getData());
+        }
     }
 
     /**
@@ -298,6 +502,24 @@ public class EditorActivity extends AppCompatActivity
     @NonNull
     @Override
     public Loader<Cursor> onCreateLoader(int id, @Nullable Bundle args) {
+        loaderTimer.started(id);
+        if (id == SIMILAR_LOADER) {
+            // Ask for two matches, one of them may be the pet being edited
+            Uri.Builder similarUri = similarEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(similarEntry.QUERY_PARAM_NAME,
+                            args.getString(similarEntry.QUERY_PARAM_NAME))
+                    .appendQueryParameter(similarEntry.QUERY_PARAM_BREED,
+                            args.getString(similarEntry.QUERY_PARAM_BREED))
+                    .appendQueryParameter(similarEntry.QUERY_PARAM_LIMIT, "2");
+            // Restarting the loader cancels a search still running. Loaders handle
+            // canceled queries from API 16 on.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                similarUri.appendQueryParameter(queriesEntry.QUERY_PARAM_TIMEOUT,
+                        String.valueOf(SIMILAR_SEARCH_TIMEOUT_MS));
+            }
+            return new CursorLoader(this, similarUri.build(), null, null, null, null);
+        }
+
         // Best practice: Specify columns to return. There are not may columns in this table
         // however it is best practice to include the columns to return from the query to
         // avoid performance issues
@@ -306,7 +528,8 @@ public class EditorActivity extends AppCompatActivity
                 petsEntry.COLUMN_PET_NAME,
                 petsEntry.COLUMN_PET_BREED,
                 petsEntry.COLUMN_PET_GENDER,
-                petsEntry.COLUMN_PET_WEIGHT};
+                petsEntry.COLUMN_PET_WEIGHT,
+                petsEntry.COLUMN_PET_PHOTO_VERSION};
         String selection = null;
         String[] selectionArgs = null;
         String sortOrder = null;
@@ -321,6 +544,16 @@ public class EditorActivity extends AppCompatActivity
 
     @Override
     public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
+        if (loader.getId() == SIMILAR_LOADER) {
+            loaderTimer.finished(SIMILAR_LOADER, "similar");
+            showDuplicateWarning(data);
+            return;
+        }
+        loaderTimer.finished(EDITOR_LOADER, "pet");
+
+        // Whatever was loaded, the editor is as complete as it gets
+        releaseFirstFrame();
+
         // Exit early if the cursor is null or there is less than 1 row in
         // the cursor
         if (data == null || data.getCount() < 1) {
@@ -328,12 +561,25 @@ public class EditorActivity extends AppCompatActivity
         }
         // Move cursor to position 0 before extracting values
         if (data.moveToFirst()) {
-            // Get name column index and set value on name field
+            int photoColumnIndex = data.getColumnIndex(petsEntry.COLUMN_PET_PHOTO_VERSION);
+            showPhoto(data.getLong(photoColumnIndex));
+            if (petLoaded) {
+                return;
+            }
+            petLoaded = true;
+
+            // A handed over name or breed is replaced if the pet changed after the catalog
+            // read its row, unless the user already edited it
             int nameColumnIndex = data.getColumnIndex(petsEntry.COLUMN_PET_NAME);
-            mNameEditText.setText(data.getString(nameColumnIndex));
-            // Get breed column index and set value on breed field
             int breedColumnIndex = data.getColumnIndex(petsEntry.COLUMN_PET_BREED);
-            mBreedEditText.setText(data.getString(breedColumnIndex));
+            if (petHandedOver) {
+                reconcileField(mNameEditText, handedOverName, data.getString(nameColumnIndex));
+                reconcileField(mBreedEditText, handedOverBreed,
+                        data.getString(breedColumnIndex));
+            } else {
+                mNameEditText.setText(data.getString(nameColumnIndex));
+                mBreedEditText.setText(data.getString(breedColumnIndex));
+            }
             // Get weight column index and set value on weight field
             int weightColumnIndex = data.getColumnIndex(petsEntry.COLUMN_PET_WEIGHT);
             mWeightEditText.setText(String.valueOf(data.getInt(weightColumnIndex)));
@@ -356,14 +602,62 @@ public class EditorActivity extends AppCompatActivity
         }
     }
 
+    /**
+     * Shows a loaded value in a field filled from the catalog, if it differs from the value
+     * the catalog handed over and the field still shows that value.
+     */
+    private static void reconcileField(EditText field, String handedOver, String loaded) {
+        loaded = nullToEmpty(loaded);
+        if (!loaded.equals(handedOver) && field.getText().toString().equals(handedOver)) {
+            field.setText(loaded);
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
     @Override
     public void onLoaderReset(@NonNull Loader<Cursor> loader) {
+        if (loader.getId() == SIMILAR_LOADER) {
+            mDuplicateWarningView.setVisibility(View.GONE);
+            return;
+        }
+
         mNameEditText.setText("");
         mBreedEditText.setText("");
         mWeightEditText.setText("");
         mGenderSpinner.setSelection(0);
     }
 
+    /**
+     * Shows the best match among existing pets, other than the pet being edited, or hides
+     * the warning if there is none.
+     */
+    private void showDuplicateWarning(Cursor data) {
+        long currentPetId = currentPetUri == null ? -1 : ContentUris.parseId(currentPetUri);
+        if (data != null) {
+            int idColumnIndex = data.getColumnIndex(petsEntry._ID);
+            int nameColumnIndex = data.getColumnIndex(petsEntry.COLUMN_PET_NAME);
+            int breedColumnIndex = data.getColumnIndex(petsEntry.COLUMN_PET_BREED);
+            data.moveToPosition(-1);
+            while (data.moveToNext()) {
+                if (data.getLong(idColumnIndex) == currentPetId) {
+                    continue;
+                }
+                String breed = data.getString(breedColumnIndex);
+                if (TextUtils.isEmpty(breed)) {
+                    breed = getString(R.string.unknown_breed);
+                }
+                mDuplicateWarningView.setText(getString(R.string.duplicate_warning,
+                        data.getString(nameColumnIndex), breed));
+                mDuplicateWarningView.setVisibility(View.VISIBLE);
+                return;
+            }
+        }
+        mDuplicateWarningView.setVisibility(View.GONE);
+    }
+
     private void showUnsavedChangesDialog(
             DialogInterface.OnClickListener discardButtonClickListener) {
         // Create an AlertDialog.Builder and set the message, and click listeners
@@ -458,4 +752,85 @@ public class EditorActivity extends AppCompatActivity
         // Exit activity
         finish();
     }
+
+    /**
+     * Copies a picked image into the photo of a pet, off the main thread. The copy goes
+     * straight to the file descriptor of the photo, and fails without replacing the photo
+     * if the image cannot be read to the end.
+     */
+    private static class PhotoCopyTask extends AsyncTask<Uri, Void, Boolean> {
+
+        private final Context context;
+        private final Uri photoUri;
+
+        PhotoCopyTask(Context context, Uri photoUri) {
+            this.context = context.getApplicationContext();
+            this.photoUri = photoUri;
+        }
+
+        @Override
+        protected Boolean doInBackground(Uri... sources) {
+            ContentResolver resolver = context.getContentResolver();
+            InputStream in = null;
+            ParcelFileDescriptor photo = null;
+            boolean copied = false;
+            try {
+                in = resolver.openInputStream(sources[0]);
+                photo = resolver.openFileDescriptor(photoUri, "w");
+                if (in == null || photo == null) {
+                    return false;
+                }
+                OutputStream out = new FileOutputStream(photo.getFileDescriptor());
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                copied = true;
+            } catch (IOException | RuntimeException e) {
+                Log.w(LOG_TAG, "Cannot copy photo from " + sources[0], e);
+            } finally {
+                close(in);
+                close(photo, copied);
+            }
+            return copied;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean copied) {
+            if (!copied) {
+                Toast.makeText(context, R.string.editor_photo_failed, Toast.LENGTH_LONG).show();
+            }
+        }
+
+        private static void close(InputStream in) {
+            if (in == null) {
+                return;
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Cannot close picked photo", e);
+            }
+        }
+
+        /**
+         * Closes the photo, telling the provider to discard it if it is incomplete. Older
+         * platforms cannot tell, their photo is replaced either way.
+         */
+        private static void close(ParcelFileDescriptor photo, boolean copied) {
+            if (photo == null) {
+                return;
+            }
+            try {
+                if (!copied && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    photo.closeWithError("Incomplete photo");
+                } else {
+                    photo.close();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Cannot close photo", e);
+            }
+        }
+    }
 }
\ No newline at end of file
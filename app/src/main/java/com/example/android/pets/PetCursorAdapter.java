@@ -6,11 +6,20 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
+import android.widget.ImageView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.example.android.pets.data.PetsContract;
 
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends CursorAdapter implements SectionIndexer {
+
+    // Sections for the fast scroller, replaced whenever the section counts change
+    private PetSectionIndexer sectionIndexer = new PetSectionIndexer();
+
+    // Loads the photos of the rows in the background
+    private final PetThumbnailLoader thumbnailLoader;
+    private final int photoSizePx;
 
     /**
      * Constructs  a new {@link PetCursorAdapter}
@@ -23,6 +32,8 @@ public class PetCursorAdapter extends CursorAdapter {
                             Cursor cursor,
                             int flags /*FLAG_AUTO_REQUERY, FLAG_REGISTER_CONTENT_OBSERVER*/){
         super(context,cursor, 0);
+        thumbnailLoader = PetThumbnailLoader.getInstance(context);
+        photoSizePx = context.getResources().getDimensionPixelSize(R.dimen.list_item_photo_size);
     }
 
     /**
@@ -34,7 +45,12 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup viewGroup) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item,viewGroup,false);
+        long start = UiMetrics.begin(UiMetrics.NEW_VIEW);
+        try {
+            return LayoutInflater.from(context).inflate(R.layout.list_item, viewGroup, false);
+        } finally {
+            UiMetrics.end(UiMetrics.NEW_VIEW, start);
+        }
     }
 
     // Bind data to a given view such as setting the text on a TextView
@@ -51,11 +67,24 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
+        long start = UiMetrics.begin(UiMetrics.BIND_VIEW);
+        try {
+            bindPet(view, context, cursor);
+        } finally {
+            UiMetrics.end(UiMetrics.BIND_VIEW, start);
+        }
+    }
+
+    private void bindPet(View view, Context context, Cursor cursor) {
         // Find fields to populate in inflated template
         TextView nameTV = (TextView) view.findViewById(R.id.name);
         TextView summaryTV = (TextView) view.findViewById(R.id.summary);
+        ImageView photoIV = (ImageView) view.findViewById(R.id.photo);
 
         // Find the columns of pet attributes that we want
+        int idColumnIndex = cursor.getColumnIndex(PetsContract.petsEntry._ID);
+        int photoColumnIndex =
+                cursor.getColumnIndex(PetsContract.petsEntry.COLUMN_PET_PHOTO_VERSION);
         int nameColumnIndex = cursor.getColumnIndex(PetsContract.petsEntry.COLUMN_PET_NAME);
         int nameBreedIndex = cursor.getColumnIndex(PetsContract.petsEntry.COLUMN_PET_BREED);
 
@@ -72,5 +101,47 @@ public class PetCursorAdapter extends CursorAdapter {
         nameTV.setText(petName);
         summaryTV.setText(petBreed);
 
+        // A null photo version reads as 0, no photo
+        thumbnailLoader.load(photoIV, cursor.getLong(idColumnIndex),
+                cursor.getLong(photoColumnIndex), photoSizePx);
+    }
+
+    /**
+     * Swaps in a new cursor, timed since it makes the list rebind its visible rows.
+     */
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        long start = UiMetrics.begin(UiMetrics.SWAP_CURSOR);
+        try {
+            return super.swapCursor(newCursor);
+        } finally {
+            UiMetrics.end(UiMetrics.SWAP_CURSOR, start);
+        }
+    }
+
+    /**
+     * Sets the sections shown by the fast scroller
+     *
+     * @param sectionIndexer Indexer for the current cursor, or null for no sections
+     */
+    public void setSectionIndexer(PetSectionIndexer sectionIndexer) {
+        this.sectionIndexer = sectionIndexer == null ? new PetSectionIndexer() : sectionIndexer;
+    }
+
+    @Override
+    public Object[] getSections() {
+        return sectionIndexer.getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        // The section counts and the list are loaded separately, so stay inside the list
+        return Math.min(sectionIndexer.getPositionForSection(sectionIndex),
+                Math.max(0, getCount() - 1));
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return sectionIndexer.getSectionForPosition(position);
     }
 }
@@ -0,0 +1,85 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.widget.SectionIndexer;
+
+import com.example.android.pets.data.PetsContract.sectionsEntry;
+
+import java.util.Arrays;
+
+/**
+ * {@link SectionIndexer} for the alphabetical list of pets, built from the section counts
+ * of the provider instead of probing the list cursor.
+ *
+ * The first position of a section is the sum of the counts of the sections before it.
+ */
+public class PetSectionIndexer implements SectionIndexer {
+
+    // Section labels, in list order
+    private final String[] sections;
+
+    // List position of the first pet of each section
+    private final int[] positions;
+
+    /**
+     * Constructs an indexer without sections
+     */
+    public PetSectionIndexer() {
+        sections = new String[0];
+        positions = new int[0];
+    }
+
+    /**
+     * Constructs a new {@link PetSectionIndexer}. The cursor is read right away and can be
+     * closed afterwards.
+     *
+     * @param cursor Cursor over {@link sectionsEntry#CONTENT_URI}
+     */
+    public PetSectionIndexer(Cursor cursor) {
+        sections = new String[cursor.getCount()];
+        positions = new int[cursor.getCount()];
+
+        int sectionColumnIndex = cursor.getColumnIndex(sectionsEntry.COLUMN_SECTION);
+        int countColumnIndex = cursor.getColumnIndex(sectionsEntry.COLUMN_COUNT);
+
+        int position = 0;
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            sections[i] = cursor.getString(sectionColumnIndex);
+            positions[i] = position;
+            position += cursor.getInt(countColumnIndex);
+        }
+    }
+
+    @Override
+    public Object[] getSections() {
+        return sections;
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        if (positions.length == 0) {
+            return 0;
+        }
+        sectionIndex = Math.max(0, Math.min(sectionIndex, positions.length - 1));
+        return positions[sectionIndex];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (positions.length == 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(positions, position);
+        if (index < 0) {
+            // Insertion point minus one is the section starting before the position
+            index = -index - 2;
+        } else {
+            // Empty sections never occur, but take the last section starting here
+            while (index + 1 < positions.length && positions[index + 1] == position) {
+                index++;
+            }
+        }
+        return Math.max(0, index);
+    }
+}
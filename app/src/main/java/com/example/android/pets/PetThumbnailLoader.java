@@ -0,0 +1,513 @@
+package com.example.android.pets;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.photosEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shows the photos of the pets in image views as square thumbnails, without decoding on
+ * the main thread.
+ *
+ * Photos are decoded on a small pool of background threads, sampled down to the size of
+ * the view instead of at full size. Thumbnails are kept at two levels: a memory cache
+ * bounded by the bytes of its bitmaps, and a disk cache of compressed thumbnails that
+ * survives the process. Bitmaps dropped from the memory cache while no view shows them
+ * are decoded into again, so scrolling does not keep allocating bitmaps. Thumbnails are
+ * keyed by {@link petsEntry#COLUMN_PET_PHOTO_VERSION}, so a new photo is never hidden by
+ * a cached one.
+ *
+ * Apart from the decoding and the disk cache, everything runs on the main thread.
+ */
+public class PetThumbnailLoader implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName();
+
+    private static final int THREAD_COUNT = 2;
+
+    // The memory cache holds up to this fraction of the memory class of the app
+    private static final int MEMORY_CACHE_FRACTION = 8;
+
+    // Bitmaps kept for reuse at most, on top of the memory cache
+    private static final int REUSE_POOL_SIZE = 8;
+
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+    private static final String DISK_CACHE_SUFFIX = ".jpg";
+    private static final long DISK_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final int DISK_CACHE_QUALITY = 85;
+
+    private static PetThumbnailLoader instance;
+
+    /**
+     * Returns the loader shared by all activities, so they share its caches.
+     */
+    public static synchronized PetThumbnailLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new PetThumbnailLoader(context.getApplicationContext());
+            context.getApplicationContext().registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    private final ContentResolver resolver;
+    private final File diskCacheDirectory;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> memoryCache;
+
+    // Number of views showing each bitmap
+    private final Map<Bitmap, Integer> displayCounts = new HashMap<>();
+
+    // Bitmaps dropped from the memory cache while shown, reusable once no view shows them
+    private final Set<Bitmap> droppedWhileShown = new HashSet<>();
+
+    // Bitmaps to decode into, taken by the decode threads. Guarded by itself.
+    private final List<Bitmap> reusePool = new ArrayList<>();
+
+    // Bytes in the disk cache, -1 until counted. Guarded by the directory.
+    private long diskCacheSize = -1;
+
+    private PetThumbnailLoader(Context context) {
+        resolver = context.getContentResolver();
+        diskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+        executor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        memoryCache = new LruCache<String, Bitmap>(
+                memoryClass * 1024 * 1024 / MEMORY_CACHE_FRACTION) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldBitmap,
+                                        Bitmap newBitmap) {
+                if (oldBitmap == newBitmap) {
+                    return;
+                }
+                if (displayCounts.containsKey(oldBitmap)) {
+                    droppedWhileShown.add(oldBitmap);
+                } else {
+                    offerReusable(oldBitmap);
+                }
+            }
+        };
+    }
+
+    /**
+     * Shows the photo of a pet in a view, or clears the view if the pet has none. Whatever
+     * the view loaded before is canceled, so views recycled by a list never show the photo
+     * of another pet. Must be called on the main thread.
+     *
+     * @param photoVersion {@link petsEntry#COLUMN_PET_PHOTO_VERSION} of the pet, 0 if null
+     * @param sizePx       Width and height of the thumbnail in pixels
+     */
+    public void load(ImageView view, long petId, long photoVersion, int sizePx) {
+        String key = petId + "_" + photoVersion + "_" + sizePx;
+        Slot slot = (Slot) view.getTag(R.id.thumbnail_slot);
+        if (slot == null) {
+            slot = new Slot(view);
+            view.setTag(R.id.thumbnail_slot, slot);
+        } else if (key.equals(slot.key)) {
+            // Already shown or on its way
+            return;
+        }
+
+        slot.key = key;
+        if (slot.request != null) {
+            slot.request.cancel();
+            slot.request = null;
+        }
+        Bitmap cached = photoVersion == 0 ? null : memoryCache.get(key);
+        show(slot, cached);
+        if (photoVersion != 0 && cached == null) {
+            slot.request = new Request(slot, key, petId, sizePx);
+            slot.request.future = executor.submit(slot.request);
+        }
+    }
+
+    /**
+     * Shows a bitmap in the view of a slot, and releases the one shown before.
+     */
+    private void show(Slot slot, Bitmap bitmap) {
+        Bitmap previous = slot.bitmap;
+        slot.bitmap = bitmap;
+        if (bitmap != null) {
+            Integer count = displayCounts.get(bitmap);
+            displayCounts.put(bitmap, count == null ? 1 : count + 1);
+        }
+        slot.view.setImageBitmap(bitmap);
+
+        if (previous != null) {
+            int count = displayCounts.get(previous);
+            if (count > 1) {
+                displayCounts.put(previous, count - 1);
+            } else {
+                displayCounts.remove(previous);
+                if (droppedWhileShown.remove(previous)) {
+                    offerReusable(previous);
+                }
+            }
+        }
+    }
+
+    private void offerReusable(Bitmap bitmap) {
+        if (!bitmap.isMutable()) {
+            return;
+        }
+        synchronized (reusePool) {
+            if (reusePool.size() == REUSE_POOL_SIZE) {
+                reusePool.remove(0);
+            }
+            reusePool.add(bitmap);
+        }
+    }
+
+    /**
+     * Takes a bitmap of the size of a thumbnail out of the reuse pool. Thumbnails all have
+     * the same size and configuration, so they can be decoded into on every API level.
+     *
+     * @return The bitmap, or null if there is none of that size
+     */
+    private Bitmap takeReusable(int sizePx) {
+        synchronized (reusePool) {
+            Iterator<Bitmap> iterator = reusePool.iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                if (bitmap.getWidth() == sizePx && bitmap.getHeight() == sizePx) {
+                    iterator.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the thumbnail from the disk cache, or decodes the photo into a new one.
+     * Runs on a decode thread.
+     *
+     * @return The thumbnail, or null if the pet has no readable photo
+     */
+    private Bitmap loadThumbnail(String key, long petId, int sizePx) {
+        Bitmap thumbnail = readDiskCache(key, sizePx);
+        if (thumbnail == null) {
+            thumbnail = decodePhoto(petId, sizePx);
+            if (thumbnail != null) {
+                writeDiskCache(key, thumbnail);
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Decodes the photo of a pet sampled down close to the thumbnail size, then crops its
+     * center into a square thumbnail.
+     */
+    private Bitmap decodePhoto(long petId, int sizePx) {
+        Uri uri = photosEntry.buildPetUri(petId);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Largest power of two keeping the shorter side at least as large as the thumbnail
+        options.inSampleSize = 1;
+        int shorterSide = Math.min(options.outWidth, options.outHeight);
+        while (shorterSide / (options.inSampleSize * 2) >= sizePx) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        Bitmap sampled = decode(uri, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        Bitmap thumbnail = takeReusable(sizePx);
+        if (thumbnail == null) {
+            thumbnail = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+        } else {
+            thumbnail.eraseColor(Color.TRANSPARENT);
+        }
+        int side = Math.min(sampled.getWidth(), sampled.getHeight());
+        int left = (sampled.getWidth() - side) / 2;
+        int top = (sampled.getHeight() - side) / 2;
+        new Canvas(thumbnail).drawBitmap(sampled, new Rect(left, top, left + side, top + side),
+                new Rect(0, 0, sizePx, sizePx), new Paint(Paint.FILTER_BITMAP_FLAG));
+        sampled.recycle();
+        return thumbnail;
+    }
+
+    /**
+     * Decodes a photo straight from the file descriptor of the provider.
+     */
+    private Bitmap decode(Uri uri, BitmapFactory.Options options) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openFileDescriptor(uri, "r");
+            return BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null,
+                    options);
+        } catch (FileNotFoundException e) {
+            // The photo was deleted meanwhile
+            return null;
+        } finally {
+            closeQuietly(descriptor);
+        }
+    }
+
+    private Bitmap readDiskCache(String key, int sizePx) {
+        File file = new File(diskCacheDirectory, key + DISK_CACHE_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = takeReusable(sizePx);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The file does not hold a thumbnail of that size after all
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        if (bitmap == null) {
+            file.delete();
+            return null;
+        }
+        // Recently used thumbnails are trimmed last
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    /**
+     * Adds a thumbnail to the disk cache, and trims the oldest ones if the cache grew past
+     * {@link #DISK_CACHE_BYTES}. Thumbnails are written to a temporary file first, so other
+     * threads never read half of one.
+     */
+    private void writeDiskCache(String key, Bitmap thumbnail) {
+        File file = new File(diskCacheDirectory, key + DISK_CACHE_SUFFIX);
+        File temp = null;
+        OutputStream out = null;
+        try {
+            if (!diskCacheDirectory.isDirectory() && !diskCacheDirectory.mkdirs()) {
+                return;
+            }
+            temp = File.createTempFile(key, null, diskCacheDirectory);
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, DISK_CACHE_QUALITY, out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot cache thumbnail " + key, e);
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+
+        synchronized (diskCacheDirectory) {
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            if (diskCacheSize >= 0) {
+                diskCacheSize += file.length();
+            }
+            if (diskCacheSize < 0 || diskCacheSize > DISK_CACHE_BYTES) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    /**
+     * Counts the disk cache and deletes the least recently used thumbnails until it is
+     * down to three quarters of its budget, so trimming does not run on every write.
+     * Requires the lock of the directory.
+     */
+    private void trimDiskCache() {
+        File[] files = diskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size > DISK_CACHE_BYTES) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    long aModified = a.lastModified();
+                    long bModified = b.lastModified();
+                    return aModified < bModified ? -1 : (aModified == bModified ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < files.length && size > DISK_CACHE_BYTES * 3 / 4; i++) {
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    size -= length;
+                }
+            }
+        }
+        diskCacheSize = size;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot close " + closeable, e);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            memoryCache.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            memoryCache.trimToSize(memoryCache.maxSize() / 2);
+        } else {
+            return;
+        }
+        synchronized (reusePool) {
+            reusePool.clear();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * What a view shows, and the request loading what it should show.
+     */
+    private static final class Slot {
+
+        final ImageView view;
+        String key;
+        Bitmap bitmap;
+        Request request;
+
+        Slot(ImageView view) {
+            this.view = view;
+        }
+    }
+
+    /**
+     * Loads one thumbnail on a decode thread and hands it to the main thread. The thumbnail
+     * is cached even if the request was canceled meanwhile, since the list likely scrolls
+     * back to it.
+     */
+    private final class Request implements Runnable {
+
+        private final Slot slot;
+        private final String key;
+        private final long petId;
+        private final int sizePx;
+
+        private volatile boolean canceled;
+        Future<?> future;
+
+        Request(Slot slot, String key, long petId, int sizePx) {
+            this.slot = slot;
+            this.key = key;
+            this.petId = petId;
+            this.sizePx = sizePx;
+        }
+
+        void cancel() {
+            canceled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (canceled) {
+                return;
+            }
+            final Bitmap thumbnail = loadThumbnail(key, petId, sizePx);
+            if (thumbnail == null) {
+                return;
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Shown before it is cached, so a cache too small for it does not
+                    // hand it out for reuse while it is on screen
+                    if (slot.request == Request.this) {
+                        slot.request = null;
+                        show(slot, thumbnail);
+                    }
+                    memoryCache.put(key, thumbnail);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.pets;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.view.Choreographer;
+import android.widget.AbsListView;
+
+/**
+ * Records the time between frames while a list scrolls, as {@link UiMetrics#SCROLL_FRAME}.
+ * Frames longer than the refresh interval are the ones users see as stutter.
+ *
+ * Frames are observed through the Choreographer, so nothing is recorded before API 16.
+ */
+public class ScrollFrameMonitor implements AbsListView.OnScrollListener {
+
+    // Null before API 16
+    private final FrameRecorder recorder =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new FrameRecorder() : null;
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        if (scrollState == SCROLL_STATE_IDLE) {
+            recorder.stop();
+        } else {
+            recorder.start();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameRecorder implements Choreographer.FrameCallback {
+
+        // Time of the previous frame, -1 until the first one and 0 while stopped
+        private long lastFrameNanos;
+
+        void start() {
+            if (lastFrameNanos == 0) {
+                lastFrameNanos = -1;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        void stop() {
+            lastFrameNanos = 0;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // The first frame only sets the start, the scroll began somewhere before it
+            if (lastFrameNanos > 0) {
+                UiMetrics.record(UiMetrics.SCROLL_FRAME, frameTimeNanos - lastFrameNanos);
+            }
+            lastFrameNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+}
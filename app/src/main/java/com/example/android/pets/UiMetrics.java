@@ -0,0 +1,101 @@
+package com.example.android.pets;
+
+import android.support.v4.os.TraceCompat;
+import android.util.SparseArray;
+
+/**
+ * Timings of the UI: how long loaders take, how long the adapter takes per row and how
+ * long frames take while the catalog scrolls.
+ *
+ * Synchronous work is timed as a trace section as well, so it lines up with the
+ * provider's work in a systrace. Every timing is handed to the {@link Sink}, which by
+ * default is a {@link UiMetricsSummary} aggregating them in memory. Metric names stay the
+ * same across builds, so their summaries can be compared.
+ */
+public final class UiMetrics {
+
+    // Metric names. Loader metrics are LOADER_PREFIX + screen + "." + loader.
+    public static final String LOADER_PREFIX = "loader.";
+    public static final String NEW_VIEW = "adapter.newView";
+    public static final String BIND_VIEW = "adapter.bindView";
+    public static final String SWAP_CURSOR = "adapter.swapCursor";
+    public static final String SCROLL_FRAME = "catalog.scrollFrame";
+
+    /**
+     * Receives the timings, on the thread that measured them.
+     */
+    public interface Sink {
+        void record(String metric, long nanos);
+    }
+
+    private static volatile Sink sink = new UiMetricsSummary();
+
+    private UiMetrics() {
+    }
+
+    /**
+     * Replaces the sink, for example to send the timings to a monitoring service.
+     */
+    public static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    public static Sink getSink() {
+        return sink;
+    }
+
+    /**
+     * Starts timing a section of synchronous work. Sections must be ended on the same
+     * thread, innermost first.
+     *
+     * @return Start time to pass to {@link #end(String, long)}
+     */
+    public static long begin(String metric) {
+        TraceCompat.beginSection(metric);
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the section begun last and records its time.
+     */
+    public static void end(String metric, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        TraceCompat.endSection();
+        sink.record(metric, nanos);
+    }
+
+    /**
+     * Records a time measured elsewhere, like the time between two frames.
+     */
+    public static void record(String metric, long nanos) {
+        sink.record(metric, nanos);
+    }
+
+    /**
+     * Times the loaders of a screen from onCreateLoader() to onLoadFinished(). Reloads of
+     * a loader whose content changed are not timed, since they do not go through
+     * onCreateLoader(). Must be used on the main thread.
+     */
+    public static final class LoaderTimer {
+
+        private final String screen;
+        private final SparseArray<Long> starts = new SparseArray<>();
+
+        public LoaderTimer(String screen) {
+            this.screen = screen;
+        }
+
+        public void started(int loaderId) {
+            starts.put(loaderId, System.nanoTime());
+        }
+
+        public void finished(int loaderId, String loader) {
+            Long start = starts.get(loaderId);
+            if (start == null) {
+                return;
+            }
+            starts.remove(loaderId);
+            record(LOADER_PREFIX + screen + "." + loader, System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.android.pets;
+
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Default {@link UiMetrics.Sink}, keeping the latest {@link #WINDOW_SIZE} timings of each
+ * metric in memory and summarizing them as percentiles.
+ *
+ * The window bounds the memory and keeps old screens from hiding a recent regression.
+ * Percentiles are computed the same way in every build, so summaries taken on the same
+ * device before and after a change can be compared line by line.
+ */
+public class UiMetricsSummary implements UiMetrics.Sink {
+
+    // Timings kept per metric
+    private static final int WINDOW_SIZE = 2048;
+
+    // Metrics by name, in name order so summaries list them the same way every time
+    private final Map<String, Window> windows = new TreeMap<>();
+
+    @Override
+    public synchronized void record(String metric, long nanos) {
+        Window window = windows.get(metric);
+        if (window == null) {
+            window = new Window();
+            windows.put(metric, window);
+        }
+        window.add(nanos);
+    }
+
+    /**
+     * Forgets all timings, to measure one scenario on its own.
+     */
+    public synchronized void reset() {
+        windows.clear();
+    }
+
+    /**
+     * Returns the summary as text, one line per metric with its count and percentiles in
+     * microseconds, after a line naming the build and device it was taken on.
+     */
+    public synchronized String summarize() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("build=").append(BuildConfig.VERSION_NAME)
+                .append(" (").append(BuildConfig.VERSION_CODE).append(", ")
+                .append(BuildConfig.BUILD_TYPE).append(") device=").append(Build.MODEL)
+                .append(" sdk=").append(Build.VERSION.SDK_INT).append('\n');
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            long[] sorted = entry.getValue().sorted();
+            summary.append(entry.getKey())
+                    .append(" count=").append(entry.getValue().count)
+                    .append(" p50=").append(percentile(sorted, 0.5) / 1000)
+                    .append(" p90=").append(percentile(sorted, 0.9) / 1000)
+                    .append(" p99=").append(percentile(sorted, 0.99) / 1000)
+                    .append(" max=").append(percentile(sorted, 1) / 1000)
+                    .append(" us\n");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @param fraction Fraction between 0 and 1 of the sorted values
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+
+    /**
+     * Ring of the latest timings of one metric, in nanoseconds.
+     */
+    private static class Window {
+
+        final long[] values = new long[WINDOW_SIZE];
+        // Timings recorded in total, including those the ring dropped
+        long count;
+
+        void add(long value) {
+            values[(int) (count % WINDOW_SIZE)] = value;
+            count++;
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, (int) Math.min(count, WINDOW_SIZE));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
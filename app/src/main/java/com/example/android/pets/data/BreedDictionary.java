@@ -0,0 +1,233 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.util.LongSparseArray;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.example.android.pets.data.PetDbHelper.BREEDS_TABLE_NAME;
+import static com.example.android.pets.data.PetDbHelper.COLUMN_BREED_NAME;
+import static com.example.android.pets.data.PetDbHelper.UNKNOWN_BREED_ID;
+
+/**
+ * In-memory cache of the breeds lookup table, mapping breed IDs to names and back.
+ *
+ * Breeds are never deleted, so once an ID is known it stays valid. The cache only learns
+ * IDs that are committed: lookups from the writer thread inside a transaction that
+ * creates a breed go to the database, because that transaction may still roll back.
+ *
+ * When the whole table is replaced, as by a restore, the cache is bypassed between
+ * {@link #beginReplace()} and {@link #endReplace()} and forgotten afterwards.
+ */
+public class BreedDictionary {
+
+    private final PetDbHelper dbHelper;
+
+    // Guarded by this
+    private final LongSparseArray<String> namesById = new LongSparseArray<>();
+    private final Map<String, Long> idsByName = new HashMap<>();
+
+    // All breeds as of the last read of the whole table, null once a breed was added or
+    // the table replaced since. Never changed after it is built. Guarded by this.
+    private LongSparseArray<String> allNames;
+
+    // Number of replacements in progress, and replacements begun so far. Guarded by this.
+    private int replacing;
+    private int generation;
+
+    /**
+     * Constructs a new {@link BreedDictionary}
+     *
+     * @param dbHelper Helper owning the database with the breeds table
+     */
+    public BreedDictionary(PetDbHelper dbHelper) {
+        this.dbHelper = dbHelper;
+        remember(UNKNOWN_BREED_ID, "");
+    }
+
+    /**
+     * Returns the ID of a breed, adding the breed to the lookup table if it is new. Must
+     * be called inside the write transaction that stores the ID.
+     *
+     * @param name Breed name, null or empty for an unknown breed
+     */
+    long idFor(SQLiteDatabase db, String name) {
+        if (name == null) {
+            name = "";
+        }
+        Long cached = cachedId(name);
+        if (cached != null) {
+            return cached;
+        }
+
+        Long id = queryId(db, name);
+        if (id == null) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_BREED_NAME, name);
+            id = db.insertOrThrow(BREEDS_TABLE_NAME, null, values);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the ID of an existing breed, or null if there is no breed of that name.
+     * Reads committed data only, so the answer is cached.
+     */
+    Long lookupId(String name) {
+        Long cached = cachedId(name);
+        if (cached != null) {
+            return cached;
+        }
+        int queriedGeneration = generation();
+        Long id = queryId(dbHelper.getReadableDatabase(), name);
+        if (id != null) {
+            remember(id, name, queriedGeneration);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the name of a breed. Names come from the cache, so every row of the same
+     * breed shares one String instance.
+     *
+     * @throws IllegalStateException if there is no breed with the ID
+     */
+    String nameFor(long id) {
+        String name = findName(id);
+        if (name == null) {
+            throw new IllegalStateException("No breed with ID " + id);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the name of a breed, or null if there is no breed with the ID, for example
+     * because a restore replaced the breeds table since the ID was read.
+     */
+    String findName(long id) {
+        int queriedGeneration;
+        synchronized (this) {
+            String name = replacing == 0 ? namesById.get(id) : null;
+            if (name != null) {
+                return name;
+            }
+            queriedGeneration = generation;
+        }
+
+        Cursor cursor = dbHelper.getReadableDatabase().query(BREEDS_TABLE_NAME,
+                new String[]{COLUMN_BREED_NAME}, PetDbHelper.COLUMN_BREED_KEY + "=?",
+                new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String name = cursor.getString(0);
+            remember(id, name, queriedGeneration);
+            return name;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the names of all committed breeds by ID. The breeds table is small, and the
+     * result is shared until a breed is added, so it must not be changed.
+     */
+    LongSparseArray<String> allNames() {
+        int queriedGeneration;
+        synchronized (this) {
+            if (replacing == 0 && allNames != null) {
+                return allNames;
+            }
+            queriedGeneration = generation;
+        }
+
+        LongSparseArray<String> names = new LongSparseArray<>();
+        Cursor cursor = dbHelper.getReadableDatabase().query(BREEDS_TABLE_NAME,
+                new String[]{PetDbHelper.COLUMN_BREED_KEY, COLUMN_BREED_NAME}, null, null,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (replacing == 0 && queriedGeneration == generation) {
+                allNames = names;
+                for (int i = 0; i < names.size(); i++) {
+                    remember(names.keyAt(i), names.valueAt(i));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Stops using the cache until {@link #endReplace()}, because the breeds table is about
+     * to be replaced and IDs may change their meaning.
+     */
+    synchronized void beginReplace() {
+        replacing++;
+        generation++;
+        forget();
+    }
+
+    /**
+     * Resumes caching after the breeds table was replaced and the replacement committed
+     * or rolled back.
+     */
+    synchronized void endReplace() {
+        replacing--;
+        generation++;
+        forget();
+    }
+
+    private synchronized Long cachedId(String name) {
+        return replacing == 0 ? idsByName.get(name) : null;
+    }
+
+    private synchronized int generation() {
+        return generation;
+    }
+
+    private synchronized void remember(long id, String name) {
+        if (allNames != null && allNames.get(id) == null) {
+            allNames = null;
+        }
+        namesById.put(id, name);
+        idsByName.put(name, id);
+    }
+
+    /**
+     * Caches a breed read from the database, unless a replacement began or ended since
+     * the read, which may have made it stale.
+     */
+    private synchronized void remember(long id, String name, int queriedGeneration) {
+        if (replacing == 0 && queriedGeneration == generation) {
+            remember(id, name);
+        }
+    }
+
+    private void forget() {
+        allNames = null;
+        namesById.clear();
+        idsByName.clear();
+        remember(UNKNOWN_BREED_ID, "");
+    }
+
+    private static Long queryId(SQLiteDatabase db, String name) {
+        Cursor cursor = db.query(BREEDS_TABLE_NAME, new String[]{PetDbHelper.COLUMN_BREED_KEY},
+                COLUMN_BREED_NAME + "=?", new String[]{name}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
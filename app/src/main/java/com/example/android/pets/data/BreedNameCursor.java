@@ -0,0 +1,54 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.support.v4.util.LongSparseArray;
+
+/**
+ * Cursor over rows whose breed columns hold breed IDs, returning the breed names instead.
+ *
+ * The names come from the {@link BreedDictionary}, so the cursor window only holds
+ * integers and all rows of a breed share the same String. They are taken when the cursor
+ * is built, so a restore replacing the breeds table while the cursor is open does not
+ * change them. IDs that no longer name a breed read as the unknown breed.
+ */
+class BreedNameCursor extends CursorWrapper {
+
+    private final boolean[] breedColumns;
+    private final BreedDictionary breeds;
+    private final LongSparseArray<String> names;
+
+    /**
+     * @param cursor       Cursor with breed IDs
+     * @param breedColumns Whether each column of the cursor holds a breed ID
+     * @param breeds       Dictionary resolving the IDs
+     */
+    BreedNameCursor(Cursor cursor, boolean[] breedColumns, BreedDictionary breeds) {
+        super(cursor);
+        this.breedColumns = breedColumns;
+        this.breeds = breeds;
+        names = breeds.allNames();
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (!breedColumns[columnIndex]) {
+            return super.getString(columnIndex);
+        }
+        long id = super.getLong(columnIndex);
+        String name = names.get(id);
+        if (name == null) {
+            // Added after the cursor was built, and read by a later fill of the window
+            name = breeds.findName(id);
+        }
+        return name == null ? "" : name;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (breedColumns[columnIndex]) {
+            return FIELD_TYPE_STRING;
+        }
+        return super.getType(columnIndex);
+    }
+}
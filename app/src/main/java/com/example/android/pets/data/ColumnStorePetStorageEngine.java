@@ -0,0 +1,925 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+
+import com.example.android.pets.data.PetsContract.facetsEntry;
+import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.similarEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory {@link PetStorageEngine} that keeps each column of the pets table in its own
+ * array: IDs as longs, gender and weight as ints, and breed as int codes into a
+ * dictionary of distinct breed names.
+ *
+ * Filters and facet counts run as tight loops over the primitive arrays. Rows are kept
+ * in ID order, so single pet lookups are a binary search. The data is written to a
+ * snapshot file in the background at most every {@link #SNAPSHOT_INTERVAL_MS} and loaded
+ * from it on start, so writes since the last snapshot are lost if the process dies.
+ *
+ * Scans check their cancellation signal every {@link #CANCEL_CHECK_INTERVAL} rows.
+ */
+public class ColumnStorePetStorageEngine implements PetStorageEngine {
+
+    private static final String LOG_TAG = ColumnStorePetStorageEngine.class.getSimpleName();
+
+    private static final String SNAPSHOT_FILE_NAME = "pets.colstore";
+    private static final int SNAPSHOT_MAGIC = 0x50455453;
+    // Version 2 stores strings as length-prefixed UTF-8, version 1 used writeUTF(), which
+    // fails on strings over 65535 encoded bytes
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_VERSION_MODIFIED_UTF = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long SNAPSHOT_INTERVAL_MS = 30 * 1000;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Number of rows a scan visits between checks of its cancellation signal
+    private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+    // Breed code snapshots of older builds stored for a null breed. Null breeds are now
+    // stored as the empty name, the way the breeds table of SQLite stores them.
+    private static final int NO_BREED = -1;
+
+    private static final String[] ALL_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_NAME,
+            petsEntry.COLUMN_PET_BREED,
+            petsEntry.COLUMN_PET_GENDER,
+            petsEntry.COLUMN_PET_WEIGHT};
+
+    private static final Set<String> COLUMN_SET =
+            new HashSet<>(Arrays.asList(ALL_COLUMNS));
+
+    private static final String[] SIMILAR_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_NAME,
+            petsEntry.COLUMN_PET_BREED,
+            similarEntry.COLUMN_SCORE};
+
+    private static final String[] FACET_COLUMNS = {
+            facetsEntry.COLUMN_FACET,
+            facetsEntry.COLUMN_VALUE,
+            facetsEntry.COLUMN_COUNT};
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Columns, guarded by lock. Rows 0 to size - 1 are live and sorted by ID.
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] breedCodes = new int[INITIAL_CAPACITY];
+    private int[] genders = new int[INITIAL_CAPACITY];
+    private int[] weights = new int[INITIAL_CAPACITY];
+    private int size;
+    private long nextId = 1;
+
+    // Breed dictionary, guarded by lock. Codes are indexes into breedNames.
+    private final List<String> breedNames = new ArrayList<>();
+    private final Map<String, Integer> breedCodeMap = new HashMap<>();
+
+    // Whether there are changes that are not in the snapshot file yet, guarded by lock
+    private boolean dirty;
+
+    // Number of writes, counted after their lock is released
+    private final AtomicLong generation = new AtomicLong();
+
+    private final File snapshotFile;
+    private final ScheduledExecutorService snapshotExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Released once the snapshot file has been loaded
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    /**
+     * Constructs a new {@link ColumnStorePetStorageEngine} and starts loading the last
+     * snapshot in the background. Calls block until loading has finished.
+     */
+    public ColumnStorePetStorageEngine(Context context) {
+        snapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+
+        snapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadSnapshot();
+                loaded.countDown();
+            }
+        });
+        snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+            }
+        }, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Cursor query(String[] projection, String selection, String[] selectionArgs,
+                        PetFilter filter, String sortOrder, CancellationSignal signal) {
+        awaitLoaded();
+        if (projection == null) {
+            projection = ALL_COLUMNS;
+        }
+        for (String column : projection) {
+            // Pets kept in memory have no photos, the column is always null
+            if (!petsEntry.COLUMN_PET_PHOTO_VERSION.equals(column)) {
+                checkColumn(column);
+            }
+        }
+        SelectionExpression expression =
+                SelectionExpression.parse(selection, selectionArgs, COLUMN_SET);
+        List<SortKey> sortKeys = parseSortOrder(sortOrder);
+
+        lock.readLock().lock();
+        try {
+            int[] rows = findRows(expression, filter, signal);
+
+            if (!sortKeys.isEmpty()) {
+                rows = sortRows(rows, sortKeys);
+            }
+
+            MatrixCursor cursor = new MatrixCursor(projection, rows.length);
+            for (int row : rows) {
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = value(row, projection[i]);
+                }
+                cursor.addRow(values);
+            }
+            return cursor;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Cursor queryFacets(PetFilter filter, CancellationSignal signal) {
+        awaitLoaded();
+        lock.readLock().lock();
+        try {
+            FilterMatcher matcher = new FilterMatcher(filter);
+
+            int total = 0;
+            int[] genderCounts = new int[3];
+            Map<Integer, Integer> weightCounts = new HashMap<>();
+            int[] breedCounts = new int[breedNames.size()];
+
+            // One pass over the columns. Each facet ignores its own condition.
+            for (int row = 0; row < size; row++) {
+                checkCanceled(signal, row);
+                boolean gender = matcher.matchesGender(genders[row]);
+                boolean weight = matcher.matchesWeight(weights[row]);
+                boolean breed = matcher.matchesBreed(breedCodes[row]);
+
+                if (gender && weight && breed) {
+                    total++;
+                }
+                if (weight && breed) {
+                    genderCounts[genders[row]]++;
+                }
+                if (gender && breed) {
+                    int bucket = (weights[row] / facetsEntry.WEIGHT_BUCKET_SIZE)
+                            * facetsEntry.WEIGHT_BUCKET_SIZE;
+                    Integer count = weightCounts.get(bucket);
+                    weightCounts.put(bucket, count == null ? 1 : count + 1);
+                }
+                if (gender && weight) {
+                    breedCounts[breedCodes[row]]++;
+                }
+            }
+
+            MatrixCursor cursor = new MatrixCursor(FACET_COLUMNS);
+            cursor.addRow(new Object[]{facetsEntry.FACET_TOTAL, null, total});
+            for (int gender = 0; gender < genderCounts.length; gender++) {
+                if (genderCounts[gender] > 0) {
+                    cursor.addRow(new Object[]{facetsEntry.FACET_GENDER, gender,
+                            genderCounts[gender]});
+                }
+            }
+            for (Map.Entry<Integer, Integer> entry : weightCounts.entrySet()) {
+                cursor.addRow(new Object[]{facetsEntry.FACET_WEIGHT, entry.getKey(),
+                        entry.getValue()});
+            }
+            for (int code = 0; code < breedCounts.length; code++) {
+                if (breedCounts[code] > 0) {
+                    cursor.addRow(new Object[]{facetsEntry.FACET_BREED, breedNames.get(code),
+                            breedCounts[code]});
+                }
+            }
+            return cursor;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Cursor querySections(PetFilter filter, CancellationSignal signal) {
+        awaitLoaded();
+        lock.readLock().lock();
+        try {
+            FilterMatcher matcher = new FilterMatcher(filter);
+            Map<String, Integer> counts = new HashMap<>();
+            for (int row = 0; row < size; row++) {
+                checkCanceled(signal, row);
+                if (!matcher.matches(this, row)) {
+                    continue;
+                }
+                String section = PetDbHelper.nameSection(names[row]);
+                Integer count = counts.get(section);
+                counts.put(section, count == null ? 1 : count + 1);
+            }
+            return NameSections.toCursor(counts);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Trigrams are not stored, so every pet is scored. The scan is over memory and keeps
+     * only the best matches.
+     */
+    @Override
+    public Cursor querySimilar(String name, String breed, int limit, double minScore,
+                               CancellationSignal signal) {
+        awaitLoaded();
+        long[] trigrams = Trigrams.of(name, breed);
+
+        lock.readLock().lock();
+        try {
+            List<Match> matches = new ArrayList<>();
+            if (trigrams.length > 0) {
+                for (int row = 0; row < size; row++) {
+                    checkCanceled(signal, row);
+                    String rowBreed = (String) value(row, petsEntry.COLUMN_PET_BREED);
+                    double score = Trigrams.similarity(trigrams,
+                            Trigrams.of(names[row], rowBreed));
+                    if (score >= minScore) {
+                        matches.add(new Match(row, score));
+                    }
+                }
+            }
+
+            // Best first, then by ID like the SQLite engine
+            Collections.sort(matches, new Comparator<Match>() {
+                @Override
+                public int compare(Match first, Match second) {
+                    int result = Double.compare(second.score, first.score);
+                    if (result != 0) {
+                        return result;
+                    }
+                    return ids[first.row] < ids[second.row] ? -1 : 1;
+                }
+            });
+
+            MatrixCursor cursor = new MatrixCursor(SIMILAR_COLUMNS);
+            for (int i = 0; i < matches.size() && i < limit; i++) {
+                Match match = matches.get(i);
+                cursor.addRow(new Object[]{ids[match.row], names[match.row],
+                        value(match.row, petsEntry.COLUMN_PET_BREED), match.score});
+            }
+            return cursor;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long insert(ContentValues values) {
+        awaitLoaded();
+        lock.writeLock().lock();
+        try {
+            return insertLocked(values);
+        } finally {
+            lock.writeLock().unlock();
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * External IDs are not stored by this engine.
+     */
+    @Override
+    public int upsert(ContentValues[] values, List<PetChangeEvent> changes) {
+        throw new IllegalArgumentException("Upserts need SQLite storage");
+    }
+
+    @Override
+    public int bulkInsert(ContentValues[] values, List<Long> insertedIds) {
+        awaitLoaded();
+        lock.writeLock().lock();
+        try {
+            int rowsInserted = 0;
+            for (ContentValues contentValues : values) {
+                long id = insertLocked(contentValues);
+                if (id != -1) {
+                    rowsInserted++;
+                }
+                if (insertedIds != null) {
+                    insertedIds.add(id);
+                }
+            }
+            return rowsInserted;
+        } finally {
+            lock.writeLock().unlock();
+            generation.incrementAndGet();
+        }
+    }
+
+    private long insertLocked(ContentValues values) {
+        for (String column : values.keySet()) {
+            if (!COLUMN_SET.contains(column)) {
+                Log.e(LOG_TAG, "No such column: " + column);
+                return -1;
+            }
+        }
+
+        long id = nextId;
+        if (values.containsKey(petsEntry._ID)) {
+            // Explicit IDs have to keep the rows in ID order
+            Long requested = values.getAsLong(petsEntry._ID);
+            if (requested == null || requested < nextId) {
+                Log.e(LOG_TAG, "Cannot insert row with ID " + requested);
+                return -1;
+            }
+            id = requested;
+        }
+
+        ensureCapacity(size + 1);
+        ids[size] = id;
+        names[size] = values.getAsString(petsEntry.COLUMN_PET_NAME);
+        breedCodes[size] = breedCode(values.getAsString(petsEntry.COLUMN_PET_BREED));
+        genders[size] = values.getAsInteger(petsEntry.COLUMN_PET_GENDER);
+        Integer weight = values.getAsInteger(petsEntry.COLUMN_PET_WEIGHT);
+        weights[size] = weight == null ? 0 : weight;
+        size++;
+
+        nextId = id + 1;
+        dirty = true;
+        return id;
+    }
+
+    @Override
+    public int update(ContentValues values, String selection, String[] selectionArgs,
+                      List<Long> affectedIds) {
+        awaitLoaded();
+        for (String column : values.keySet()) {
+            checkColumn(column);
+        }
+        if (values.containsKey(petsEntry._ID)) {
+            throw new IllegalArgumentException("Cannot change the ID of a pet");
+        }
+        SelectionExpression expression =
+                SelectionExpression.parse(selection, selectionArgs, COLUMN_SET);
+
+        lock.writeLock().lock();
+        try {
+            int[] rows = findRows(expression, new PetFilter(), null);
+            for (int row : rows) {
+                if (values.containsKey(petsEntry.COLUMN_PET_NAME)) {
+                    names[row] = values.getAsString(petsEntry.COLUMN_PET_NAME);
+                }
+                if (values.containsKey(petsEntry.COLUMN_PET_BREED)) {
+                    breedCodes[row] = breedCode(values.getAsString(petsEntry.COLUMN_PET_BREED));
+                }
+                if (values.containsKey(petsEntry.COLUMN_PET_GENDER)) {
+                    genders[row] = values.getAsInteger(petsEntry.COLUMN_PET_GENDER);
+                }
+                if (values.containsKey(petsEntry.COLUMN_PET_WEIGHT)) {
+                    Integer weight = values.getAsInteger(petsEntry.COLUMN_PET_WEIGHT);
+                    weights[row] = weight == null ? 0 : weight;
+                }
+                if (affectedIds != null) {
+                    affectedIds.add(ids[row]);
+                }
+            }
+            if (rows.length > 0) {
+                dirty = true;
+            }
+            return rows.length;
+        } finally {
+            lock.writeLock().unlock();
+            generation.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int delete(String selection, String[] selectionArgs, List<Long> affectedIds) {
+        awaitLoaded();
+        SelectionExpression expression =
+                SelectionExpression.parse(selection, selectionArgs, COLUMN_SET);
+
+        lock.writeLock().lock();
+        try {
+            int[] rows = findRows(expression, new PetFilter(), null);
+            if (rows.length == 0) {
+                return 0;
+            }
+
+            // Compact the surviving rows in one pass, keeping them in ID order
+            int next = 0;
+            int write = 0;
+            for (int row = 0; row < size; row++) {
+                if (next < rows.length && rows[next] == row) {
+                    if (affectedIds != null) {
+                        affectedIds.add(ids[row]);
+                    }
+                    next++;
+                    continue;
+                }
+                ids[write] = ids[row];
+                names[write] = names[row];
+                breedCodes[write] = breedCodes[row];
+                genders[write] = genders[row];
+                weights[write] = weights[row];
+                write++;
+            }
+            // Drop references to the removed names
+            Arrays.fill(names, write, size, null);
+            size = write;
+            dirty = true;
+            return rows.length;
+        } finally {
+            lock.writeLock().unlock();
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the rows matching the selection and the filter, in ID order. Requires the
+     * read or write lock.
+     */
+    private int[] findRows(SelectionExpression expression, PetFilter filter,
+                           CancellationSignal signal) {
+        // Single pet lookups are a binary search over the sorted IDs
+        Long exactId = expression.exactId(petsEntry._ID);
+        if (exactId != null) {
+            int row = Arrays.binarySearch(ids, 0, size, exactId);
+            if (row < 0 || !new FilterMatcher(filter).matches(this, row)) {
+                return new int[0];
+            }
+            return new int[]{row};
+        }
+
+        FilterMatcher matcher = new FilterMatcher(filter);
+        RowView view = new RowView();
+        int[] rows = new int[16];
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            checkCanceled(signal, row);
+            // Cheap primitive checks first, the parsed selection only for survivors
+            if (!matcher.matches(this, row)) {
+                continue;
+            }
+            view.row = row;
+            if (!expression.matches(view)) {
+                continue;
+            }
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Throws if the signal was canceled, checking only every
+     * {@link #CANCEL_CHECK_INTERVAL} rows of a scan.
+     */
+    private static void checkCanceled(CancellationSignal signal, int row) {
+        if (signal != null && row % CANCEL_CHECK_INTERVAL == 0) {
+            signal.throwIfCanceled();
+        }
+    }
+
+    private int[] sortRows(int[] rows, final List<SortKey> sortKeys) {
+        // Name keys are not stored, the names are compared with a collator instead.
+        // Collators are not thread safe, so every sort gets its own.
+        final Collator collator = Collator.getInstance();
+
+        Integer[] boxed = new Integer[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            boxed[i] = rows[i];
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                for (SortKey key : sortKeys) {
+                    int result;
+                    if (key.column.equals(PetDbHelper.COLUMN_PET_NAME_KEY)) {
+                        result = collator.compare(names[first], names[second]);
+                    } else {
+                        result = compareValues(value(first, key.column),
+                                value(second, key.column));
+                    }
+                    if (result != 0) {
+                        return key.descending ? -result : result;
+                    }
+                }
+                return 0;
+            }
+        });
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            sorted[i] = boxed[i];
+        }
+        return sorted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object first, Object second) {
+        // Nulls first, as in SQLite
+        if (first == null || second == null) {
+            return first == null ? (second == null ? 0 : -1) : 1;
+        }
+        return ((Comparable<Object>) first).compareTo(second);
+    }
+
+    /**
+     * Returns the value of a column in the given row. Requires the read or write lock.
+     */
+    private Object value(int row, String column) {
+        switch (column) {
+            case petsEntry._ID:
+                return ids[row];
+            case petsEntry.COLUMN_PET_NAME:
+                return names[row];
+            case petsEntry.COLUMN_PET_BREED:
+                return breedNames.get(breedCodes[row]);
+            case petsEntry.COLUMN_PET_GENDER:
+                return genders[row];
+            case petsEntry.COLUMN_PET_WEIGHT:
+                return weights[row];
+            case petsEntry.COLUMN_PET_PHOTO_VERSION:
+                return null;
+            default:
+                throw new IllegalArgumentException("No such column: " + column);
+        }
+    }
+
+    /**
+     * Returns the dictionary code of a breed, adding it if needed. A null breed is the
+     * empty name, like in {@link BreedDictionary#idFor}. Requires the write lock.
+     */
+    private int breedCode(String breed) {
+        if (breed == null) {
+            breed = "";
+        }
+        Integer code = breedCodeMap.get(breed);
+        if (code == null) {
+            code = breedNames.size();
+            breedNames.add(breed);
+            breedCodeMap.put(breed, code);
+        }
+        return code;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, ids.length * 2);
+        ids = Arrays.copyOf(ids, newCapacity);
+        names = Arrays.copyOf(names, newCapacity);
+        breedCodes = Arrays.copyOf(breedCodes, newCapacity);
+        genders = Arrays.copyOf(genders, newCapacity);
+        weights = Arrays.copyOf(weights, newCapacity);
+    }
+
+    private static void checkColumn(String column) {
+        if (!COLUMN_SET.contains(column)) {
+            throw new IllegalArgumentException("No such column: " + column);
+        }
+    }
+
+    private void awaitLoaded() {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading pets", e);
+        }
+    }
+
+    /**
+     * Parses "column [ASC|DESC], ..." into sort keys. Collations are ignored. Besides the
+     * columns, the name key of {@link PetStorageEngine#NAME_SORT_ORDER} is accepted.
+     */
+    private static List<SortKey> parseSortOrder(String sortOrder) {
+        if (sortOrder == null || sortOrder.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SortKey> keys = new ArrayList<>();
+        for (String term : sortOrder.split(",")) {
+            String[] words = term.trim().split("\\s+");
+            if (!words[0].equals(PetDbHelper.COLUMN_PET_NAME_KEY)) {
+                checkColumn(words[0]);
+            }
+            String last = words[words.length - 1];
+            keys.add(new SortKey(words[0], words.length > 1 && last.equalsIgnoreCase("DESC")));
+        }
+        return keys;
+    }
+
+    private static final class Match {
+        final int row;
+        final double score;
+
+        Match(int row, double score) {
+            this.row = row;
+            this.score = score;
+        }
+    }
+
+    private static final class SortKey {
+        final String column;
+        final boolean descending;
+
+        SortKey(String column, boolean descending) {
+            this.column = column;
+            this.descending = descending;
+        }
+    }
+
+    /**
+     * Exposes one row to a {@link SelectionExpression} in the types SQLite would return.
+     */
+    private final class RowView implements SelectionExpression.Row {
+        int row;
+
+        @Override
+        public Object get(String column) {
+            Object value = value(row, column);
+            return value instanceof Integer ? Long.valueOf((Integer) value) : value;
+        }
+    }
+
+    /**
+     * Evaluates a {@link PetFilter} against the primitive columns.
+     */
+    private final class FilterMatcher {
+        private final boolean[] genderAllowed;
+        private final int minWeight;
+        private final int maxWeight;
+        private final boolean[] breedAllowed;
+
+        FilterMatcher(PetFilter filter) {
+            int[] filterGenders = filter.getGenders();
+            if (filterGenders.length == 0) {
+                genderAllowed = null;
+            } else {
+                genderAllowed = new boolean[3];
+                for (int gender : filterGenders) {
+                    genderAllowed[gender] = true;
+                }
+            }
+
+            minWeight = filter.getMinWeight() == null ? Integer.MIN_VALUE : filter.getMinWeight();
+            maxWeight = filter.getMaxWeight() == null ? Integer.MAX_VALUE : filter.getMaxWeight();
+
+            String[] filterBreeds = filter.getBreeds();
+            if (filterBreeds.length == 0) {
+                breedAllowed = null;
+            } else {
+                // Breeds not in the dictionary match no row
+                breedAllowed = new boolean[breedNames.size()];
+                for (String breed : filterBreeds) {
+                    Integer code = breedCodeMap.get(breed);
+                    if (code != null) {
+                        breedAllowed[code] = true;
+                    }
+                }
+            }
+        }
+
+        boolean matchesGender(int gender) {
+            return genderAllowed == null || (gender >= 0 && gender < genderAllowed.length
+                    && genderAllowed[gender]);
+        }
+
+        boolean matchesWeight(int weight) {
+            return weight >= minWeight && weight <= maxWeight;
+        }
+
+        boolean matchesBreed(int breedCode) {
+            return breedAllowed == null || breedAllowed[breedCode];
+        }
+
+        boolean matches(ColumnStorePetStorageEngine store, int row) {
+            return matchesGender(store.genders[row]) && matchesWeight(store.weights[row])
+                    && matchesBreed(store.breedCodes[row]);
+        }
+    }
+
+    /**
+     * Writes the columns to the snapshot file if anything changed since the last one.
+     * The file is replaced atomically, so a crash never leaves a partial snapshot.
+     */
+    private void writeSnapshot() {
+        long[] idsCopy;
+        String[] namesCopy;
+        int[] breedCodesCopy;
+        int[] gendersCopy;
+        int[] weightsCopy;
+        String[] breedNamesCopy;
+        long nextIdCopy;
+
+        // Copy under the lock, write without it so writers are not held up by the disk
+        lock.writeLock().lock();
+        try {
+            if (!dirty) {
+                return;
+            }
+            idsCopy = Arrays.copyOf(ids, size);
+            namesCopy = Arrays.copyOf(names, size);
+            breedCodesCopy = Arrays.copyOf(breedCodes, size);
+            gendersCopy = Arrays.copyOf(genders, size);
+            weightsCopy = Arrays.copyOf(weights, size);
+            breedNamesCopy = breedNames.toArray(new String[breedNames.size()]);
+            nextIdCopy = nextId;
+            dirty = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(nextIdCopy);
+            out.writeInt(breedNamesCopy.length);
+            for (String breed : breedNamesCopy) {
+                writeString(out, breed);
+            }
+            out.writeInt(idsCopy.length);
+            for (long id : idsCopy) {
+                out.writeLong(id);
+            }
+            for (String name : namesCopy) {
+                writeString(out, name == null ? "" : name);
+            }
+            for (int code : breedCodesCopy) {
+                out.writeInt(code);
+            }
+            for (int gender : gendersCopy) {
+                out.writeInt(gender);
+            }
+            for (int weight : weightsCopy) {
+                out.writeInt(weight);
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(snapshotFile)) {
+                throw new IOException("Cannot rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write snapshot", e);
+            markDirty();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Already failing
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    private void markDirty() {
+        lock.writeLock().lock();
+        try {
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the columns from the snapshot file, if there is one.
+     */
+    private void loadSnapshot() {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        lock.writeLock().lock();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                Log.w(LOG_TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION && version != SNAPSHOT_VERSION_MODIFIED_UTF) {
+                Log.w(LOG_TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+            nextId = in.readLong();
+            int breedCount = in.readInt();
+            for (int code = 0; code < breedCount; code++) {
+                String breed = readString(in, version);
+                breedNames.add(breed);
+                breedCodeMap.put(breed, code);
+            }
+            int rows = in.readInt();
+            ensureCapacity(rows);
+            for (int row = 0; row < rows; row++) {
+                ids[row] = in.readLong();
+            }
+            for (int row = 0; row < rows; row++) {
+                names[row] = readString(in, version);
+            }
+            for (int row = 0; row < rows; row++) {
+                int code = in.readInt();
+                breedCodes[row] = code == NO_BREED ? breedCode(null) : code;
+            }
+            for (int row = 0; row < rows; row++) {
+                genders[row] = in.readInt();
+            }
+            for (int row = 0; row < rows; row++) {
+                weights[row] = in.readInt();
+            }
+            size = rows;
+        } catch (IOException e) {
+            // Start empty rather than with half a table
+            Log.e(LOG_TAG, "Failed to load snapshot", e);
+            size = 0;
+            nextId = 1;
+            breedNames.clear();
+            breedCodeMap.clear();
+        } finally {
+            lock.writeLock().unlock();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a string of any length as its UTF-8 byte count followed by the bytes.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}, or by writeUTF() in snapshots of
+     * version 1.
+     */
+    private static String readString(DataInputStream in, int version) throws IOException {
+        if (version == SNAPSHOT_VERSION_MODIFIED_UTF) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
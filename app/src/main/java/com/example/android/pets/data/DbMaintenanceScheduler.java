@@ -0,0 +1,439 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs database housekeeping (ANALYZE, PRAGMA optimize, WAL checkpoints and incremental
+ * vacuum) on a background thread while the provider is idle.
+ *
+ * Work is split into small steps. Each step is posted as its own message, and the
+ * scheduler backs off as soon as new traffic is reported through {@link #onDatabaseAccessed()}
+ * or {@link #onRowsWritten(int)}. The outcome of every completed run is kept as a
+ * {@link MaintenanceReport}.
+ *
+ * Free pages are released in small batches from files in incremental auto_vacuum mode, see
+ * {@link PetDbHelper#onConfigure}. Older files are switched to that mode once, with a VACUUM
+ * rewriting the whole file, as soon as they hold enough free pages to be worth it. No other
+ * step rewrites or scans the whole file. SQLite versions before 3.32 ignore the analysis
+ * limit, so there the statistics are gathered one table at a time within the step budget.
+ */
+public class DbMaintenanceScheduler {
+
+    private static final String LOG_TAG = DbMaintenanceScheduler.class.getSimpleName();
+
+    // How long the provider has to be quiet before maintenance starts or resumes
+    private static final long IDLE_DELAY_MS = 30 * 1000;
+
+    // Minimum time between two maintenance runs, unless a lot of rows were written
+    private static final long RUN_INTERVAL_MS = 6 * 60 * 60 * 1000;
+
+    // Number of written rows after which a run is due regardless of the interval
+    private static final int WRITE_THRESHOLD = 10000;
+
+    // Time budget for a single incremental vacuum or analyze step
+    private static final long STEP_BUDGET_MS = 50;
+
+    // Number of free pages released by one PRAGMA incremental_vacuum call
+    private static final int VACUUM_PAGES_PER_CALL = 64;
+
+    // Free pages a file outside incremental auto_vacuum mode needs before it is switched
+    // to that mode, 4 MB with the default page size
+    private static final int CONVERT_MIN_FREE_PAGES = 1024;
+
+    // Limit on the rows ANALYZE samples per index so it stays short on big tables.
+    // Only known from SQLite 3.32 on.
+    private static final int ANALYSIS_LIMIT = 400;
+
+    // Value of PRAGMA auto_vacuum for incremental mode
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Steps of a maintenance run, in the order they are executed
+    private static final int STEP_ANALYZE = 0;
+    private static final int STEP_OPTIMIZE = 1;
+    private static final int STEP_CHECKPOINT = 2;
+    private static final int STEP_VACUUM = 3;
+    private static final int STEP_DONE = 4;
+
+    private final SQLiteOpenHelper helper;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // Set while a run is scheduled or in progress
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    // Number of callers keeping maintenance from writing to the database file
+    private final AtomicInteger fileHolds = new AtomicInteger();
+
+    // Held by the maintenance thread while it executes a step
+    private final Object stepLock = new Object();
+
+    // Uptime of the last query or write reported by the provider
+    private volatile long lastActivity;
+
+    // Rows written since the last completed run started
+    private final AtomicInteger rowsWrittenSinceRun = new AtomicInteger();
+
+    // State below is only touched on the maintenance thread
+    private long lastCompletedRun;
+    private int rowsWrittenAtRunStart;
+    private int nextStep = STEP_ANALYZE;
+    // Tables still to analyze in this run, on SQLite versions without an analysis limit
+    private List<String> tablesToAnalyze;
+    private MaintenanceReport currentReport;
+    private volatile MaintenanceReport lastReport;
+
+    /**
+     * Constructs a new {@link DbMaintenanceScheduler}
+     *
+     * @param helper The helper owning the database to maintain
+     */
+    public DbMaintenanceScheduler(SQLiteOpenHelper helper) {
+        this.helper = helper;
+        thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Records that the database was read. Postpones any running maintenance step.
+     */
+    public void onDatabaseAccessed() {
+        lastActivity = SystemClock.uptimeMillis();
+        schedule(IDLE_DELAY_MS);
+    }
+
+    /**
+     * Records that rows were inserted, updated or deleted.
+     *
+     * @param rows Number of rows affected by the write
+     */
+    public void onRowsWritten(int rows) {
+        int written = rowsWrittenSinceRun.addAndGet(rows);
+        onDatabaseAccessed();
+        if (written >= WRITE_THRESHOLD && written - rows < WRITE_THRESHOLD) {
+            // A run may be waiting out the interval
+            handler.post(bringRunForward);
+        }
+    }
+
+    /**
+     * @return The report of the last completed maintenance run, or null if none has
+     * completed since the process started
+     */
+    public MaintenanceReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Keeps maintenance from checkpointing or vacuuming, so the database file does not
+     * change while it is being copied. Waits for a step in progress to finish. Every call
+     * must be followed by a call to {@link #releaseFileChanges()}.
+     */
+    public void holdFileChanges() {
+        fileHolds.incrementAndGet();
+        synchronized (stepLock) {
+            // A step that started before the hold is done once the lock is free
+        }
+    }
+
+    /**
+     * Lets maintenance write to the database file again.
+     */
+    public void releaseFileChanges() {
+        fileHolds.decrementAndGet();
+    }
+
+    /**
+     * Stops the maintenance thread. Any step in progress finishes first.
+     */
+    public void shutdown() {
+        handler.removeCallbacks(runStep);
+        thread.quit();
+    }
+
+    // Synchronized with bringRunForward, so runStep is never posted twice
+    private synchronized void schedule(long delayMs) {
+        if (pending.compareAndSet(false, true)) {
+            handler.postDelayed(runStep, delayMs);
+        }
+    }
+
+    /**
+     * Moves a run that waits for the interval to the next idle period, once enough rows
+     * were written. Runs on the maintenance thread, so no step is in progress.
+     */
+    private final Runnable bringRunForward = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DbMaintenanceScheduler.this) {
+                if (pending.get() && currentReport == null) {
+                    handler.removeCallbacks(runStep);
+                    handler.postDelayed(runStep, IDLE_DELAY_MS);
+                }
+            }
+        }
+    };
+
+    private final Runnable runStep = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+
+            // Back off until the provider has been idle long enough
+            long idleFor = now - lastActivity;
+            if (idleFor < IDLE_DELAY_MS) {
+                if (currentReport != null) {
+                    currentReport.backoffs++;
+                }
+                handler.postDelayed(this, IDLE_DELAY_MS - idleFor);
+                return;
+            }
+
+            if (currentReport == null) {
+                // Only start a new run when one is due
+                long sinceLastRun = now - lastCompletedRun;
+                if (lastCompletedRun != 0 && sinceLastRun < RUN_INTERVAL_MS
+                        && rowsWrittenSinceRun.get() < WRITE_THRESHOLD) {
+                    handler.postDelayed(this, RUN_INTERVAL_MS - sinceLastRun);
+                    return;
+                }
+                currentReport = new MaintenanceReport();
+                rowsWrittenAtRunStart = rowsWrittenSinceRun.get();
+                nextStep = STEP_ANALYZE;
+                tablesToAnalyze = null;
+            }
+
+            long stepStart = SystemClock.uptimeMillis();
+            synchronized (stepLock) {
+                if (fileHolds.get() > 0) {
+                    // The file is being copied, try again later
+                    currentReport.backoffs++;
+                    handler.postDelayed(this, IDLE_DELAY_MS);
+                    return;
+                }
+                try {
+                    SQLiteDatabase db = helper.getWritableDatabase();
+                    if (runNextStep(db, currentReport)) {
+                        nextStep++;
+                    }
+                } catch (SQLiteException e) {
+                    // A failing step should not stop the remaining ones
+                    Log.e(LOG_TAG, "Maintenance step " + nextStep + " failed", e);
+                    nextStep++;
+                }
+            }
+            currentReport.durationMs += SystemClock.uptimeMillis() - stepStart;
+
+            if (nextStep < STEP_DONE) {
+                // Yield between steps. If traffic arrived meanwhile, the next call backs off.
+                handler.post(this);
+                return;
+            }
+
+            lastCompletedRun = SystemClock.uptimeMillis();
+            // Writes made during the run count towards the next one
+            rowsWrittenSinceRun.addAndGet(-rowsWrittenAtRunStart);
+            lastReport = currentReport;
+            currentReport = null;
+            Log.i(LOG_TAG, "Maintenance finished: " + lastReport);
+            pending.set(false);
+        }
+    };
+
+    /**
+     * Executes the current step of the run.
+     *
+     * @return true if the step is complete, false if it has more work left
+     */
+    private boolean runNextStep(SQLiteDatabase db, MaintenanceReport report) {
+        switch (nextStep) {
+            case STEP_ANALYZE:
+                if (PetDbHelper.isSqliteVersionAtLeast(db, 3, 32)) {
+                    readPragma(db, "PRAGMA analysis_limit=" + ANALYSIS_LIMIT);
+                    db.execSQL("ANALYZE");
+                    report.analyzed = true;
+                    return true;
+                }
+                return analyzeTables(db, report);
+            case STEP_OPTIMIZE:
+                // Before 3.32 this could run an unlimited ANALYZE, and the statistics were
+                // just gathered table by table anyway
+                if (PetDbHelper.isSqliteVersionAtLeast(db, 3, 32)) {
+                    readPragma(db, "PRAGMA optimize");
+                    report.optimized = true;
+                }
+                return true;
+            case STEP_CHECKPOINT:
+                checkpoint(db, report);
+                return true;
+            case STEP_VACUUM:
+                return incrementalVacuum(db, report);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Analyzes the tables one by one until all are done or the step budget is spent. Each
+     * table still takes a full scan of its indexes, but the steps in between yield to
+     * provider traffic.
+     *
+     * @return true once every table was analyzed
+     */
+    private boolean analyzeTables(SQLiteDatabase db, MaintenanceReport report) {
+        if (tablesToAnalyze == null) {
+            tablesToAnalyze = new ArrayList<>();
+            Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'" +
+                    " AND name NOT LIKE 'sqlite_%' AND name <> 'android_metadata'", null);
+            try {
+                while (cursor.moveToNext()) {
+                    tablesToAnalyze.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        long deadline = SystemClock.uptimeMillis() + STEP_BUDGET_MS;
+        while (!tablesToAnalyze.isEmpty() && SystemClock.uptimeMillis() < deadline) {
+            // Table names come from sqlite_master, quoting them keeps the SQL valid
+            String table = tablesToAnalyze.remove(tablesToAnalyze.size() - 1);
+            db.execSQL("ANALYZE \"" + table.replace("\"", "\"\"") + "\"");
+        }
+        report.analyzed = tablesToAnalyze.isEmpty();
+        return report.analyzed;
+    }
+
+    /**
+     * Copies committed WAL frames back into the database file without waiting on
+     * readers or writers.
+     */
+    private void checkpoint(SQLiteDatabase db, MaintenanceReport report) {
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            if (cursor.moveToFirst()) {
+                // Columns are: busy, frames in the log, frames checkpointed.
+                // Both frame counts are -1 when the database is not in WAL mode.
+                int logFrames = cursor.getInt(1);
+                int checkpointed = cursor.getInt(2);
+                report.checkpointedFrames = Math.max(checkpointed, 0);
+                report.walFramesRemaining = Math.max(logFrames - checkpointed, 0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Releases free pages in small batches until none are left or the step budget is spent.
+     * A file not in incremental auto_vacuum mode is switched to it with a VACUUM once it
+     * holds {@link #CONVERT_MIN_FREE_PAGES}, which releases all its free pages at once.
+     * That happens at most once per file, for files created before the mode was set or on
+     * API 15, and for files that a schema migration left full of free pages.
+     *
+     * @return true once the free list is empty
+     */
+    private boolean incrementalVacuum(SQLiteDatabase db, MaintenanceReport report) {
+        long pageSize = readPragma(db, "PRAGMA page_size");
+        if (readPragma(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            long free = readPragma(db, "PRAGMA freelist_count");
+            if (free >= CONVERT_MIN_FREE_PAGES) {
+                // The mode only takes effect with a VACUUM, which must run outside of a
+                // transaction. Writers wait for it, but only this once.
+                db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+                db.execSQL("VACUUM");
+                report.convertedToIncremental = true;
+                long remaining = readPragma(db, "PRAGMA freelist_count");
+                report.pagesReclaimed += free - remaining;
+                report.bytesReclaimed += (free - remaining) * pageSize;
+                free = remaining;
+            }
+            report.freePagesRemaining = free;
+            return true;
+        }
+
+        long deadline = SystemClock.uptimeMillis() + STEP_BUDGET_MS;
+        long free = readPragma(db, "PRAGMA freelist_count");
+        while (free > 0 && SystemClock.uptimeMillis() < deadline) {
+            readPragma(db, "PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_CALL + ")");
+            long remaining = readPragma(db, "PRAGMA freelist_count");
+            report.pagesReclaimed += free - remaining;
+            report.bytesReclaimed += (free - remaining) * pageSize;
+            free = remaining;
+        }
+        report.freePagesRemaining = free;
+        return free == 0;
+    }
+
+    /**
+     * Runs a pragma to completion and returns the first column of its first row, or -1 if
+     * it returned no rows.
+     */
+    private static long readPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Outcome of a single maintenance run.
+     */
+    public static class MaintenanceReport {
+
+        // Wall clock time the run started at
+        public final long startedAt = System.currentTimeMillis();
+
+        // Time spent executing steps, excluding the time spent backing off
+        public long durationMs;
+
+        // Number of times the run yielded to provider traffic
+        public int backoffs;
+
+        public boolean analyzed;
+        public boolean optimized;
+
+        // WAL frames copied into the database file, and frames still left in the log
+        public int checkpointedFrames;
+        public int walFramesRemaining;
+
+        // Whether the file was switched to incremental auto_vacuum mode by a full VACUUM
+        public boolean convertedToIncremental;
+
+        // Space returned to the file system by vacuuming
+        public long pagesReclaimed;
+        public long bytesReclaimed;
+
+        // Free pages still held by the file when the run ended
+        public long freePagesRemaining;
+
+        @Override
+        public String toString() {
+            return "MaintenanceReport{durationMs=" + durationMs
+                    + ", backoffs=" + backoffs
+                    + ", analyzed=" + analyzed
+                    + ", optimized=" + optimized
+                    + ", checkpointedFrames=" + checkpointedFrames
+                    + ", walFramesRemaining=" + walFramesRemaining
+                    + ", convertedToIncremental=" + convertedToIncremental
+                    + ", pagesReclaimed=" + pagesReclaimed
+                    + ", bytesReclaimed=" + bytesReclaimed
+                    + ", freePagesRemaining=" + freePagesRemaining + "}";
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Funnels all writes to the database through one dedicated writer thread with group
+ * commit.
+ *
+ * Writes that arrive within {@link #BATCH_WINDOW_MS} of the first queued write, up to
+ * {@link #MAX_BATCH_SIZE} of them, run in a single transaction and so share one commit
+ * and one sync. Callers block in {@link #execute(Write)} until their write is committed
+ * and get back their own result, or their own exception.
+ *
+ * If a write in a batch throws, the whole transaction is rolled back and every write of
+ * the batch is run again in a transaction of its own. Only the caller of the failing
+ * write sees the exception.
+ */
+public class GroupCommitWriter {
+
+    private static final String LOG_TAG = GroupCommitWriter.class.getSimpleName();
+
+    // How long the writer waits for more writes to join a batch
+    private static final long BATCH_WINDOW_MS = 2;
+
+    // Maximum number of writes sharing one transaction
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /**
+     * A unit of work run on the writer thread, inside a transaction.
+     *
+     * Writes may be run more than once if their batch is rolled back, so they must not
+     * have side effects outside the database before they return.
+     */
+    public interface Write<T> {
+        T apply(SQLiteDatabase db);
+    }
+
+    private final SQLiteOpenHelper helper;
+    private final BlockingQueue<Request<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    private volatile boolean shutdown;
+
+    // Number of committed transactions that changed the pets table
+    private final AtomicLong generation = new AtomicLong();
+
+    // Whether a write of the running transaction changed the pets table. Writer thread only.
+    private boolean petsChanged;
+
+    // Writes taken off the queue, the time they spent queued before their batch started,
+    // and the time batches spent waiting for the database lock to begin their transaction
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong lockWaitNanos = new AtomicLong();
+
+    /**
+     * Constructs a new {@link GroupCommitWriter} and starts its writer thread
+     *
+     * @param helper The helper owning the database to write to
+     */
+    public GroupCommitWriter(SQLiteOpenHelper helper) {
+        this.helper = helper;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, LOG_TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a write on the writer thread and waits until it is committed.
+     *
+     * @return The result of the write
+     * @throws RuntimeException the exception thrown by the write, or by the commit
+     */
+    public <T> T execute(Write<T> write) {
+        if (shutdown) {
+            throw new IllegalStateException("Writer has been shut down");
+        }
+        Request<T> request = new Request<>(write);
+        queue.add(request);
+        if (shutdown && queue.remove(request)) {
+            // The writer thread stopped before it could see the request
+            throw new IllegalStateException("Writer has been shut down");
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                request.done.await();
+                break;
+            } catch (InterruptedException e) {
+                // The write may already be committed, so it has to be waited for
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (request.error != null) {
+            throw request.error;
+        }
+        return request.result;
+    }
+
+    /**
+     * Returns the number of committed transactions that changed the pets table, see
+     * {@link #markPetsChanged()}. It grows after a commit and before the callers of the
+     * committed writes return, so a value read before a query of the pets started changes
+     * once the query may be stale. Writes to other tables leave it as it is.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Records that the running write changed rows of the pets table, including the summary
+     * columns triggers maintain. Only called from {@link Write#apply}; the mark is dropped
+     * if the transaction rolls back.
+     */
+    public void markPetsChanged() {
+        if (Thread.currentThread() != thread) {
+            throw new IllegalStateException("Not called from a write");
+        }
+        petsChanged = true;
+    }
+
+    /**
+     * Returns the number of writes run so far, including failed ones.
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Returns the total time writes waited in the queue for the writer thread and for the
+     * batch window, in nanoseconds.
+     */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos.get();
+    }
+
+    /**
+     * Returns the total time transactions waited to begin, in nanoseconds: for the
+     * primary connection while others use it, like the maintenance thread, and for the
+     * write lock of the file.
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.get();
+    }
+
+    /**
+     * Stops the writer thread. Writes still queued fail with an
+     * {@link IllegalStateException}.
+     */
+    public void shutdown() {
+        shutdown = true;
+        thread.interrupt();
+    }
+
+    private void writeLoop() {
+        List<Request<?>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (!shutdown) {
+                batch.add(queue.take());
+
+                // Give concurrent writers a short window to join the batch
+                long deadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long remaining = deadline - System.nanoTime();
+                    Request<?> next = remaining > 0
+                            ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commitBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shut down
+        } finally {
+            batch.addAll(queue);
+            queue.clear();
+            for (Request<?> request : batch) {
+                if (request.done.getCount() > 0) {
+                    request.error = new IllegalStateException("Writer has been shut down");
+                    request.done.countDown();
+                }
+            }
+        }
+    }
+
+    private void commitBatch(List<Request<?>> batch) {
+        long startNanos = System.nanoTime();
+        for (Request<?> request : batch) {
+            queueWaitNanos.addAndGet(startNanos - request.queuedAtNanos);
+        }
+        writeCount.addAndGet(batch.size());
+
+        RuntimeException failure = runInTransaction(batch);
+
+        if (failure != null && batch.size() > 1) {
+            // Find out which write failed by running each on its own
+            Log.w(LOG_TAG, "Batch of " + batch.size() + " writes failed, retrying one by one",
+                    failure);
+            for (Request<?> request : batch) {
+                request.error = runInTransaction(
+                        Collections.<Request<?>>singletonList(request));
+                request.done.countDown();
+            }
+            return;
+        }
+
+        for (Request<?> request : batch) {
+            request.error = failure;
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * Runs the writes in one transaction.
+     *
+     * @return null if the transaction committed, otherwise the exception that made it roll
+     * back
+     */
+    private RuntimeException runInTransaction(List<Request<?>> requests) {
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            long beginNanos = System.nanoTime();
+            db.beginTransactionNonExclusive();
+            lockWaitNanos.addAndGet(System.nanoTime() - beginNanos);
+            petsChanged = false;
+            try {
+                for (Request<?> request : requests) {
+                    request.run(db);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (petsChanged) {
+                generation.incrementAndGet();
+            }
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    /**
+     * A queued write together with its outcome. The outcome is published to the caller
+     * by counting down {@link #done}.
+     */
+    private static final class Request<T> {
+        final Write<T> write;
+        final CountDownLatch done = new CountDownLatch(1);
+        final long queuedAtNanos = System.nanoTime();
+        T result;
+        RuntimeException error;
+
+        Request(Write<T> write) {
+            this.write = write;
+        }
+
+        void run(SQLiteDatabase db) {
+            result = write.apply(db);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetsContract.petsEntry;
+
+import java.text.Collator;
+
+/**
+ * Cursor over the rows of two cursors of pets, both in the order of
+ * {@link PetStorageEngine#NAME_SORT_ORDER}, merged into that order.
+ *
+ * Names are compared with a collator, the way their name keys compare, and the ID breaks
+ * ties. The order is computed when the cursor is built, the values are read from the two
+ * cursors as rows are visited. Both cursors need the name and ID columns, but only the
+ * given columns are exposed.
+ */
+class NameMergeCursor extends AbstractCursor {
+
+    private final Cursor[] cursors;
+    private final String[] columnNames;
+    // Index of every exposed column in each of the cursors
+    private final int[][] columnIndexes;
+
+    // Cursor and position in it of every row
+    private final byte[] rowCursors;
+    private final int[] rowPositions;
+
+    private Cursor current;
+    private int[] currentIndexes;
+
+    /**
+     * @param first       Cursor sorted by name, whose rows come first among equal ones
+     * @param second      Cursor sorted by name
+     * @param columnNames Columns exposed, all present in both cursors
+     */
+    NameMergeCursor(Cursor first, Cursor second, String[] columnNames) {
+        cursors = new Cursor[]{first, second};
+        this.columnNames = columnNames;
+        columnIndexes = new int[cursors.length][columnNames.length];
+        for (int c = 0; c < cursors.length; c++) {
+            for (int i = 0; i < columnNames.length; i++) {
+                columnIndexes[c][i] = cursors[c].getColumnIndexOrThrow(columnNames[i]);
+            }
+        }
+
+        int firstCount = first.getCount();
+        int secondCount = second.getCount();
+        rowCursors = new byte[firstCount + secondCount];
+        rowPositions = new int[rowCursors.length];
+
+        Collator collator = Collator.getInstance();
+        int firstName = first.getColumnIndexOrThrow(petsEntry.COLUMN_PET_NAME);
+        int firstId = first.getColumnIndexOrThrow(petsEntry._ID);
+        int secondName = second.getColumnIndexOrThrow(petsEntry.COLUMN_PET_NAME);
+        int secondId = second.getColumnIndexOrThrow(petsEntry._ID);
+        int a = 0;
+        int b = 0;
+        for (int row = 0; row < rowCursors.length; row++) {
+            boolean takeFirst;
+            if (b == secondCount) {
+                takeFirst = true;
+            } else if (a == firstCount) {
+                takeFirst = false;
+            } else {
+                first.moveToPosition(a);
+                second.moveToPosition(b);
+                int result = collator.compare(first.getString(firstName),
+                        second.getString(secondName));
+                takeFirst = result < 0
+                        || (result == 0 && first.getLong(firstId) <= second.getLong(secondId));
+            }
+            rowCursors[row] = (byte) (takeFirst ? 0 : 1);
+            rowPositions[row] = takeFirst ? a++ : b++;
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return rowCursors.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int c = rowCursors[newPosition];
+        current = cursors[c];
+        currentIndexes = columnIndexes[c];
+        return current.moveToPosition(rowPositions[newPosition]);
+    }
+
+    @Override
+    public String getString(int column) {
+        return current.getString(currentIndexes[column]);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return current.getShort(currentIndexes[column]);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return current.getInt(currentIndexes[column]);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return current.getLong(currentIndexes[column]);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return current.getFloat(currentIndexes[column]);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return current.getDouble(currentIndexes[column]);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return current.getBlob(currentIndexes[column]);
+    }
+
+    @Override
+    public int getType(int column) {
+        return current.getType(currentIndexes[column]);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return current.isNull(currentIndexes[column]);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Cursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+}
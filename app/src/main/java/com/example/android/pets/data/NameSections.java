@@ -0,0 +1,75 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.pets.data.PetsContract.sectionsEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders name section counts the way {@link PetStorageEngine#NAME_SORT_ORDER} orders
+ * the names.
+ */
+final class NameSections {
+
+    private static final String[] COLUMNS = {
+            sectionsEntry.COLUMN_SECTION,
+            sectionsEntry.COLUMN_COUNT};
+
+    private NameSections() {}
+
+    /**
+     * Returns a cursor with one row per section, in name order.
+     *
+     * Sections whose labels the current locale treats as the same letter, such as "A"
+     * and "Ä" in German, hold interleaved names and are merged into one.
+     *
+     * @param counts Number of pets per section label
+     */
+    static Cursor toCursor(final Map<String, Integer> counts) {
+        final Collator letters = Collator.getInstance();
+        letters.setStrength(Collator.PRIMARY);
+        final Collator labels = Collator.getInstance();
+
+        List<String> sections = new ArrayList<>(counts.keySet());
+        Collections.sort(sections, new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                // Names not starting with a letter sort before all letters
+                boolean firstOther = sectionsEntry.SECTION_OTHER.equals(first);
+                boolean secondOther = sectionsEntry.SECTION_OTHER.equals(second);
+                if (firstOther || secondOther) {
+                    return firstOther == secondOther ? 0 : (firstOther ? -1 : 1);
+                }
+                int result = letters.compare(first, second);
+                return result != 0 ? result : labels.compare(first, second);
+            }
+        });
+
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, sections.size());
+        String current = null;
+        int count = 0;
+        for (String section : sections) {
+            if (current != null && !sectionsEntry.SECTION_OTHER.equals(current)
+                    && letters.compare(current, section) == 0) {
+                count += counts.get(section);
+                continue;
+            }
+            if (current != null) {
+                cursor.addRow(new Object[]{current, count});
+            }
+            current = section;
+            count = counts.get(section);
+        }
+        if (current != null) {
+            cursor.addRow(new Object[]{current, count});
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,624 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.v4.os.CancellationSignal;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetsContract.kennelAssignmentsEntry;
+import com.example.android.pets.data.PetsContract.kennelsEntry;
+import com.example.android.pets.data.PetsContract.medicalRecordsEntry;
+import com.example.android.pets.data.PetsContract.petsEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cold tier of the pets: moves pets that have not been written for a while out of the pets
+ * table into the {@link PetArchiveDbHelper} database, and queries them there.
+ *
+ * The pets table, its indexes and its counts only hold active pets, so the catalog does
+ * not slow down as history grows. Archiving runs on a background thread in batches of
+ * {@link #BATCH_SIZE}. Each batch is first committed to the archive and then deleted from
+ * the pets table in one short write, so a pet written to in between stays active. The rows
+ * related to the pets are copied with them, since deleting a pet deletes them too. If the
+ * process dies between the two commits, the pet is in both databases until the next run
+ * archives it again.
+ */
+public class PetArchive {
+
+    private static final String LOG_TAG = PetArchive.class.getSimpleName();
+
+    // Pets moved per batch, and the pause between batches
+    private static final int BATCH_SIZE = 200;
+    private static final long BATCH_PAUSE_MS = 100;
+
+    // Delay of the first run after start, and the time between runs
+    private static final long FIRST_RUN_DELAY_MS = 60 * 1000;
+    private static final long RUN_INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+    // File in the files directory that exists while the archive may hold copies of pets
+    // that are in the pets table
+    private static final String ACTIVE_COPIES_MARKER = "archive_active_copies";
+
+    private static final String[] ALL_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_NAME,
+            petsEntry.COLUMN_PET_BREED,
+            petsEntry.COLUMN_PET_GENDER,
+            petsEntry.COLUMN_PET_WEIGHT};
+
+    // Columns of the pets table copied to the archive
+    private static final String[] ARCHIVED_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_NAME,
+            PetDbHelper.COLUMN_PET_NAME_KEY,
+            PetDbHelper.COLUMN_PET_BREED_ID,
+            petsEntry.COLUMN_PET_GENDER,
+            petsEntry.COLUMN_PET_WEIGHT,
+            PetDbHelper.COLUMN_PET_LAST_ACTIVE,
+            petsEntry.COLUMN_PET_EXTERNAL_ID,
+            petsEntry.COLUMN_PET_VISIT_COUNT,
+            petsEntry.COLUMN_PET_LAST_VISIT,
+            petsEntry.COLUMN_PET_KENNEL,
+            petsEntry.COLUMN_PET_PHOTO_VERSION};
+
+    // Queries reading the rows related to a batch, by the archive table they are copied to.
+    // The placeholder is replaced with the IDs of the pets.
+    private static final String[][] RELATED_QUERIES = {
+            {PetArchiveDbHelper.MEDICAL_RECORDS_TABLE_NAME,
+                    "SELECT " + medicalRecordsEntry.COLUMN_PET_ID + ", " +
+                    medicalRecordsEntry.COLUMN_VISITED_AT + ", " +
+                    medicalRecordsEntry.COLUMN_DESCRIPTION +
+                    " FROM " + medicalRecordsEntry.TABLE_NAME +
+                    " WHERE " + medicalRecordsEntry.COLUMN_PET_ID + " IN (%s)"},
+            {PetArchiveDbHelper.KENNEL_ASSIGNMENTS_TABLE_NAME,
+                    "SELECT a." + kennelAssignmentsEntry.COLUMN_PET_ID + ", " +
+                    "a." + kennelAssignmentsEntry.COLUMN_KENNEL_ID + ", " +
+                    "k." + kennelsEntry.COLUMN_KENNEL_NAME + ", " +
+                    "a." + kennelAssignmentsEntry.COLUMN_ASSIGNED_AT +
+                    " FROM " + kennelAssignmentsEntry.TABLE_NAME + " a" +
+                    " JOIN " + kennelsEntry.TABLE_NAME + " k ON k." + kennelsEntry._ID +
+                    " = a." + kennelAssignmentsEntry.COLUMN_KENNEL_ID +
+                    " WHERE a." + kennelAssignmentsEntry.COLUMN_PET_ID + " IN (%s)"},
+            {PetArchiveDbHelper.WEIGHT_SAMPLES_TABLE_NAME,
+                    "SELECT " + PetDbHelper.COLUMN_SAMPLE_PET_ID + ", " +
+                    PetDbHelper.COLUMN_SAMPLE_MEASURED_AT + ", " +
+                    petsEntry.COLUMN_PET_WEIGHT +
+                    " FROM " + PetDbHelper.WEIGHT_SAMPLES_TABLE_NAME +
+                    " WHERE " + PetDbHelper.COLUMN_SAMPLE_PET_ID + " IN (%s)"}};
+
+    /**
+     * Told about changes to the archive, on the archive thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called after pets were moved out of the pets table into the archive.
+         */
+        void onPetsArchived(List<Long> petIds);
+
+        /**
+         * Called after archived copies of pets in the pets table were removed, which only
+         * changes the archive.
+         */
+        void onArchiveChanged();
+    }
+
+    private final PetDbHelper dbHelper;
+    private final PetArchiveDbHelper archiveHelper;
+    private final long inactiveMs;
+    private final Listener listener;
+
+    private final File activeCopiesMarker;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    /**
+     * Constructs a new {@link PetArchive}. Nothing is archived before {@link #start()},
+     * but the IDs of the archived pets are reserved right away.
+     *
+     * @param context    Context of the app
+     * @param dbHelper   Helper owning the pets table
+     * @param inactiveMs Time since the last write after which a pet is archived
+     * @param listener   Listener for changes to the archive
+     */
+    public PetArchive(Context context, PetDbHelper dbHelper, long inactiveMs,
+                      Listener listener) {
+        this.dbHelper = dbHelper;
+        this.archiveHelper = new PetArchiveDbHelper(context);
+        this.inactiveMs = inactiveMs;
+        this.listener = listener;
+        thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(reserveIds);
+        // Only a restore or an upsert bringing pets back leaves active copies, and the
+        // process may have died before they were removed
+        activeCopiesMarker = new File(context.getFilesDir(), ACTIVE_COPIES_MARKER);
+        if (activeCopiesMarker.exists()) {
+            handler.post(removeActiveCopies);
+        }
+    }
+
+    /**
+     * Schedules archiving runs, the first one shortly after start.
+     */
+    public void start() {
+        handler.postDelayed(archiveBatch, FIRST_RUN_DELAY_MS);
+    }
+
+    /**
+     * Removes the archived copies of the pets that are in the pets table, with their
+     * related rows. A restore brings back pets archived after the snapshot was taken, and
+     * the pets table wins. Runs on the archive thread, between archiving batches. Reads
+     * every ID of the pets table, so it only runs when {@link #markActiveCopies()} was
+     * called.
+     */
+    public void removeActiveCopies() {
+        markActiveCopies();
+        handler.post(removeActiveCopies);
+    }
+
+    /**
+     * Records that the archive may hold copies of pets in the pets table, so they are
+     * removed when the provider starts if the process dies before
+     * {@link #removeActiveCopies()} completes. Called before a restore.
+     */
+    public void markActiveCopies() {
+        try {
+            if (!activeCopiesMarker.exists() && !activeCopiesMarker.createNewFile()) {
+                Log.w(LOG_TAG, "Could not create " + activeCopiesMarker);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not create " + activeCopiesMarker, e);
+        }
+    }
+
+    /**
+     * Copies the archived pet with an external ID back into the pets table, with its ID,
+     * its photo and its related rows, and marks it active. Runs on the writer thread,
+     * inside the upsert of the pet. The archived copy stays until
+     * {@link #removeArchivedCopies(List)} is called after the upsert committed.
+     *
+     * @return The ID of the pet, or -1 if no archived pet has the external ID
+     */
+    long copyToPets(SQLiteDatabase db, String externalId) {
+        SQLiteDatabase archive = archiveHelper.getReadableDatabase();
+        Cursor cursor = archive.query(PetArchiveDbHelper.TABLE_NAME, new String[]{
+                        petsEntry._ID, petsEntry.COLUMN_PET_NAME, petsEntry.COLUMN_PET_BREED,
+                        petsEntry.COLUMN_PET_GENDER, petsEntry.COLUMN_PET_WEIGHT,
+                        petsEntry.COLUMN_PET_PHOTO_VERSION},
+                petsEntry.COLUMN_PET_EXTERNAL_ID + " = ?", new String[]{externalId}, null,
+                null, PetArchiveDbHelper.COLUMN_ARCHIVED_AT + " DESC", "1");
+        ContentValues pet = new ContentValues();
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            String name = cursor.getString(1);
+            pet.put(petsEntry._ID, cursor.getLong(0));
+            pet.put(petsEntry.COLUMN_PET_NAME, name);
+            pet.put(PetDbHelper.COLUMN_PET_NAME_KEY,
+                    PetDbHelper.nameKey(Collator.getInstance(), name));
+            pet.put(PetDbHelper.COLUMN_PET_NAME_SECTION, PetDbHelper.nameSection(name));
+            pet.put(PetDbHelper.COLUMN_PET_BREED_ID,
+                    dbHelper.getBreeds().idFor(db, cursor.getString(2)));
+            pet.put(petsEntry.COLUMN_PET_GENDER, cursor.getInt(3));
+            pet.put(petsEntry.COLUMN_PET_WEIGHT, cursor.getInt(4));
+            pet.put(petsEntry.COLUMN_PET_PHOTO_VERSION,
+                    cursor.isNull(5) ? null : cursor.getLong(5));
+            pet.put(petsEntry.COLUMN_PET_EXTERNAL_ID, externalId);
+            pet.put(PetDbHelper.COLUMN_PET_LAST_ACTIVE, System.currentTimeMillis());
+        } finally {
+            cursor.close();
+        }
+
+        long id = db.insert(petsEntry.TABLE_NAME, null, pet);
+        if (id == -1) {
+            return -1;
+        }
+        SqlitePetStorageEngine.reindexTrigrams(db, id);
+
+        // The triggers recompute the summary columns and the weight rollups
+        String[] petIdArgs = {String.valueOf(id)};
+        for (ContentValues record : readRelated(archive,
+                PetArchiveDbHelper.MEDICAL_RECORDS_TABLE_NAME, petIdArgs)) {
+            db.insertOrThrow(medicalRecordsEntry.TABLE_NAME, null, record);
+        }
+        for (ContentValues assignment : readRelated(archive,
+                PetArchiveDbHelper.KENNEL_ASSIGNMENTS_TABLE_NAME, petIdArgs)) {
+            // Kennels are matched by name, their IDs may have been reused
+            String kennel = assignment.getAsString(kennelsEntry.COLUMN_KENNEL_NAME);
+            assignment.remove(kennelsEntry.COLUMN_KENNEL_NAME);
+            assignment.put(kennelAssignmentsEntry.COLUMN_KENNEL_ID, kennelIdFor(db, kennel));
+            db.insertOrThrow(kennelAssignmentsEntry.TABLE_NAME, null, assignment);
+        }
+        for (ContentValues sample : readRelated(archive,
+                PetArchiveDbHelper.WEIGHT_SAMPLES_TABLE_NAME, petIdArgs)) {
+            db.insertOrThrow(PetDbHelper.WEIGHT_SAMPLES_TABLE_NAME, null, sample);
+        }
+        // Marked in case the process dies before removeArchivedCopies(), the mark only
+        // costs one extra scan if the write rolls back
+        markActiveCopies();
+        return id;
+    }
+
+    /**
+     * Removes, on the archive thread, the archived copies of pets that
+     * {@link #copyToPets} brought back.
+     */
+    void removeArchivedCopies(List<Long> ids) {
+        final List<String> idStrings = toStrings(ids);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (removeArchivedCopiesNow(idStrings) > 0) {
+                        listener.onArchiveChanged();
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Removing archived copies failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the archived related rows of a pet without their archive IDs.
+     */
+    private static List<ContentValues> readRelated(SQLiteDatabase archive, String table,
+                                                   String[] petIdArgs) {
+        List<ContentValues> rows = readRows(archive, "SELECT * FROM " + table + " WHERE " +
+                medicalRecordsEntry.COLUMN_PET_ID + " = ?", petIdArgs);
+        for (ContentValues row : rows) {
+            row.remove(medicalRecordsEntry._ID);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the ID of the kennel with a name, adding the kennel if there is none.
+     */
+    private static long kennelIdFor(SQLiteDatabase db, String name) {
+        Cursor cursor = db.query(kennelsEntry.TABLE_NAME, new String[]{kennelsEntry._ID},
+                kennelsEntry.COLUMN_KENNEL_NAME + " = ?", new String[]{name}, null, null,
+                null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        ContentValues kennel = new ContentValues();
+        kennel.put(kennelsEntry.COLUMN_KENNEL_NAME, name);
+        return db.insertOrThrow(kennelsEntry.TABLE_NAME, null, kennel);
+    }
+
+    /**
+     * Returns the archived pets matching both the selection and the filter, with the
+     * columns of {@link petsEntry}.
+     *
+     * @see PetStorageEngine#query
+     */
+    public Cursor query(String[] projection, String selection, String[] selectionArgs,
+                        PetFilter filter, String sortOrder, CancellationSignal signal) {
+        List<String> args = new ArrayList<>();
+        if (selectionArgs != null) {
+            args.addAll(Arrays.asList(selectionArgs));
+        }
+        String filterSelection = filter.buildSelection(args, dbHelper.getBreeds());
+        if (filterSelection != null) {
+            selection = selection == null ? filterSelection
+                    : "(" + selection + ") AND " + filterSelection;
+            selectionArgs = args.toArray(new String[args.size()]);
+        }
+
+        return SqlitePetStorageEngine.query(archiveHelper.getReadableDatabase(),
+                PetArchiveDbHelper.TABLE_NAME, projection == null ? ALL_COLUMNS : projection,
+                selection, selectionArgs, null, sortOrder, signal);
+    }
+
+    /**
+     * Raises the ID sequence of the pets table above the IDs of the archived pets, so no
+     * new pet takes the ID, and with it the photo, of an archived pet. Upgrades used to
+     * create the pets table anew, starting the sequence over.
+     *
+     * @param db The pets database, inside a write
+     */
+    void reserveArchivedIds(SQLiteDatabase db) {
+        long maxId = DatabaseUtils.longForQuery(archiveHelper.getReadableDatabase(),
+                "SELECT IFNULL(MAX(" + petsEntry._ID + "), 0) FROM " +
+                        PetArchiveDbHelper.TABLE_NAME, null);
+        if (maxId > 0) {
+            PetDbHelper.raisePetIdSequence(db, maxId);
+        }
+    }
+
+    private final Runnable reserveIds = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                dbHelper.getWriter().execute(new GroupCommitWriter.Write<Void>() {
+                    @Override
+                    public Void apply(SQLiteDatabase db) {
+                        reserveArchivedIds(db);
+                        return null;
+                    }
+                });
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Reserving archived IDs failed", e);
+            }
+        }
+    };
+
+    private final Runnable removeActiveCopies = new Runnable() {
+        @Override
+        public void run() {
+            int removed = 0;
+            try {
+                removed = removeArchivedCopiesNow(readActiveIds());
+                if (!activeCopiesMarker.delete()) {
+                    Log.w(LOG_TAG, "Could not delete " + activeCopiesMarker);
+                }
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Removing archived copies failed", e);
+            }
+
+            if (removed > 0) {
+                Log.i(LOG_TAG, "Removed " + removed + " archived copies of active pets");
+                listener.onArchiveChanged();
+            }
+        }
+    };
+
+    private List<String> readActiveIds() {
+        Cursor cursor = dbHelper.getReadableDatabase().query(petsEntry.TABLE_NAME,
+                new String[]{petsEntry._ID}, null, null, null, null, null);
+        try {
+            List<String> ids = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(String.valueOf(cursor.getLong(0)));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes the archived pets with the given IDs and their related rows, in batches of
+     * {@link #BATCH_SIZE} IDs.
+     *
+     * @return The number of archived pets deleted
+     */
+    private int removeArchivedCopiesNow(List<String> ids) {
+        int removed = 0;
+        SQLiteDatabase archive = archiveHelper.getWritableDatabase();
+        archive.beginTransaction();
+        try {
+            for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+                List<String> batch = ids.subList(start, Math.min(start + BATCH_SIZE,
+                        ids.size()));
+                removed += archive.delete(PetArchiveDbHelper.TABLE_NAME,
+                        petsEntry._ID + " IN (" + TextUtils.join(",", batch) + ")", null);
+                deleteRelated(archive, batch);
+            }
+            archive.setTransactionSuccessful();
+        } finally {
+            archive.endTransaction();
+        }
+        return removed;
+    }
+
+    private final Runnable archiveBatch = new Runnable() {
+        @Override
+        public void run() {
+            List<Long> moved = Collections.emptyList();
+            boolean more = false;
+            try {
+                long cutoff = System.currentTimeMillis() - inactiveMs;
+                Batch batch = readBatch(cutoff);
+                more = batch.pets.size() == BATCH_SIZE;
+                if (!batch.pets.isEmpty()) {
+                    moved = moveBatch(batch, cutoff);
+                }
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Archiving failed", e);
+            }
+
+            if (!moved.isEmpty()) {
+                Log.i(LOG_TAG, "Archived " + moved.size() + " pets");
+                dbHelper.getMaintenanceScheduler().onRowsWritten(moved.size());
+                listener.onPetsArchived(moved);
+            }
+            handler.postDelayed(this, more ? BATCH_PAUSE_MS : RUN_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Pets due for archiving, and their related rows by archive table.
+     */
+    private static final class Batch {
+        final List<ContentValues> pets;
+        final Map<String, List<ContentValues>> related = new LinkedHashMap<>();
+
+        Batch(List<ContentValues> pets) {
+            this.pets = pets;
+        }
+    }
+
+    /**
+     * Reads the next pets due for archiving, least recently active first, with their
+     * related rows. A related row written after the pets were read marks its pet active,
+     * so that pet is not deleted by {@link #moveBatch}.
+     */
+    private Batch readBatch(long cutoff) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Batch batch = new Batch(readPets(db, cutoff));
+        if (batch.pets.isEmpty()) {
+            return batch;
+        }
+
+        List<String> ids = new ArrayList<>(batch.pets.size());
+        for (ContentValues values : batch.pets) {
+            ids.add(values.getAsString(petsEntry._ID));
+        }
+        // IDs are numbers read from the database, so they can be part of the SQL
+        String idList = TextUtils.join(",", ids);
+        for (String[] query : RELATED_QUERIES) {
+            batch.related.put(query[0],
+                    readRows(db, String.format(query[1], idList), null));
+        }
+        return batch;
+    }
+
+    private List<ContentValues> readPets(SQLiteDatabase db, long cutoff) {
+        Cursor cursor = db.query(petsEntry.TABLE_NAME,
+                ARCHIVED_COLUMNS, PetDbHelper.COLUMN_PET_LAST_ACTIVE + " < ?",
+                new String[]{String.valueOf(cutoff)}, null, null,
+                PetDbHelper.COLUMN_PET_LAST_ACTIVE, String.valueOf(BATCH_SIZE));
+        try {
+            BreedDictionary breeds = dbHelper.getBreeds();
+            List<ContentValues> batch = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(petsEntry._ID, cursor.getLong(0));
+                values.put(petsEntry.COLUMN_PET_NAME, cursor.getString(1));
+                values.put(PetDbHelper.COLUMN_PET_NAME_KEY, cursor.getBlob(2));
+                values.put(PetDbHelper.COLUMN_PET_BREED_ID, cursor.getLong(3));
+                values.put(petsEntry.COLUMN_PET_BREED, breeds.nameFor(cursor.getLong(3)));
+                values.put(petsEntry.COLUMN_PET_GENDER, cursor.getInt(4));
+                values.put(petsEntry.COLUMN_PET_WEIGHT, cursor.getInt(5));
+                values.put(PetDbHelper.COLUMN_PET_LAST_ACTIVE, cursor.getLong(6));
+                values.put(petsEntry.COLUMN_PET_EXTERNAL_ID, cursor.getString(7));
+                values.put(petsEntry.COLUMN_PET_VISIT_COUNT, cursor.getInt(8));
+                values.put(petsEntry.COLUMN_PET_LAST_VISIT,
+                        cursor.isNull(9) ? null : cursor.getLong(9));
+                values.put(petsEntry.COLUMN_PET_KENNEL, cursor.getString(10));
+                values.put(petsEntry.COLUMN_PET_PHOTO_VERSION,
+                        cursor.isNull(11) ? null : cursor.getLong(11));
+                batch.add(values);
+            }
+            return batch;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static List<ContentValues> readRows(SQLiteDatabase db, String sql,
+                                                String[] selectionArgs) {
+        Cursor cursor = db.rawQuery(sql, selectionArgs);
+        try {
+            List<ContentValues> rows = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                rows.add(values);
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copies the pets and their related rows to the archive, then deletes the pets still
+     * inactive from the pets table. Copies of pets that became active meanwhile are removed
+     * again.
+     *
+     * @return The IDs of the pets moved
+     */
+    private List<Long> moveBatch(Batch batch, final long cutoff) {
+        long archivedAt = System.currentTimeMillis();
+        List<String> ids = new ArrayList<>(batch.pets.size());
+        for (ContentValues values : batch.pets) {
+            ids.add(values.getAsString(petsEntry._ID));
+        }
+        SQLiteDatabase archive = archiveHelper.getWritableDatabase();
+        archive.beginTransaction();
+        try {
+            // Related rows left by an earlier run that died may have changed since
+            deleteRelated(archive, ids);
+            for (ContentValues values : batch.pets) {
+                values.put(PetArchiveDbHelper.COLUMN_ARCHIVED_AT, archivedAt);
+                archive.insertWithOnConflict(PetArchiveDbHelper.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (Map.Entry<String, List<ContentValues>> related : batch.related.entrySet()) {
+                for (ContentValues values : related.getValue()) {
+                    archive.insertOrThrow(related.getKey(), null, values);
+                }
+            }
+            archive.setTransactionSuccessful();
+        } finally {
+            archive.endTransaction();
+        }
+
+        // IDs are numbers read from the database, so they can be part of the SQL
+        final String byId = petsEntry._ID + " IN (" + TextUtils.join(",", ids) + ")";
+        final List<Long> deletedIds = new ArrayList<>();
+        dbHelper.getWriter().execute(new GroupCommitWriter.Write<Void>() {
+            @Override
+            public Void apply(SQLiteDatabase db) {
+                String selection = byId + " AND " + PetDbHelper.COLUMN_PET_LAST_ACTIVE + " < ?";
+                String[] selectionArgs = {String.valueOf(cutoff)};
+                deletedIds.clear();
+                Cursor cursor = db.query(petsEntry.TABLE_NAME, new String[]{petsEntry._ID},
+                        selection, selectionArgs, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        deletedIds.add(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (db.delete(petsEntry.TABLE_NAME, selection, selectionArgs) > 0) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return null;
+            }
+        });
+
+        if (deletedIds.size() < ids.size()) {
+            ids.removeAll(toStrings(deletedIds));
+            removeArchivedCopiesNow(ids);
+        }
+        return deletedIds;
+    }
+
+    /**
+     * Deletes the archived related rows of the pets.
+     */
+    private static void deleteRelated(SQLiteDatabase archive, List<String> ids) {
+        String byPetId = medicalRecordsEntry.COLUMN_PET_ID + " IN (" +
+                TextUtils.join(",", ids) + ")";
+        for (String table : PetArchiveDbHelper.RELATED_TABLE_NAMES) {
+            archive.delete(table, byPetId, null);
+        }
+    }
+
+    private static List<String> toStrings(List<Long> ids) {
+        List<String> strings = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            strings.add(String.valueOf(id));
+        }
+        return strings;
+    }
+}
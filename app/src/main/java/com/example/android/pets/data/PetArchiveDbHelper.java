@@ -0,0 +1,198 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+import com.example.android.pets.data.PetsContract.kennelAssignmentsEntry;
+import com.example.android.pets.data.PetsContract.kennelsEntry;
+import com.example.android.pets.data.PetsContract.medicalRecordsEntry;
+
+import static com.example.android.pets.data.PetsContract.petsEntry.*;
+
+/**
+ * Helper for the cold database holding the pets moved out of the pets table by the
+ * {@link PetArchive}.
+ *
+ * Archived pets are never written again, so the table stores the breed name next to its
+ * ID instead of joining the breeds table, and only indexes the name order. The rows related
+ * to a pet are archived with it, and kennel assignments store the name of the kennel for
+ * the same reason. Name keys follow the locale like those of the pets table, so both
+ * sides of a merge by name are in the same order.
+ */
+public class PetArchiveDbHelper extends SQLiteOpenHelper {
+
+    public static final int DATABASE_VERSION = 6;
+    public static final String DATABASE_NAME = "shelter_archive.db";
+
+    public static final String TABLE_NAME = "archived_pets";
+
+    public static final String MEDICAL_RECORDS_TABLE_NAME = "archived_medical_records";
+
+    public static final String KENNEL_ASSIGNMENTS_TABLE_NAME = "archived_kennel_assignments";
+
+    public static final String WEIGHT_SAMPLES_TABLE_NAME = "archived_weight_samples";
+
+    // Wall clock time the pet was archived at, in milliseconds
+    public static final String COLUMN_ARCHIVED_AT = "archived_at";
+
+    // IDs are those the pets had in the pets table. The archive keeps the ID sequence of
+    // the pets table above them, so they are never reused.
+    public static final String SQL_CREATE_ARCHIVED_PETS = "CREATE TABLE " + TABLE_NAME + "(" +
+            COLUMN_ID + " INTEGER PRIMARY KEY, " +
+            COLUMN_PET_NAME + " TEXT NOT NULL, " +
+            PetDbHelper.COLUMN_PET_NAME_KEY + " BLOB NOT NULL, " +
+            PetDbHelper.COLUMN_PET_BREED_ID + " INTEGER NOT NULL, " +
+            COLUMN_PET_BREED + " TEXT NOT NULL, " +
+            COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+            COLUMN_PET_WEIGHT + " INTEGER NOT NULL, " +
+            PetDbHelper.COLUMN_PET_LAST_ACTIVE + " INTEGER NOT NULL, " +
+            COLUMN_ARCHIVED_AT + " INTEGER NOT NULL, " +
+            COLUMN_PET_EXTERNAL_ID + " TEXT, " +
+            COLUMN_PET_VISIT_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+            COLUMN_PET_LAST_VISIT + " INTEGER, " +
+            COLUMN_PET_KENNEL + " TEXT, " +
+            COLUMN_PET_PHOTO_VERSION + " INTEGER" +
+            ");";
+
+    // Version 2 added the external ID
+    public static final String SQL_ADD_EXTERNAL_ID = "ALTER TABLE " + TABLE_NAME +
+            " ADD COLUMN " + COLUMN_PET_EXTERNAL_ID + " TEXT;";
+
+    // Version 3 added the summary of the related tables
+    public static final String[] SQL_ADD_SUMMARY = {
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_PET_VISIT_COUNT +
+                    " INTEGER NOT NULL DEFAULT 0;",
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_PET_LAST_VISIT + " INTEGER;",
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_PET_KENNEL + " TEXT;"};
+
+    // Version 4 added the photo version. The photo files stay where they are, keyed by
+    // the ID of the pet.
+    public static final String SQL_ADD_PHOTO_VERSION = "ALTER TABLE " + TABLE_NAME +
+            " ADD COLUMN " + COLUMN_PET_PHOTO_VERSION + " INTEGER;";
+
+    public static final String SQL_CREATE_NAME_KEY_INDEX =
+            "CREATE INDEX archived_pets_name_key_idx ON " + TABLE_NAME + "(" +
+                    PetDbHelper.COLUMN_PET_NAME_KEY + ");";
+
+    // Version 5 added the related rows. They get new IDs, since the related tables of the
+    // pets database reuse the IDs of deleted rows.
+    public static final String SQL_CREATE_ARCHIVED_MEDICAL_RECORDS = "CREATE TABLE " +
+            MEDICAL_RECORDS_TABLE_NAME + "(" +
+            medicalRecordsEntry._ID + " INTEGER PRIMARY KEY, " +
+            medicalRecordsEntry.COLUMN_PET_ID + " INTEGER NOT NULL, " +
+            medicalRecordsEntry.COLUMN_VISITED_AT + " INTEGER NOT NULL, " +
+            medicalRecordsEntry.COLUMN_DESCRIPTION + " TEXT" +
+            ");";
+
+    public static final String SQL_CREATE_ARCHIVED_MEDICAL_RECORDS_PET_INDEX =
+            "CREATE INDEX archived_medical_records_pet_idx ON " + MEDICAL_RECORDS_TABLE_NAME +
+                    "(" + medicalRecordsEntry.COLUMN_PET_ID + ");";
+
+    public static final String SQL_CREATE_ARCHIVED_KENNEL_ASSIGNMENTS = "CREATE TABLE " +
+            KENNEL_ASSIGNMENTS_TABLE_NAME + "(" +
+            kennelAssignmentsEntry._ID + " INTEGER PRIMARY KEY, " +
+            kennelAssignmentsEntry.COLUMN_PET_ID + " INTEGER NOT NULL, " +
+            kennelAssignmentsEntry.COLUMN_KENNEL_ID + " INTEGER NOT NULL, " +
+            kennelsEntry.COLUMN_KENNEL_NAME + " TEXT NOT NULL, " +
+            kennelAssignmentsEntry.COLUMN_ASSIGNED_AT + " INTEGER NOT NULL" +
+            ");";
+
+    public static final String SQL_CREATE_ARCHIVED_KENNEL_ASSIGNMENTS_PET_INDEX =
+            "CREATE INDEX archived_kennel_assignments_pet_idx ON " +
+                    KENNEL_ASSIGNMENTS_TABLE_NAME + "(" +
+                    kennelAssignmentsEntry.COLUMN_PET_ID + ");";
+
+    // Rollups of the weights are not archived, they are rebuilt from the samples when they
+    // are written back to the pets database
+    public static final String SQL_CREATE_ARCHIVED_WEIGHT_SAMPLES = "CREATE TABLE " +
+            WEIGHT_SAMPLES_TABLE_NAME + "(" +
+            COLUMN_ID + " INTEGER PRIMARY KEY, " +
+            PetDbHelper.COLUMN_SAMPLE_PET_ID + " INTEGER NOT NULL, " +
+            PetDbHelper.COLUMN_SAMPLE_MEASURED_AT + " INTEGER NOT NULL, " +
+            COLUMN_PET_WEIGHT + " INTEGER NOT NULL" +
+            ");";
+
+    public static final String SQL_CREATE_ARCHIVED_WEIGHT_SAMPLES_PET_INDEX =
+            "CREATE INDEX archived_weight_samples_pet_idx ON " + WEIGHT_SAMPLES_TABLE_NAME +
+                    "(" + PetDbHelper.COLUMN_SAMPLE_PET_ID + ");";
+
+    // Answers upserts of pets sent again after they were archived
+    public static final String SQL_CREATE_EXTERNAL_ID_INDEX =
+            "CREATE INDEX archived_pets_external_id_idx ON " + TABLE_NAME + "(" +
+                    COLUMN_PET_EXTERNAL_ID + ");";
+
+    // Tables holding the rows related to an archived pet, all keyed by its ID in pet_id
+    public static final String[] RELATED_TABLE_NAMES = {
+            MEDICAL_RECORDS_TABLE_NAME,
+            KENNEL_ASSIGNMENTS_TABLE_NAME,
+            WEIGHT_SAMPLES_TABLE_NAME};
+
+    private static final String[] SQL_CREATE_RELATED = {
+            SQL_CREATE_ARCHIVED_MEDICAL_RECORDS,
+            SQL_CREATE_ARCHIVED_MEDICAL_RECORDS_PET_INDEX,
+            SQL_CREATE_ARCHIVED_KENNEL_ASSIGNMENTS,
+            SQL_CREATE_ARCHIVED_KENNEL_ASSIGNMENTS_PET_INDEX,
+            SQL_CREATE_ARCHIVED_WEIGHT_SAMPLES,
+            SQL_CREATE_ARCHIVED_WEIGHT_SAMPLES_PET_INDEX,
+            SQL_CREATE_EXTERNAL_ID_INDEX};
+
+    public PetArchiveDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // The archiver writes while the provider reads
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Older platforms have no setWriteAheadLoggingEnabled(), enable it on the connection
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+        if (!db.isReadOnly()) {
+            PetDbHelper.refreshNameKeys(db, TABLE_NAME, false);
+        }
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVED_PETS);
+        sqLiteDatabase.execSQL(SQL_CREATE_NAME_KEY_INDEX);
+        for (String sql : SQL_CREATE_RELATED) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        sqLiteDatabase.execSQL(PetDbHelper.SQL_CREATE_NAME_KEY_LOCALE);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Unlike the pets database, the archive holds the only copy of its rows, so
+        // they are migrated instead of starting over
+        if (oldVersion < 2) {
+            sqLiteDatabase.execSQL(SQL_ADD_EXTERNAL_ID);
+        }
+        if (oldVersion < 3) {
+            for (String sql : SQL_ADD_SUMMARY) {
+                sqLiteDatabase.execSQL(sql);
+            }
+        }
+        if (oldVersion < 4) {
+            sqLiteDatabase.execSQL(SQL_ADD_PHOTO_VERSION);
+        }
+        if (oldVersion < 5) {
+            for (String sql : SQL_CREATE_RELATED) {
+                sqLiteDatabase.execSQL(sql);
+            }
+        }
+        if (oldVersion < 6) {
+            // Version 6 tracks the locale of the name keys. Without one, the keys are
+            // recomputed on the first open.
+            sqLiteDatabase.execSQL(PetDbHelper.SQL_CREATE_NAME_KEY_LOCALE);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetsContract.backupsEntry;
+import com.example.android.pets.data.PetsContract.kennelAssignmentsEntry;
+import com.example.android.pets.data.PetsContract.kennelsEntry;
+import com.example.android.pets.data.PetsContract.medicalRecordsEntry;
+import com.example.android.pets.data.PetsContract.petsEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Takes point-in-time snapshots of the pets database while it stays online, and restores
+ * them.
+ *
+ * In WAL mode only checkpoints write to the database file, commits append to the log. A
+ * snapshot holds off checkpoints, copies the database file and then the log in small
+ * steps, and lets checkpoints run again. Frames of the log carry checksums and salts, so
+ * the copy of the log ends at the last transaction committed before it was read, even if
+ * writers appended or restarted the log meanwhile. Opening the copy replays the log and
+ * leaves a single consistent file.
+ *
+ * Readers are never blocked. Writers only wait for the two short writes switching
+ * automatic checkpoints off and back on. The log grows while a snapshot is taken.
+ *
+ * The newest {@link backupsEntry#MAX_SNAPSHOTS} snapshots are kept.
+ */
+public class PetBackupManager {
+
+    private static final String LOG_TAG = PetBackupManager.class.getSimpleName();
+
+    // Directory of the snapshots, below the files directory of the app
+    private static final String BACKUP_DIRECTORY = "backups";
+
+    // Snapshot names sort in the order they were taken
+    private static final String SNAPSHOT_PREFIX = "shelter-";
+    private static final String SNAPSHOT_SUFFIX = ".db";
+    private static final String SNAPSHOT_DATE_FORMAT = "yyyyMMdd-HHmmss-SSS";
+    private static final Pattern SNAPSHOT_NAME =
+            Pattern.compile(SNAPSHOT_PREFIX + "\\d{8}-\\d{6}-\\d{3}" + SNAPSHOT_SUFFIX);
+
+    // Name of the snapshot while it is being copied
+    private static final String INCOMING_NAME = "incoming.db";
+
+    // Name of the copy of an older snapshot migrated to the current schema for a restore
+    private static final String MIGRATED_NAME = "migrated.db";
+
+    // Suffixes of the files SQLite keeps next to a database
+    private static final String WAL_SUFFIX = "-wal";
+    private static final String SHM_SUFFIX = "-shm";
+    private static final String JOURNAL_SUFFIX = "-journal";
+
+    // Database pages copied per step, and the pause between steps that leaves the disk
+    // to live readers and writers
+    private static final int PAGES_PER_STEP = 256;
+    private static final long STEP_PAUSE_MS = 5;
+
+    // Tables copied by a restore, in order. Facet and section counts are rebuilt by the
+    // triggers on the pets table, and weight rollups by those on the weight samples.
+    // Kennels come before the pets and the related rows after them, for the foreign keys.
+    private static final String[] RESTORED_TABLES = {
+            PetDbHelper.BREEDS_TABLE_NAME,
+            kennelsEntry.TABLE_NAME,
+            petsEntry.TABLE_NAME,
+            PetDbHelper.TRIGRAMS_TABLE_NAME,
+            PetDbHelper.NAME_KEY_LOCALE_TABLE_NAME,
+            medicalRecordsEntry.TABLE_NAME,
+            kennelAssignmentsEntry.TABLE_NAME,
+            PetDbHelper.WEIGHT_SAMPLES_TABLE_NAME};
+
+    // Tables emptied by a restore, in order. Deleting the pets first lets the triggers
+    // clear the counts, and deletes the related rows.
+    private static final String[] CLEARED_TABLES = {
+            petsEntry.TABLE_NAME,
+            kennelsEntry.TABLE_NAME,
+            PetDbHelper.TRIGRAMS_TABLE_NAME,
+            PetDbHelper.BREEDS_TABLE_NAME,
+            PetDbHelper.NAME_KEY_LOCALE_TABLE_NAME};
+
+    private final PetDbHelper dbHelper;
+    private final PetPhotos photos;
+    private final File databaseFile;
+    private final File backupDirectory;
+
+    /**
+     * Constructs a new {@link PetBackupManager}
+     *
+     * @param context  Context of the app
+     * @param dbHelper Helper owning the database to back up
+     * @param photos   Photos of the pets, which snapshots do not hold
+     */
+    public PetBackupManager(Context context, PetDbHelper dbHelper, PetPhotos photos) {
+        this.dbHelper = dbHelper;
+        this.photos = photos;
+        databaseFile = context.getDatabasePath(PetDbHelper.DATABASE_NAME);
+        backupDirectory = new File(context.getFilesDir(), BACKUP_DIRECTORY);
+    }
+
+    /**
+     * Takes a snapshot of the database and deletes the oldest snapshots beyond
+     * {@link backupsEntry#MAX_SNAPSHOTS}. Returns once the copy is complete, pauses
+     * included, so callers should not be on the main thread.
+     *
+     * @return The name of the new snapshot
+     * @throws IOException if the snapshot could not be written
+     */
+    public synchronized String createSnapshot() throws IOException {
+        long start = SystemClock.uptimeMillis();
+        if (!backupDirectory.isDirectory() && !backupDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + backupDirectory);
+        }
+        File incoming = new File(backupDirectory, INCOMING_NAME);
+        deleteDatabaseFiles(incoming);
+
+        // Copy the database file and the log while nothing checkpoints
+        DbMaintenanceScheduler maintenance = dbHelper.getMaintenanceScheduler();
+        maintenance.holdFileChanges();
+        try {
+            final long autoCheckpoint = dbHelper.getWriter().execute(
+                    new GroupCommitWriter.Write<Long>() {
+                        @Override
+                        public Long apply(SQLiteDatabase db) {
+                            return disableAutoCheckpoint(db);
+                        }
+                    });
+            try {
+                int pageSize = (int) readPragma(dbHelper.getReadableDatabase(),
+                        "PRAGMA page_size");
+                copyInSteps(databaseFile, incoming, pageSize);
+                copyInSteps(new File(databaseFile.getPath() + WAL_SUFFIX),
+                        new File(incoming.getPath() + WAL_SUFFIX), pageSize);
+            } finally {
+                dbHelper.getWriter().execute(new GroupCommitWriter.Write<Void>() {
+                    @Override
+                    public Void apply(SQLiteDatabase db) {
+                        readPragma(db, "PRAGMA wal_autocheckpoint=" + autoCheckpoint);
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            maintenance.releaseFileChanges();
+        }
+
+        // Replay the copied log into the copied file, leaving a single file
+        SQLiteDatabase copy = SQLiteDatabase.openDatabase(incoming.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            readPragma(copy, "PRAGMA journal_mode=DELETE");
+        } finally {
+            copy.close();
+        }
+
+        String name = SNAPSHOT_PREFIX + new SimpleDateFormat(SNAPSHOT_DATE_FORMAT, Locale.US)
+                .format(new Date()) + SNAPSHOT_SUFFIX;
+        File snapshot = new File(backupDirectory, name);
+        if (!incoming.renameTo(snapshot)) {
+            throw new IOException("Cannot rename " + incoming + " to " + snapshot);
+        }
+        deleteDatabaseFiles(incoming);
+
+        // Rotate out the oldest snapshots
+        List<String> names = listSnapshots();
+        for (int i = backupsEntry.MAX_SNAPSHOTS; i < names.size(); i++) {
+            deleteDatabaseFiles(new File(backupDirectory, names.get(i)));
+        }
+
+        Log.i(LOG_TAG, "Snapshot " + name + " of " + snapshot.length() + " bytes took " +
+                (SystemClock.uptimeMillis() - start) + " ms");
+        return name;
+    }
+
+    /**
+     * @return The names of the snapshots, newest first
+     */
+    public List<String> listSnapshots() {
+        String[] files = backupDirectory.list();
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        List<String> names = new ArrayList<>(files.length);
+        for (String file : files) {
+            if (SNAPSHOT_NAME.matcher(file).matches()) {
+                names.add(file);
+            }
+        }
+        Collections.sort(names, Collections.reverseOrder());
+        return names;
+    }
+
+    /**
+     * Replaces all pets with those of a snapshot. The replacement is a single write, so
+     * readers see either the old or the restored pets. Writes wait until it is done.
+     * Snapshots taken with an earlier version of the database are migrated to the current
+     * one on a copy first, the way an upgrade migrates the database.
+     *
+     * @param name Name of the snapshot, as returned by {@link #listSnapshots()}
+     * @throws IllegalArgumentException if there is no such snapshot, or it was taken with
+     *                                  a later version of the database
+     * @throws IOException              if an older snapshot could not be copied
+     */
+    public synchronized void restoreSnapshot(String name) throws IOException {
+        if (name == null || !SNAPSHOT_NAME.matcher(name).matches()
+                || !new File(backupDirectory, name).isFile()) {
+            throw new IllegalArgumentException("Unknown snapshot " + name);
+        }
+
+        File migrated = new File(backupDirectory, MIGRATED_NAME);
+        final SQLiteDatabase snapshot = openSnapshot(name, migrated);
+        BreedDictionary breeds = dbHelper.getBreeds();
+        breeds.beginReplace();
+        try {
+            int pets = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+                @Override
+                public Integer apply(SQLiteDatabase db) {
+                    for (String table : CLEARED_TABLES) {
+                        db.delete(table, null, null);
+                    }
+                    int pets = 0;
+                    for (String table : RESTORED_TABLES) {
+                        int rows = copyTable(snapshot, db, table);
+                        if (petsEntry.TABLE_NAME.equals(table)) {
+                            pets = rows;
+                        }
+                    }
+                    // The snapshot may come from another locale
+                    PetDbHelper.refreshNameKeys(db);
+                    // The photo files are those of today, not of the snapshot
+                    photos.resetVersions(db);
+                    dbHelper.getWriter().markPetsChanged();
+                    return pets;
+                }
+            });
+            Log.i(LOG_TAG, "Restored " + pets + " pets from snapshot " + name);
+        } finally {
+            breeds.endReplace();
+            snapshot.close();
+            deleteDatabaseFiles(migrated);
+        }
+    }
+
+    /**
+     * Opens a snapshot for reading, or a copy of it migrated to the current version of the
+     * database if it is older.
+     */
+    private SQLiteDatabase openSnapshot(String name, File migrated) throws IOException {
+        File file = new File(backupDirectory, name);
+        SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        int version = snapshot.getVersion();
+        if (version == PetDbHelper.DATABASE_VERSION) {
+            return snapshot;
+        }
+        snapshot.close();
+        if (version > PetDbHelper.DATABASE_VERSION) {
+            throw new IllegalArgumentException("Snapshot " + name + " has version " +
+                    version + ", newer than " + PetDbHelper.DATABASE_VERSION);
+        }
+
+        deleteDatabaseFiles(migrated);
+        copyInSteps(file, migrated, 0);
+        SQLiteDatabase copy = SQLiteDatabase.openDatabase(migrated.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            copy.beginTransaction();
+            try {
+                PetDbHelper.migrate(copy);
+                copy.setVersion(PetDbHelper.DATABASE_VERSION);
+                copy.setTransactionSuccessful();
+            } finally {
+                copy.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            copy.close();
+            deleteDatabaseFiles(migrated);
+            throw e;
+        }
+        Log.i(LOG_TAG, "Migrated snapshot " + name + " from version " + version);
+        return copy;
+    }
+
+    /**
+     * Turns automatic checkpoints of the writer connection off, for the rest of the
+     * snapshot.
+     *
+     * @return The previous checkpoint threshold, in pages
+     * @throws IllegalStateException if the database is not in WAL mode, so commits write
+     *                               to the database file directly
+     */
+    private static long disableAutoCheckpoint(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+        try {
+            if (!cursor.moveToFirst() || !"wal".equalsIgnoreCase(cursor.getString(0))) {
+                throw new IllegalStateException("Online backup needs write-ahead logging");
+            }
+        } finally {
+            cursor.close();
+        }
+        long autoCheckpoint = readPragma(db, "PRAGMA wal_autocheckpoint");
+        readPragma(db, "PRAGMA wal_autocheckpoint=0");
+        return autoCheckpoint;
+    }
+
+    /**
+     * Copies as much of a file as it holds when the copy starts, a few pages at a time.
+     * A missing source leaves an empty target.
+     */
+    private static void copyInSteps(File source, File target, int pageSize)
+            throws IOException {
+        byte[] buffer = new byte[Math.max(pageSize, 1024) * PAGES_PER_STEP];
+        long remaining = source.length();
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            if (remaining == 0) {
+                return;
+            }
+            FileInputStream in = new FileInputStream(source);
+            try {
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                    if (remaining > 0) {
+                        pause();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void pause() throws InterruptedIOException {
+        try {
+            Thread.sleep(STEP_PAUSE_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Snapshot interrupted");
+        }
+    }
+
+    /**
+     * Copies all rows of a table between two databases with the same schema.
+     *
+     * @return The number of rows copied
+     */
+    private static int copyTable(SQLiteDatabase from, SQLiteDatabase to, String table) {
+        Cursor cursor = from.query(table, null, null, null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            String[] columns = cursor.getColumnNames();
+            while (cursor.moveToNext()) {
+                values.clear();
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            values.putNull(columns[i]);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values.put(columns[i], cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values.put(columns[i], cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            values.put(columns[i], cursor.getBlob(i));
+                            break;
+                        default:
+                            values.put(columns[i], cursor.getString(i));
+                            break;
+                    }
+                }
+                to.insertOrThrow(table, null, values);
+            }
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes a database file together with the files SQLite keeps next to it.
+     */
+    private static void deleteDatabaseFiles(File file) {
+        for (String suffix : Arrays.asList("", WAL_SUFFIX, SHM_SUFFIX, JOURNAL_SUFFIX)) {
+            File sibling = new File(file.getPath() + suffix);
+            if (sibling.exists() && !sibling.delete()) {
+                Log.w(LOG_TAG, "Cannot delete " + sibling);
+            }
+        }
+    }
+
+    /**
+     * Runs a pragma to completion and returns the first column of its first row, or -1 if
+     * it returned no rows.
+     */
+    private static long readPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+/**
+ * A row-level change to the pets table, published by {@link PetProvider} through the
+ * {@link PetChangeStream} after the write has been committed.
+ */
+public final class PetChangeEvent {
+
+    // Value constants used for the type of change
+    public static final int TYPE_INSERT = 0;
+    public static final int TYPE_UPDATE = 1;
+    public static final int TYPE_DELETE = 2;
+
+    private final int type;
+    private final long id;
+    private final ContentValues values;
+
+    /**
+     * Constructs a new {@link PetChangeEvent}
+     *
+     * @param type   One of {@link #TYPE_INSERT}, {@link #TYPE_UPDATE} or {@link #TYPE_DELETE}
+     * @param id     ID of the changed row
+     * @param values For an insert all values of the new row, for an update only the changed
+     *               columns, for a delete null
+     */
+    public PetChangeEvent(int type, long id, ContentValues values) {
+        this.type = type;
+        this.id = id;
+        this.values = values;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return The values carried by this change. Callers must not modify them, since the
+     * same instance is handed to every subscriber.
+     */
+    public ContentValues getValues() {
+        return values;
+    }
+
+    /**
+     * Folds a later change to the same row into this one, so a slow subscriber only ever
+     * holds one pending event per row.
+     *
+     * @param next The change that happened after this one
+     * @return The combined change
+     */
+    PetChangeEvent merge(PetChangeEvent next) {
+        if (next.type != TYPE_UPDATE || type == TYPE_DELETE) {
+            // A delete or insert supersedes whatever came before it
+            return next;
+        }
+        // An update on top of an insert or update keeps the earlier type with merged values
+        ContentValues merged = new ContentValues(values);
+        merged.putAll(next.values);
+        return new PetChangeEvent(type, id, merged);
+    }
+
+    @Override
+    public String toString() {
+        return "PetChangeEvent{type=" + type + ", id=" + id + ", values=" + values + "}";
+    }
+}
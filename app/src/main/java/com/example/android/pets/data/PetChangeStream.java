@@ -0,0 +1,287 @@
+package com.example.android.pets.data;
+
+import android.arch.lifecycle.Lifecycle;
+import android.arch.lifecycle.LifecycleObserver;
+import android.arch.lifecycle.LifecycleOwner;
+import android.arch.lifecycle.OnLifecycleEvent;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Handler;
+
+import com.example.android.pets.data.PetsContract.petsEntry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reactive observation of the pets table.
+ *
+ * A subscriber receives one snapshot cursor of the table followed by the row-level
+ * {@link PetChangeEvent}s published from the provider's write path, so it never has to
+ * re-run the full query. Pending events are folded per row while a subscriber is not
+ * ready for them, and are delivered only as far as the subscriber has requested.
+ */
+public final class PetChangeStream {
+
+    // Demand value for subscribers that accept every event as soon as it is available
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    // Upper bound for the number of events handed over in one callback
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private static PetChangeStream sInstance;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions =
+            new CopyOnWriteArrayList<>();
+
+    // Runs snapshot queries off the subscriber's thread
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+
+    private PetChangeStream() {}
+
+    /**
+     * @return The process-wide change stream
+     */
+    public static synchronized PetChangeStream getInstance() {
+        if (sInstance == null) {
+            sInstance = new PetChangeStream();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Receives the snapshot and the changes of a {@link Subscription}. All callbacks run on
+     * the handler passed to {@link #subscribe}.
+     */
+    public interface Subscriber {
+
+        /**
+         * Called once with the current contents of the table. The subscriber owns the
+         * cursor and must close it. Changes that raced with the snapshot query may be
+         * delivered afterwards even if the snapshot already reflects them.
+         *
+         * @param snapshot Cursor over the table, or null if the query failed
+         */
+        void onSnapshot(Cursor snapshot);
+
+        /**
+         * Called with the next batch of changes, in commit order per row.
+         *
+         * @param changes Changes, at most as many as requested
+         */
+        void onChanges(List<PetChangeEvent> changes);
+    }
+
+    /**
+     * Subscribes to the pets table.
+     *
+     * @param resolver   Resolver used for the snapshot query
+     * @param projection Columns of the snapshot cursor
+     * @param subscriber Callbacks for the snapshot and the changes
+     * @param handler    Handler the callbacks are posted to
+     * @return Subscription with {@link #UNBOUNDED} demand; call
+     * {@link Subscription#request(long)} with a smaller value before the snapshot arrives
+     * to throttle delivery
+     */
+    public Subscription subscribe(final ContentResolver resolver, final String[] projection,
+                                  Subscriber subscriber, Handler handler) {
+        final Subscription subscription = new Subscription(subscriber, handler);
+
+        // Register before querying so no change committed after the snapshot is missed
+        subscriptions.add(subscription);
+
+        snapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (subscription.isCancelled()) {
+                    return;
+                }
+                Cursor snapshot = resolver.query(petsEntry.CONTENT_URI, projection,
+                        null, null, null);
+                if (snapshot != null) {
+                    // Fill the first window on this thread rather than the subscriber's
+                    snapshot.getCount();
+                }
+                subscription.deliverSnapshot(snapshot);
+            }
+        });
+        return subscription;
+    }
+
+    /**
+     * @return Whether anyone is listening, so the provider can skip reading values back
+     * for events. Only meaningful after the write committed: the write path itself always
+     * collects the IDs, since a subscriber registering meanwhile may take its snapshot
+     * before the commit.
+     */
+    boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Hands committed changes to every subscriber.
+     */
+    void publish(List<PetChangeEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.enqueue(events);
+        }
+    }
+
+    /**
+     * A live registration with the stream.
+     */
+    public final class Subscription {
+
+        private final Subscriber subscriber;
+        private final Handler handler;
+
+        // Guarded by this. Pending changes keyed by row ID, oldest row first.
+        private final LinkedHashMap<Long, PetChangeEvent> pending = new LinkedHashMap<>();
+        private long requested = UNBOUNDED;
+        private boolean snapshotDelivered;
+        private boolean dispatchPosted;
+        private volatile boolean cancelled;
+
+        private Subscription(Subscriber subscriber, Handler handler) {
+            this.subscriber = subscriber;
+            this.handler = handler;
+        }
+
+        /**
+         * Adds demand for more changes.
+         *
+         * @param count Number of additional changes the subscriber is ready for, or
+         *              {@link #UNBOUNDED}
+         */
+        public void request(long count) {
+            synchronized (this) {
+                if (count == UNBOUNDED) {
+                    requested = UNBOUNDED;
+                } else if (requested == UNBOUNDED) {
+                    // Switching from unbounded to counted demand
+                    requested = count;
+                } else if (requested > UNBOUNDED - count) {
+                    requested = UNBOUNDED;
+                } else {
+                    requested += count;
+                }
+            }
+            scheduleDispatch();
+        }
+
+        /**
+         * Stops delivery and drops pending changes. Safe to call more than once.
+         */
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            handler.removeCallbacks(dispatch);
+            synchronized (this) {
+                pending.clear();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Cancels this subscription when the given owner is destroyed.
+         */
+        public void bindTo(LifecycleOwner owner) {
+            owner.getLifecycle().addObserver(new CancelOnDestroy(this));
+        }
+
+        private void enqueue(List<PetChangeEvent> events) {
+            synchronized (this) {
+                for (PetChangeEvent event : events) {
+                    PetChangeEvent previous = pending.remove(event.getId());
+                    pending.put(event.getId(),
+                            previous == null ? event : previous.merge(event));
+                }
+            }
+            scheduleDispatch();
+        }
+
+        private void deliverSnapshot(final Cursor snapshot) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        if (snapshot != null) {
+                            snapshot.close();
+                        }
+                        return;
+                    }
+                    subscriber.onSnapshot(snapshot);
+                    synchronized (Subscription.this) {
+                        snapshotDelivered = true;
+                    }
+                    scheduleDispatch();
+                }
+            });
+        }
+
+        private void scheduleDispatch() {
+            synchronized (this) {
+                if (cancelled || dispatchPosted || !snapshotDelivered
+                        || requested == 0 || pending.isEmpty()) {
+                    return;
+                }
+                dispatchPosted = true;
+            }
+            handler.post(dispatch);
+        }
+
+        private final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                List<PetChangeEvent> batch;
+                synchronized (Subscription.this) {
+                    dispatchPosted = false;
+                    int size = (int) Math.min(Math.min(requested, MAX_BATCH_SIZE),
+                            pending.size());
+                    batch = new ArrayList<>(size);
+                    Iterator<PetChangeEvent> iterator = pending.values().iterator();
+                    while (batch.size() < size) {
+                        batch.add(iterator.next());
+                        iterator.remove();
+                    }
+                    if (requested != UNBOUNDED) {
+                        requested -= size;
+                    }
+                }
+                if (!cancelled && !batch.isEmpty()) {
+                    subscriber.onChanges(batch);
+                }
+                // Continue with whatever is left in later messages
+                scheduleDispatch();
+            }
+        };
+    }
+
+    /**
+     * Lifecycle observer that ends a subscription together with its owner.
+     */
+    static class CancelOnDestroy implements LifecycleObserver {
+
+        private final Subscription subscription;
+
+        CancelOnDestroy(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+        public void onDestroy() {
+            subscription.cancel();
+        }
+    }
+}
@@ -1,44 +1,915 @@
 package com.example.android.pets.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.data.PetsContract.facetsEntry;
+import com.example.android.pets.data.PetsContract.kennelAssignmentsEntry;
+import com.example.android.pets.data.PetsContract.kennelsEntry;
+import com.example.android.pets.data.PetsContract.medicalRecordsEntry;
+import com.example.android.pets.data.PetsContract.sectionsEntry;
+import com.example.android.pets.data.PetsContract.weightsEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
 import static com.example.android.pets.data.PetsContract.petsEntry.*;
 
 
 public class PetDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 11;
     public static final String DATABASE_NAME = "shelter.db";
 
+    // Lookup table holding each distinct breed name once. Pets refer to it by ID.
+    public static final String BREEDS_TABLE_NAME = "breeds";
+    public static final String COLUMN_BREED_KEY = "_id";
+    public static final String COLUMN_BREED_NAME = "name";
+
+    // Breed ID of pets of unknown breed, reserved for the empty name
+    public static final long UNKNOWN_BREED_ID = 1;
+
+    // Column of the pets table holding the breed ID. Readers still see the breed name
+    // in the breed column of the contract.
+    public static final String COLUMN_PET_BREED_ID = "breed_id";
+
+    // Column of the pets table holding the collation key of the name in the current
+    // locale. Keys compare as plain bytes, so ordering by name is an index walk.
+    public static final String COLUMN_PET_NAME_KEY = "name_key";
+
+    // Column of the pets table holding the section label of the name, see
+    // {@link #nameSection(String)}
+    public static final String COLUMN_PET_NAME_SECTION = "name_section";
+
+    // Column of the pets table holding the number of distinct trigrams of the name and
+    // breed, needed to score fuzzy matches
+    public static final String COLUMN_PET_TRIGRAM_COUNT = "trigram_count";
+
+    // Column of the pets table holding the wall clock time of the last write to the pet,
+    // in milliseconds. Pets inactive for long are moved to the {@link PetArchive}.
+    public static final String COLUMN_PET_LAST_ACTIVE = "last_active";
+
+    // Column of the pets table holding the kennel of the latest kennel assignment, next
+    // to its name in the kennel column of the contract
+    public static final String COLUMN_PET_KENNEL_ID = "kennel_id";
+
+    // Append-only history of the weights of the pets, written with every weight change
+    public static final String WEIGHT_SAMPLES_TABLE_NAME = "weight_samples";
+    public static final String COLUMN_SAMPLE_PET_ID = "pet_id";
+    public static final String COLUMN_SAMPLE_MEASURED_AT = "measured_at";
+
+    // Minimum, maximum, sum and count of the weight samples per pet, resolution and period
+    public static final String WEIGHT_ROLLUPS_TABLE_NAME = "weight_rollups";
+    public static final String COLUMN_ROLLUP_RESOLUTION = "resolution";
+    public static final String COLUMN_ROLLUP_WEIGHT_SUM = "weight_sum";
+
+    // Inverted index from the trigrams of name and breed to the pets containing them
+    public static final String TRIGRAMS_TABLE_NAME = "pet_trigrams";
+    public static final String COLUMN_TRIGRAM = "trigram";
+    public static final String COLUMN_TRIGRAM_PET_ID = "pet_id";
+
+    // One-row table remembering the locale the name keys were computed in
+    public static final String NAME_KEY_LOCALE_TABLE_NAME = "name_key_locale";
+    public static final String COLUMN_NAME_KEY_LOCALE = "locale";
+
+    public static final String SQL_CREATE_BREEDS = "CREATE TABLE " + BREEDS_TABLE_NAME + "(" +
+            COLUMN_BREED_KEY + " INTEGER PRIMARY KEY, " +
+            COLUMN_BREED_NAME + " TEXT NOT NULL UNIQUE" +
+            ");";
+
+    public static final String SQL_INSERT_UNKNOWN_BREED = "INSERT INTO " + BREEDS_TABLE_NAME +
+            " VALUES (" + UNKNOWN_BREED_ID + ", '');";
+
+    public static final String SQL_DELETE_BREEDS =
+            "DROP TABLE IF EXISTS " + BREEDS_TABLE_NAME;
+
     public static final String SQL_CREATE_ENTRIES = "CREATE TABLE " + TABLE_NAME +"(" +
             COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             COLUMN_PET_NAME + " TEXT NOT NULL, " +
-            COLUMN_PET_BREED + " TEXT, " +
+            COLUMN_PET_NAME_KEY + " BLOB NOT NULL DEFAULT x'', " +
+            COLUMN_PET_NAME_SECTION + " TEXT NOT NULL DEFAULT '" +
+            sectionsEntry.SECTION_OTHER + "', " +
+            COLUMN_PET_BREED_ID + " INTEGER NOT NULL DEFAULT " + UNKNOWN_BREED_ID +
+            " REFERENCES " + BREEDS_TABLE_NAME + "(" + COLUMN_BREED_KEY + "), " +
             COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
-            COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0" +
+            COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, " +
+            COLUMN_PET_TRIGRAM_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+            COLUMN_PET_LAST_ACTIVE + " INTEGER NOT NULL DEFAULT 0, " +
+            COLUMN_PET_EXTERNAL_ID + " TEXT, " +
+            COLUMN_PET_VISIT_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+            COLUMN_PET_LAST_VISIT + " INTEGER, " +
+            COLUMN_PET_KENNEL_ID + " INTEGER, " +
+            COLUMN_PET_KENNEL + " TEXT, " +
+            COLUMN_PET_PHOTO_VERSION + " INTEGER" +
             ");";
 
     public static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + TABLE_NAME;
 
+    // The pets with their breed names, for selections and sort orders that refer to the
+    // breed column
+    public static final String PETS_WITH_BREED_VIEW = "pets_with_breed";
+
+    public static final String SQL_CREATE_PETS_WITH_BREED_VIEW = "CREATE VIEW " +
+            PETS_WITH_BREED_VIEW + " AS SELECT " +
+            TABLE_NAME + "." + COLUMN_ID + " AS " + COLUMN_ID + ", " +
+            TABLE_NAME + "." + COLUMN_PET_NAME + " AS " + COLUMN_PET_NAME + ", " +
+            BREEDS_TABLE_NAME + "." + COLUMN_BREED_NAME + " AS " + COLUMN_PET_BREED + ", " +
+            COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + ", " + COLUMN_PET_BREED_ID + ", " +
+            COLUMN_PET_NAME_KEY + ", " + COLUMN_PET_EXTERNAL_ID + ", " + COLUMN_PET_VISIT_COUNT +
+            ", " + COLUMN_PET_LAST_VISIT + ", " + COLUMN_PET_KENNEL_ID + ", " +
+            COLUMN_PET_KENNEL + ", " + COLUMN_PET_PHOTO_VERSION + " FROM " + TABLE_NAME +
+            " JOIN " + BREEDS_TABLE_NAME + " ON " +
+            BREEDS_TABLE_NAME + "." + COLUMN_BREED_KEY + " = " + COLUMN_PET_BREED_ID + ";";
+
+    public static final String SQL_DELETE_PETS_WITH_BREED_VIEW =
+            "DROP VIEW IF EXISTS " + PETS_WITH_BREED_VIEW;
+
+    // Condition of the partial breed index. Queries have to repeat this exact term for
+    // SQLite to consider the index.
+    public static final String KNOWN_BREED_TERM =
+            COLUMN_PET_BREED_ID + " <> " + UNKNOWN_BREED_ID;
+
+    // Index answering the alphabetical order of the catalog
+    public static final String SQL_CREATE_NAME_KEY_INDEX =
+            "CREATE INDEX pets_name_key_idx ON " + TABLE_NAME + "(" + COLUMN_PET_NAME_KEY + ");";
+
+    // Index enforcing unique external IDs and answering upserts. Pets without an external
+    // ID are NULL and do not conflict.
+    public static final String SQL_CREATE_EXTERNAL_ID_INDEX =
+            "CREATE UNIQUE INDEX pets_external_id_idx ON " + TABLE_NAME + "(" +
+                    COLUMN_PET_EXTERNAL_ID + ");";
+
+    // Index finding the pets due for archiving, oldest activity first
+    public static final String SQL_CREATE_LAST_ACTIVE_INDEX =
+            "CREATE INDEX pets_last_active_idx ON " + TABLE_NAME + "(" +
+                    COLUMN_PET_LAST_ACTIVE + ");";
+
+    public static final String SQL_CREATE_NAME_KEY_LOCALE = "CREATE TABLE " +
+            NAME_KEY_LOCALE_TABLE_NAME + "(" + COLUMN_NAME_KEY_LOCALE + " TEXT NOT NULL);";
+
+    public static final String SQL_DELETE_NAME_KEY_LOCALE =
+            "DROP TABLE IF EXISTS " + NAME_KEY_LOCALE_TABLE_NAME;
+
+    // Composite index answering gender and weight range filters
+    public static final String SQL_CREATE_GENDER_WEIGHT_INDEX =
+            "CREATE INDEX pets_gender_weight_idx ON " + TABLE_NAME + "(" +
+                    COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + ");";
+
+    // Index answering breed filters, optionally followed by a weight range. Pets of
+    // unknown breed are left out when the SQLite version supports partial indexes.
+    public static final String SQL_CREATE_BREED_WEIGHT_INDEX =
+            "CREATE INDEX pets_breed_weight_idx ON " + TABLE_NAME + "(" +
+                    COLUMN_PET_BREED_ID + ", " + COLUMN_PET_WEIGHT + ")";
+
+    public static final String SQL_CREATE_FACET_COUNTS = "CREATE TABLE " +
+            facetsEntry.TABLE_NAME + "(" +
+            COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+            COLUMN_PET_WEIGHT + " INTEGER NOT NULL, " +
+            COLUMN_PET_BREED_ID + " INTEGER NOT NULL, " +
+            facetsEntry.COLUMN_COUNT + " INTEGER NOT NULL, " +
+            "PRIMARY KEY (" + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + ", " +
+            COLUMN_PET_BREED_ID + "));";
+
+    public static final String SQL_DELETE_FACET_COUNTS =
+            "DROP TABLE IF EXISTS " + facetsEntry.TABLE_NAME;
+
+    // Statements adding a row to, and removing a row from, the facet counts. The
+    // placeholder is replaced with NEW or OLD inside the triggers below.
+    private static final String FACET_KEY_MATCH =
+            COLUMN_PET_GENDER + " = %1$s." + COLUMN_PET_GENDER + " AND " +
+            COLUMN_PET_WEIGHT + " = %1$s." + COLUMN_PET_WEIGHT + " AND " +
+            COLUMN_PET_BREED_ID + " = %1$s." + COLUMN_PET_BREED_ID;
+
+    private static final String FACET_COUNT_ADD =
+            "INSERT OR IGNORE INTO " + facetsEntry.TABLE_NAME + " VALUES (" +
+            "%1$s." + COLUMN_PET_GENDER + ", %1$s." + COLUMN_PET_WEIGHT + ", " +
+            "%1$s." + COLUMN_PET_BREED_ID + ", 0); " +
+            "UPDATE " + facetsEntry.TABLE_NAME + " SET " + facetsEntry.COLUMN_COUNT + " = " +
+            facetsEntry.COLUMN_COUNT + " + 1 WHERE " + FACET_KEY_MATCH + "; ";
+
+    private static final String FACET_COUNT_REMOVE =
+            "UPDATE " + facetsEntry.TABLE_NAME + " SET " + facetsEntry.COLUMN_COUNT + " = " +
+            facetsEntry.COLUMN_COUNT + " - 1 WHERE " + FACET_KEY_MATCH + "; " +
+            "DELETE FROM " + facetsEntry.TABLE_NAME + " WHERE " + FACET_KEY_MATCH +
+            " AND " + facetsEntry.COLUMN_COUNT + " <= 0; ";
+
+    public static final String SQL_CREATE_FACET_INSERT_TRIGGER =
+            "CREATE TRIGGER pets_facets_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+            String.format(FACET_COUNT_ADD, "NEW") + "END;";
+
+    public static final String SQL_CREATE_FACET_DELETE_TRIGGER =
+            "CREATE TRIGGER pets_facets_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+            String.format(FACET_COUNT_REMOVE, "OLD") + "END;";
+
+    public static final String SQL_CREATE_FACET_UPDATE_TRIGGER =
+            "CREATE TRIGGER pets_facets_update AFTER UPDATE OF " + COLUMN_PET_GENDER + ", " +
+            COLUMN_PET_WEIGHT + ", " + COLUMN_PET_BREED_ID + " ON " + TABLE_NAME + " BEGIN " +
+            String.format(FACET_COUNT_REMOVE, "OLD") +
+            String.format(FACET_COUNT_ADD, "NEW") + "END;";
+
+    public static final String SQL_CREATE_NAME_SECTIONS = "CREATE TABLE " +
+            sectionsEntry.TABLE_NAME + "(" +
+            sectionsEntry.COLUMN_SECTION + " TEXT PRIMARY KEY, " +
+            sectionsEntry.COLUMN_COUNT + " INTEGER NOT NULL);";
+
+    public static final String SQL_DELETE_NAME_SECTIONS =
+            "DROP TABLE IF EXISTS " + sectionsEntry.TABLE_NAME;
+
+    // Statements adding a pet to, and removing a pet from, the count of its section.
+    // The placeholder is replaced with NEW or OLD inside the triggers below.
+    private static final String SECTION_MATCH = sectionsEntry.COLUMN_SECTION + " = %1$s." +
+            COLUMN_PET_NAME_SECTION;
+
+    private static final String SECTION_COUNT_ADD =
+            "INSERT OR IGNORE INTO " + sectionsEntry.TABLE_NAME + " VALUES (" +
+            "%1$s." + COLUMN_PET_NAME_SECTION + ", 0); " +
+            "UPDATE " + sectionsEntry.TABLE_NAME + " SET " + sectionsEntry.COLUMN_COUNT +
+            " = " + sectionsEntry.COLUMN_COUNT + " + 1 WHERE " + SECTION_MATCH + "; ";
+
+    private static final String SECTION_COUNT_REMOVE =
+            "UPDATE " + sectionsEntry.TABLE_NAME + " SET " + sectionsEntry.COLUMN_COUNT +
+            " = " + sectionsEntry.COLUMN_COUNT + " - 1 WHERE " + SECTION_MATCH + "; " +
+            "DELETE FROM " + sectionsEntry.TABLE_NAME + " WHERE " + SECTION_MATCH +
+            " AND " + sectionsEntry.COLUMN_COUNT + " <= 0; ";
+
+    public static final String SQL_CREATE_SECTION_INSERT_TRIGGER =
+            "CREATE TRIGGER pets_sections_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+            String.format(SECTION_COUNT_ADD, "NEW") + "END;";
+
+    public static final String SQL_CREATE_SECTION_DELETE_TRIGGER =
+            "CREATE TRIGGER pets_sections_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+            String.format(SECTION_COUNT_REMOVE, "OLD") + "END;";
+
+    public static final String SQL_CREATE_SECTION_UPDATE_TRIGGER =
+            "CREATE TRIGGER pets_sections_update AFTER UPDATE OF " + COLUMN_PET_NAME_SECTION +
+            " ON " + TABLE_NAME + " BEGIN " +
+            String.format(SECTION_COUNT_REMOVE, "OLD") +
+            String.format(SECTION_COUNT_ADD, "NEW") + "END;";
+
+    // The primary key answers lookups by trigram, the index removes the trigrams of a pet
+    public static final String SQL_CREATE_TRIGRAMS = "CREATE TABLE " +
+            TRIGRAMS_TABLE_NAME + "(" +
+            COLUMN_TRIGRAM + " INTEGER NOT NULL, " +
+            COLUMN_TRIGRAM_PET_ID + " INTEGER NOT NULL, " +
+            "PRIMARY KEY (" + COLUMN_TRIGRAM + ", " + COLUMN_TRIGRAM_PET_ID + "));";
+
+    public static final String SQL_CREATE_TRIGRAMS_PET_INDEX =
+            "CREATE INDEX pet_trigrams_pet_idx ON " + TRIGRAMS_TABLE_NAME + "(" +
+                    COLUMN_TRIGRAM_PET_ID + ");";
+
+    public static final String SQL_DELETE_TRIGRAMS =
+            "DROP TABLE IF EXISTS " + TRIGRAMS_TABLE_NAME;
+
+    // Trigrams are computed in Java when a pet is written, but dropping them with the
+    // pet is left to a trigger so every delete path is covered
+    public static final String SQL_CREATE_TRIGRAMS_DELETE_TRIGGER =
+            "CREATE TRIGGER pets_trigrams_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+            "DELETE FROM " + TRIGRAMS_TABLE_NAME + " WHERE " + COLUMN_TRIGRAM_PET_ID +
+            " = OLD." + COLUMN_ID + "; END;";
+
+    // Related tables. Their rows reference the pets with foreign keys and are deleted with
+    // the pet. Each has an index leading with the pet ID, so the cascade is an index
+    // range delete instead of a scan.
+    public static final String SQL_CREATE_MEDICAL_RECORDS = "CREATE TABLE " +
+            medicalRecordsEntry.TABLE_NAME + "(" +
+            medicalRecordsEntry._ID + " INTEGER PRIMARY KEY, " +
+            medicalRecordsEntry.COLUMN_PET_ID + " INTEGER NOT NULL REFERENCES " + TABLE_NAME +
+            "(" + COLUMN_ID + ") ON DELETE CASCADE, " +
+            medicalRecordsEntry.COLUMN_VISITED_AT + " INTEGER NOT NULL, " +
+            medicalRecordsEntry.COLUMN_DESCRIPTION + " TEXT" +
+            ");";
+
+    // Also answers the latest visit of a pet
+    public static final String SQL_CREATE_MEDICAL_RECORDS_PET_INDEX =
+            "CREATE INDEX medical_records_pet_idx ON " + medicalRecordsEntry.TABLE_NAME + "(" +
+                    medicalRecordsEntry.COLUMN_PET_ID + ", " +
+                    medicalRecordsEntry.COLUMN_VISITED_AT + ");";
+
+    public static final String SQL_DELETE_MEDICAL_RECORDS =
+            "DROP TABLE IF EXISTS " + medicalRecordsEntry.TABLE_NAME;
+
+    public static final String SQL_CREATE_KENNELS = "CREATE TABLE " +
+            kennelsEntry.TABLE_NAME + "(" +
+            kennelsEntry._ID + " INTEGER PRIMARY KEY, " +
+            kennelsEntry.COLUMN_KENNEL_NAME + " TEXT NOT NULL UNIQUE" +
+            ");";
+
+    public static final String SQL_DELETE_KENNELS =
+            "DROP TABLE IF EXISTS " + kennelsEntry.TABLE_NAME;
+
+    public static final String SQL_CREATE_KENNEL_ASSIGNMENTS = "CREATE TABLE " +
+            kennelAssignmentsEntry.TABLE_NAME + "(" +
+            kennelAssignmentsEntry._ID + " INTEGER PRIMARY KEY, " +
+            kennelAssignmentsEntry.COLUMN_PET_ID + " INTEGER NOT NULL REFERENCES " +
+            TABLE_NAME + "(" + COLUMN_ID + ") ON DELETE CASCADE, " +
+            kennelAssignmentsEntry.COLUMN_KENNEL_ID + " INTEGER NOT NULL REFERENCES " +
+            kennelsEntry.TABLE_NAME + "(" + kennelsEntry._ID + ") ON DELETE CASCADE, " +
+            kennelAssignmentsEntry.COLUMN_ASSIGNED_AT + " INTEGER NOT NULL" +
+            ");";
+
+    // Also answers the latest assignment of a pet
+    public static final String SQL_CREATE_KENNEL_ASSIGNMENTS_PET_INDEX =
+            "CREATE INDEX kennel_assignments_pet_idx ON " + kennelAssignmentsEntry.TABLE_NAME +
+                    "(" + kennelAssignmentsEntry.COLUMN_PET_ID + ", " +
+                    kennelAssignmentsEntry.COLUMN_ASSIGNED_AT + ");";
+
+    public static final String SQL_CREATE_KENNEL_ASSIGNMENTS_KENNEL_INDEX =
+            "CREATE INDEX kennel_assignments_kennel_idx ON " +
+                    kennelAssignmentsEntry.TABLE_NAME + "(" +
+                    kennelAssignmentsEntry.COLUMN_KENNEL_ID + ");";
+
+    public static final String SQL_DELETE_KENNEL_ASSIGNMENTS =
+            "DROP TABLE IF EXISTS " + kennelAssignmentsEntry.TABLE_NAME;
+
+    // Index answering the pets of a kennel and renames of kennels
+    public static final String SQL_CREATE_KENNEL_INDEX =
+            "CREATE INDEX pets_kennel_idx ON " + TABLE_NAME + "(" + COLUMN_PET_KENNEL_ID + ");";
+
+    // Statements recomputing the summary columns of a pet from its related rows. The
+    // placeholder is replaced with NEW or OLD inside the triggers below. Recomputing from
+    // the indexes instead of counting up and down keeps the summary right when rows are
+    // copied in by a restore, and costs a primary key lookup when the pet itself is being
+    // deleted.
+    private static final String VISIT_SUMMARY_UPDATE =
+            "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_PET_VISIT_COUNT + " = (SELECT COUNT(*) FROM " +
+            medicalRecordsEntry.TABLE_NAME + " WHERE " + medicalRecordsEntry.COLUMN_PET_ID +
+            " = %1$s." + medicalRecordsEntry.COLUMN_PET_ID + "), " +
+            COLUMN_PET_LAST_VISIT + " = (SELECT MAX(" + medicalRecordsEntry.COLUMN_VISITED_AT +
+            ") FROM " + medicalRecordsEntry.TABLE_NAME + " WHERE " +
+            medicalRecordsEntry.COLUMN_PET_ID + " = %1$s." + medicalRecordsEntry.COLUMN_PET_ID +
+            ") WHERE " + COLUMN_ID + " = %1$s." + medicalRecordsEntry.COLUMN_PET_ID + "; ";
+
+    private static final String LATEST_ASSIGNMENT =
+            " FROM " + kennelAssignmentsEntry.TABLE_NAME + " AS a JOIN " +
+            kennelsEntry.TABLE_NAME + " AS k ON k." + kennelsEntry._ID + " = a." +
+            kennelAssignmentsEntry.COLUMN_KENNEL_ID + " WHERE a." +
+            kennelAssignmentsEntry.COLUMN_PET_ID + " = %1$s." +
+            kennelAssignmentsEntry.COLUMN_PET_ID + " ORDER BY a." +
+            kennelAssignmentsEntry.COLUMN_ASSIGNED_AT + " DESC, a." +
+            kennelAssignmentsEntry._ID + " DESC LIMIT 1";
+
+    private static final String KENNEL_SUMMARY_UPDATE =
+            "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_PET_KENNEL_ID + " = (SELECT k." + kennelsEntry._ID + LATEST_ASSIGNMENT +
+            "), " + COLUMN_PET_KENNEL + " = (SELECT k." + kennelsEntry.COLUMN_KENNEL_NAME +
+            LATEST_ASSIGNMENT + ") WHERE " + COLUMN_ID + " = %1$s." +
+            kennelAssignmentsEntry.COLUMN_PET_ID + "; ";
+
+    public static final String SQL_CREATE_VISIT_INSERT_TRIGGER =
+            "CREATE TRIGGER medical_records_insert AFTER INSERT ON " +
+            medicalRecordsEntry.TABLE_NAME + " BEGIN " +
+            String.format(VISIT_SUMMARY_UPDATE, "NEW") + "END;";
+
+    public static final String SQL_CREATE_VISIT_DELETE_TRIGGER =
+            "CREATE TRIGGER medical_records_delete AFTER DELETE ON " +
+            medicalRecordsEntry.TABLE_NAME + " BEGIN " +
+            String.format(VISIT_SUMMARY_UPDATE, "OLD") + "END;";
+
+    public static final String SQL_CREATE_VISIT_UPDATE_TRIGGER =
+            "CREATE TRIGGER medical_records_update AFTER UPDATE OF " +
+            medicalRecordsEntry.COLUMN_PET_ID + ", " + medicalRecordsEntry.COLUMN_VISITED_AT +
+            " ON " + medicalRecordsEntry.TABLE_NAME + " BEGIN " +
+            String.format(VISIT_SUMMARY_UPDATE, "OLD") +
+            String.format(VISIT_SUMMARY_UPDATE, "NEW") + "END;";
+
+    public static final String SQL_CREATE_KENNEL_INSERT_TRIGGER =
+            "CREATE TRIGGER kennel_assignments_insert AFTER INSERT ON " +
+            kennelAssignmentsEntry.TABLE_NAME + " BEGIN " +
+            String.format(KENNEL_SUMMARY_UPDATE, "NEW") + "END;";
+
+    public static final String SQL_CREATE_KENNEL_DELETE_TRIGGER =
+            "CREATE TRIGGER kennel_assignments_delete AFTER DELETE ON " +
+            kennelAssignmentsEntry.TABLE_NAME + " BEGIN " +
+            String.format(KENNEL_SUMMARY_UPDATE, "OLD") + "END;";
+
+    public static final String SQL_CREATE_KENNEL_UPDATE_TRIGGER =
+            "CREATE TRIGGER kennel_assignments_update AFTER UPDATE OF " +
+            kennelAssignmentsEntry.COLUMN_PET_ID + ", " +
+            kennelAssignmentsEntry.COLUMN_KENNEL_ID + ", " +
+            kennelAssignmentsEntry.COLUMN_ASSIGNED_AT + " ON " +
+            kennelAssignmentsEntry.TABLE_NAME + " BEGIN " +
+            String.format(KENNEL_SUMMARY_UPDATE, "OLD") +
+            String.format(KENNEL_SUMMARY_UPDATE, "NEW") + "END;";
+
+    // Renaming a kennel renames it in the summary of the pets in it
+    public static final String SQL_CREATE_KENNEL_RENAME_TRIGGER =
+            "CREATE TRIGGER kennels_rename AFTER UPDATE OF " + kennelsEntry.COLUMN_KENNEL_NAME +
+            " ON " + kennelsEntry.TABLE_NAME + " BEGIN " +
+            "UPDATE " + TABLE_NAME + " SET " + COLUMN_PET_KENNEL + " = NEW." +
+            kennelsEntry.COLUMN_KENNEL_NAME + " WHERE " + COLUMN_PET_KENNEL_ID + " = NEW." +
+            kennelsEntry._ID + "; END;";
+
+    // The index answers the samples of a pet in order, and the deletes cascading from it
+    public static final String SQL_CREATE_WEIGHT_SAMPLES = "CREATE TABLE " +
+            WEIGHT_SAMPLES_TABLE_NAME + "(" +
+            weightsEntry._ID + " INTEGER PRIMARY KEY, " +
+            COLUMN_SAMPLE_PET_ID + " INTEGER NOT NULL REFERENCES " + TABLE_NAME + "(" +
+            COLUMN_ID + ") ON DELETE CASCADE, " +
+            COLUMN_SAMPLE_MEASURED_AT + " INTEGER NOT NULL, " +
+            COLUMN_PET_WEIGHT + " INTEGER NOT NULL" +
+            ");";
+
+    public static final String SQL_CREATE_WEIGHT_SAMPLES_PET_INDEX =
+            "CREATE INDEX weight_samples_pet_idx ON " + WEIGHT_SAMPLES_TABLE_NAME + "(" +
+                    COLUMN_SAMPLE_PET_ID + ", " + COLUMN_SAMPLE_MEASURED_AT + ");";
+
+    public static final String SQL_DELETE_WEIGHT_SAMPLES =
+            "DROP TABLE IF EXISTS " + WEIGHT_SAMPLES_TABLE_NAME;
+
+    // The primary key answers the periods of a pet in order, so a chart reads one row per
+    // period instead of one per sample
+    public static final String SQL_CREATE_WEIGHT_ROLLUPS = "CREATE TABLE " +
+            WEIGHT_ROLLUPS_TABLE_NAME + "(" +
+            COLUMN_SAMPLE_PET_ID + " INTEGER NOT NULL REFERENCES " + TABLE_NAME + "(" +
+            COLUMN_ID + ") ON DELETE CASCADE, " +
+            COLUMN_ROLLUP_RESOLUTION + " TEXT NOT NULL, " +
+            weightsEntry.COLUMN_PERIOD_START + " INTEGER NOT NULL, " +
+            weightsEntry.COLUMN_MIN_WEIGHT + " INTEGER NOT NULL, " +
+            weightsEntry.COLUMN_MAX_WEIGHT + " INTEGER NOT NULL, " +
+            COLUMN_ROLLUP_WEIGHT_SUM + " INTEGER NOT NULL, " +
+            weightsEntry.COLUMN_SAMPLE_COUNT + " INTEGER NOT NULL, " +
+            "PRIMARY KEY (" + COLUMN_SAMPLE_PET_ID + ", " + COLUMN_ROLLUP_RESOLUTION + ", " +
+            weightsEntry.COLUMN_PERIOD_START + "));";
+
+    public static final String SQL_DELETE_WEIGHT_ROLLUPS =
+            "DROP TABLE IF EXISTS " + WEIGHT_ROLLUPS_TABLE_NAME;
+
+    // Start of the UTC day, Monday-based week and month of a new sample, in milliseconds.
+    // Day 0 of the epoch was a Thursday.
+    private static final String SAMPLE_DAY = "(NEW." + COLUMN_SAMPLE_MEASURED_AT +
+            " / 86400000)";
+    private static final String DAY_START = SAMPLE_DAY + " * 86400000";
+    private static final String WEEK_START = "(" + SAMPLE_DAY + " - (" + SAMPLE_DAY +
+            " + 3) % 7) * 86400000";
+    private static final String MONTH_START = "CAST(strftime('%s', NEW." +
+            COLUMN_SAMPLE_MEASURED_AT + " / 1000, 'unixepoch', 'start of month') AS INTEGER)" +
+            " * 1000";
+
+    // Statements adding a new sample to its period of a resolution. The placeholders are
+    // replaced with the resolution and the start of the period.
+    private static final String ROLLUP_KEY_MATCH =
+            COLUMN_SAMPLE_PET_ID + " = NEW." + COLUMN_SAMPLE_PET_ID + " AND " +
+            COLUMN_ROLLUP_RESOLUTION + " = '%1$s' AND " +
+            weightsEntry.COLUMN_PERIOD_START + " = %2$s";
+
+    private static final String ROLLUP_ADD =
+            "INSERT OR IGNORE INTO " + WEIGHT_ROLLUPS_TABLE_NAME + " VALUES (NEW." +
+            COLUMN_SAMPLE_PET_ID + ", '%1$s', %2$s, NEW." + COLUMN_PET_WEIGHT + ", NEW." +
+            COLUMN_PET_WEIGHT + ", 0, 0); " +
+            "UPDATE " + WEIGHT_ROLLUPS_TABLE_NAME + " SET " +
+            weightsEntry.COLUMN_MIN_WEIGHT + " = MIN(" + weightsEntry.COLUMN_MIN_WEIGHT +
+            ", NEW." + COLUMN_PET_WEIGHT + "), " +
+            weightsEntry.COLUMN_MAX_WEIGHT + " = MAX(" + weightsEntry.COLUMN_MAX_WEIGHT +
+            ", NEW." + COLUMN_PET_WEIGHT + "), " +
+            COLUMN_ROLLUP_WEIGHT_SUM + " = " + COLUMN_ROLLUP_WEIGHT_SUM + " + NEW." +
+            COLUMN_PET_WEIGHT + ", " +
+            weightsEntry.COLUMN_SAMPLE_COUNT + " = " + weightsEntry.COLUMN_SAMPLE_COUNT +
+            " + 1 WHERE " + ROLLUP_KEY_MATCH + "; ";
+
+    // Samples are never updated, and only deleted together with their rollups
+    public static final String SQL_CREATE_WEIGHT_ROLLUP_TRIGGER =
+            "CREATE TRIGGER weight_samples_rollup AFTER INSERT ON " +
+            WEIGHT_SAMPLES_TABLE_NAME + " BEGIN " +
+            String.format(ROLLUP_ADD, weightsEntry.RESOLUTION_DAY, DAY_START) +
+            String.format(ROLLUP_ADD, weightsEntry.RESOLUTION_WEEK, WEEK_START) +
+            String.format(ROLLUP_ADD, weightsEntry.RESOLUTION_MONTH, MONTH_START) + "END;";
+
+    // Tables whose rows an upgrade keeps, in an order that satisfies the foreign keys.
+    // Facet and section counts and weight rollups are rebuilt by the triggers as the rows
+    // are copied, and the name keys by the next onOpen(), since the locale is not kept.
+    private static final String[] MIGRATED_TABLES = {
+            BREEDS_TABLE_NAME,
+            kennelsEntry.TABLE_NAME,
+            TABLE_NAME,
+            TRIGRAMS_TABLE_NAME,
+            medicalRecordsEntry.TABLE_NAME,
+            kennelAssignmentsEntry.TABLE_NAME,
+            WEIGHT_SAMPLES_TABLE_NAME};
+
+    // Prefix of the tables of the previous schema while an upgrade copies them
+    private static final String OLD_TABLE_PREFIX = "old_";
+
+    // Statements raising the ID sequence of the pets table to an ID, creating it if the
+    // table never had a row
+    private static final String SQL_CREATE_PET_ID_SEQUENCE = "INSERT INTO sqlite_sequence " +
+            "(name, seq) SELECT '" + TABLE_NAME + "', 0 WHERE NOT EXISTS " +
+            "(SELECT 1 FROM sqlite_sequence WHERE name = '" + TABLE_NAME + "')";
+    private static final String SQL_RAISE_PET_ID_SEQUENCE = "UPDATE sqlite_sequence " +
+            "SET seq = MAX(seq, ?) WHERE name = '" + TABLE_NAME + "'";
+
+    // Background housekeeping for the database file
+    private final DbMaintenanceScheduler maintenanceScheduler;
+
+    // Single writer thread batching concurrent writes into shared transactions
+    private final GroupCommitWriter writer;
+
+    // Cache of the breeds lookup table
+    private final BreedDictionary breeds;
+
     public PetDbHelper(Context context){
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // Write-ahead logging lets readers run while a write is in progress and makes
+        // checkpoints something the maintenance scheduler can do off the hot path
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        maintenanceScheduler = new DbMaintenanceScheduler(this);
+        writer = new GroupCommitWriter(this);
+        breeds = new BreedDictionary(this);
+    }
+
+    /**
+     * @return The scheduler running maintenance on this database while it is idle
+     */
+    public DbMaintenanceScheduler getMaintenanceScheduler() {
+        return maintenanceScheduler;
+    }
+
+    /**
+     * @return The writer all writes to this database should go through
+     */
+    public GroupCommitWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return The cache of the breeds lookup table of this database
+     */
+    public BreedDictionary getBreeds() {
+        return breeds;
+    }
+
+    /**
+     * Only called from API 16 on, so files created on older platforms keep the default
+     * auto_vacuum mode. The {@link DbMaintenanceScheduler} switches those, and files created
+     * before the mode was set here, once they hold enough free pages.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // The auto_vacuum mode only changes before the first table or with a VACUUM. A new
+        // file only holds the metadata table Android creates on open, so the VACUUM is
+        // instant, and unlike onCreate() this runs outside of a transaction.
+        if (db.getVersion() == 0 && !db.isReadOnly()
+                && readLong(db, "PRAGMA auto_vacuum")
+                != DbMaintenanceScheduler.AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+        // Deleting a pet cascades to its related rows
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Older platforms have no setWriteAheadLoggingEnabled(), enable it on the connection
+        // Nor onConfigure(), so foreign keys are enabled here too
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+            db.execSQL("PRAGMA foreign_keys = ON;");
+        }
+        if (!db.isReadOnly()) {
+            refreshNameKeys(db);
+        }
+    }
+
+    /**
+     * Returns the collation key of a pet name. Keys of the same collator compare with a
+     * plain byte comparison the way the collator compares the names.
+     */
+    public static byte[] nameKey(Collator collator, String name) {
+        return collator.getCollationKey(name).toByteArray();
+    }
+
+    /**
+     * Returns the section label of a pet name: its first letter in upper case, or
+     * {@link sectionsEntry#SECTION_OTHER} if the name does not start with a letter.
+     */
+    public static String nameSection(String name) {
+        if (name == null || name.isEmpty()) {
+            return sectionsEntry.SECTION_OTHER;
+        }
+        int first = name.codePointAt(0);
+        if (!Character.isLetter(first)) {
+            return sectionsEntry.SECTION_OTHER;
+        }
+        return new String(Character.toChars(first)).toUpperCase(Locale.getDefault());
+    }
+
+    /**
+     * Recomputes the name keys and sections of all pets if the locale changed since they
+     * were computed.
+     */
+    static void refreshNameKeys(SQLiteDatabase db) {
+        refreshNameKeys(db, TABLE_NAME, true);
+    }
+
+    /**
+     * Recomputes the name keys of all pets in a table if the locale changed since they were
+     * computed. The database keeps the locale in its {@link #NAME_KEY_LOCALE_TABLE_NAME}.
+     *
+     * @param table    Table with the name and name key columns of the pets table
+     * @param sections Whether the table also has the name section column
+     */
+    static void refreshNameKeys(SQLiteDatabase db, String table, boolean sections) {
+        String locale = Locale.getDefault().toString();
+
+        Cursor cursor = db.query(NAME_KEY_LOCALE_TABLE_NAME,
+                new String[]{COLUMN_NAME_KEY_LOCALE}, null, null, null, null, null);
+        try {
+            if (cursor.moveToFirst() && locale.equals(cursor.getString(0))) {
+                return;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.i("PetDbHelper", "Recomputing name keys of " + table + " for locale " + locale);
+        Collator collator = Collator.getInstance();
+        db.beginTransaction();
+        try {
+            Cursor pets = db.query(table, new String[]{COLUMN_ID, COLUMN_PET_NAME},
+                    null, null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (pets.moveToNext()) {
+                    values.put(COLUMN_PET_NAME_KEY, nameKey(collator, pets.getString(1)));
+                    if (sections) {
+                        values.put(COLUMN_PET_NAME_SECTION, nameSection(pets.getString(1)));
+                    }
+                    db.update(table, values, COLUMN_ID + "=?",
+                            new String[]{String.valueOf(pets.getLong(0))});
+                }
+            } finally {
+                pets.close();
+            }
+
+            ContentValues localeValues = new ContentValues();
+            localeValues.put(COLUMN_NAME_KEY_LOCALE, locale);
+            db.delete(NAME_KEY_LOCALE_TABLE_NAME, null, null);
+            db.insert(NAME_KEY_LOCALE_TABLE_NAME, null, localeValues);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        maintenanceScheduler.shutdown();
+        writer.shutdown();
+        super.close();
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         Log.i("PetDbHelper", SQL_CREATE_ENTRIES);
+        createSchema(sqLiteDatabase);
+    }
+
+    private static void createSchema(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(SQL_CREATE_BREEDS);
+        sqLiteDatabase.execSQL(SQL_INSERT_UNKNOWN_BREED);
         sqLiteDatabase.execSQL(SQL_CREATE_ENTRIES);
+        sqLiteDatabase.execSQL(SQL_CREATE_PETS_WITH_BREED_VIEW);
+        // The locale is filled in by the first onOpen()
+        sqLiteDatabase.execSQL(SQL_CREATE_NAME_KEY_LOCALE);
+
+        // Indexes for sorting and filtering
+        sqLiteDatabase.execSQL(SQL_CREATE_NAME_KEY_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_GENDER_WEIGHT_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_LAST_ACTIVE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_EXTERNAL_ID_INDEX);
+        if (supportsPartialIndexes(sqLiteDatabase)) {
+            sqLiteDatabase.execSQL(SQL_CREATE_BREED_WEIGHT_INDEX +
+                    " WHERE " + KNOWN_BREED_TERM + ";");
+        } else {
+            sqLiteDatabase.execSQL(SQL_CREATE_BREED_WEIGHT_INDEX + ";");
+        }
+
+        // Facet counts, maintained by triggers so they never need a scan of the pets table
+        sqLiteDatabase.execSQL(SQL_CREATE_FACET_COUNTS);
+        sqLiteDatabase.execSQL(SQL_CREATE_FACET_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_FACET_DELETE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_FACET_UPDATE_TRIGGER);
+
+        // Pets per name section, for the fast scroller of the catalog
+        sqLiteDatabase.execSQL(SQL_CREATE_NAME_SECTIONS);
+        sqLiteDatabase.execSQL(SQL_CREATE_SECTION_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_SECTION_DELETE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_SECTION_UPDATE_TRIGGER);
+
+        // Trigram index for fuzzy matching of names and breeds
+        sqLiteDatabase.execSQL(SQL_CREATE_TRIGRAMS);
+        sqLiteDatabase.execSQL(SQL_CREATE_TRIGRAMS_PET_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_TRIGRAMS_DELETE_TRIGGER);
+
+        // Medical records and kennels, summarized into the pets table by triggers so the
+        // catalog reads them without a join
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNELS);
+        sqLiteDatabase.execSQL(SQL_CREATE_MEDICAL_RECORDS);
+        sqLiteDatabase.execSQL(SQL_CREATE_MEDICAL_RECORDS_PET_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_ASSIGNMENTS);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_ASSIGNMENTS_PET_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_ASSIGNMENTS_KENNEL_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_VISIT_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_VISIT_DELETE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_VISIT_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_DELETE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_KENNEL_RENAME_TRIGGER);
+
+        // Weight history, rolled up per period as samples come in
+        sqLiteDatabase.execSQL(SQL_CREATE_WEIGHT_SAMPLES);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEIGHT_SAMPLES_PET_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEIGHT_ROLLUPS);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEIGHT_ROLLUP_TRIGGER);
+    }
+
+    /**
+     * Partial indexes are available from SQLite 3.8.0 on, which ships with API 21.
+     */
+    private static boolean supportsPartialIndexes(SQLiteDatabase db) {
+        return isSqliteVersionAtLeast(db, 3, 8);
+    }
+
+    /**
+     * Returns whether the SQLite library of the platform is at least the given version.
+     */
+    static boolean isSqliteVersionAtLeast(SQLiteDatabase db, int major, int minor) {
+        Cursor cursor = db.rawQuery("SELECT sqlite_version()", null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            String[] parts = cursor.getString(0).split("\\.");
+            int actualMajor = Integer.parseInt(parts[0]);
+            int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long readLong(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Raises the ID sequence of the pets table to an ID, so new pets get higher IDs.
+     */
+    static void raisePetIdSequence(SQLiteDatabase db, long id) {
+        db.execSQL(SQL_CREATE_PET_ID_SEQUENCE);
+        db.execSQL(SQL_RAISE_PET_ID_SEQUENCE, new Object[]{id});
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // simply to discard the data and start over.
-        sqLiteDatabase.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(sqLiteDatabase);
+        // The pets, their history and the archive refer to each other by ID, so the rows
+        // are carried over to the new schema instead of starting over
+        migrate(sqLiteDatabase);
+    }
+
+    /**
+     * Moves the rows of a database of any earlier version to the current schema. The
+     * tables are created anew, and the columns they share with the old ones copied, IDs
+     * included. Pets from before the breeds table get their breed by name, those from
+     * before activity tracking count as active now, and those from before the trigram
+     * index are indexed. Runs inside a transaction.
+     */
+    static void migrate(SQLiteDatabase db) {
+        long petIdSequence = 0;
+        List<String> oldTables = new ArrayList<>();
+        List<String> droppedObjects = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master WHERE " +
+                "sql IS NOT NULL AND name NOT LIKE 'sqlite_%' AND name <> 'android_metadata'" +
+                " ORDER BY type = 'table'", null);
+        try {
+            while (cursor.moveToNext()) {
+                String type = cursor.getString(0);
+                String name = cursor.getString(1);
+                if ("table".equals(type) && Arrays.asList(MIGRATED_TABLES).contains(name)) {
+                    oldTables.add(name);
+                } else {
+                    droppedObjects.add("DROP " + type + " IF EXISTS " + name);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (readLong(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = 'sqlite_sequence'")
+                > 0) {
+            petIdSequence = readLong(db, "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence" +
+                    " WHERE name = '" + TABLE_NAME + "'");
+        }
+
+        // Views and triggers would break the renames, and onCreate() takes the names of
+        // the indexes again. Triggers, views and indexes are listed before the tables.
+        for (String sql : droppedObjects) {
+            db.execSQL(sql);
+        }
+        for (String table : oldTables) {
+            db.execSQL("ALTER TABLE " + table + " RENAME TO " + OLD_TABLE_PREFIX + table);
+        }
+        createSchema(db);
+
+        for (String table : MIGRATED_TABLES) {
+            if (oldTables.contains(table)) {
+                copyCommonColumns(db, table);
+            }
+        }
+        if (!oldTables.contains(TRIGRAMS_TABLE_NAME)) {
+            Cursor pets = db.query(TABLE_NAME, new String[]{COLUMN_ID}, null, null, null,
+                    null, null);
+            try {
+                while (pets.moveToNext()) {
+                    SqlitePetStorageEngine.reindexTrigrams(db, pets.getLong(0));
+                }
+            } finally {
+                pets.close();
+            }
+        }
+
+        // Tables referencing others go first
+        for (int i = MIGRATED_TABLES.length - 1; i >= 0; i--) {
+            db.execSQL("DROP TABLE IF EXISTS " + OLD_TABLE_PREFIX + MIGRATED_TABLES[i]);
+        }
+        if (petIdSequence > 0) {
+            raisePetIdSequence(db, petIdSequence);
+        }
+    }
+
+    private static void copyCommonColumns(SQLiteDatabase db, String table) {
+        String oldTable = OLD_TABLE_PREFIX + table;
+        List<String> oldColumns = columnsOf(db, oldTable);
+        List<String> targets = new ArrayList<>();
+        List<String> sources = new ArrayList<>();
+        for (String column : columnsOf(db, table)) {
+            if (oldColumns.contains(column)) {
+                targets.add(column);
+                sources.add(column);
+            }
+        }
+
+        if (TABLE_NAME.equals(table)) {
+            if (!oldColumns.contains(COLUMN_PET_BREED_ID)
+                    && oldColumns.contains(COLUMN_PET_BREED)) {
+                db.execSQL("INSERT OR IGNORE INTO " + BREEDS_TABLE_NAME + " (" +
+                        COLUMN_BREED_NAME + ") SELECT DISTINCT IFNULL(" + COLUMN_PET_BREED +
+                        ", '') FROM " + oldTable);
+                targets.add(COLUMN_PET_BREED_ID);
+                sources.add("(SELECT " + COLUMN_BREED_KEY + " FROM " + BREEDS_TABLE_NAME +
+                        " WHERE " + COLUMN_BREED_NAME + " = IFNULL(" + oldTable + "." +
+                        COLUMN_PET_BREED + ", ''))");
+            }
+            if (!oldColumns.contains(COLUMN_PET_LAST_ACTIVE)) {
+                targets.add(COLUMN_PET_LAST_ACTIVE);
+                sources.add(String.valueOf(System.currentTimeMillis()));
+            }
+        }
+
+        // The unknown breed is already there
+        String insert = BREEDS_TABLE_NAME.equals(table) ? "INSERT OR IGNORE" : "INSERT";
+        db.execSQL(insert + " INTO " + table + " (" + TextUtils.join(", ", targets) +
+                ") SELECT " + TextUtils.join(", ", sources) + " FROM " + oldTable);
+    }
+
+    private static List<String> columnsOf(SQLiteDatabase db, String table) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            List<String> columns = new ArrayList<>(cursor.getCount());
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+            return columns;
+        } finally {
+            cursor.close();
+        }
     }
 }
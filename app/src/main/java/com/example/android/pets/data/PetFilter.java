@@ -0,0 +1,229 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+
+import com.example.android.pets.data.PetsContract.petsEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Structured filter on gender, weight range and breed.
+ *
+ * A filter travels to {@link PetProvider} as query parameters of the pets or facets URI
+ * (see {@link #applyTo(Uri)}), and the provider turns it back into SQL with
+ * {@link #fromUri(Uri)} and {@link #buildSelection}. The generated terms match the
+ * indexes created by {@link PetDbHelper}.
+ */
+public class PetFilter {
+
+    private static final String FILTER_EXCEPTION = "Invalid filter parameter ";
+
+    // Genders to match, empty for any gender
+    private int[] genders = new int[0];
+
+    // Inclusive weight bounds, null when unbounded
+    private Integer minWeight;
+    private Integer maxWeight;
+
+    // Breeds to match, empty for any breed
+    private String[] breeds = new String[0];
+
+    /**
+     * Restricts the filter to the given genders.
+     */
+    public PetFilter setGenders(int... genders) {
+        for (int gender : genders) {
+            if (!petsEntry.isValidGender(gender)) {
+                throw new IllegalArgumentException(FILTER_EXCEPTION + gender);
+            }
+        }
+        this.genders = genders.clone();
+        return this;
+    }
+
+    /**
+     * Restricts the filter to weights within the given inclusive bounds.
+     *
+     * @param minWeight Lower bound, or null for none
+     * @param maxWeight Upper bound, or null for none
+     */
+    public PetFilter setWeightRange(Integer minWeight, Integer maxWeight) {
+        this.minWeight = minWeight;
+        this.maxWeight = maxWeight;
+        return this;
+    }
+
+    /**
+     * Restricts the filter to the given breeds. The empty string matches pets of
+     * unknown breed.
+     */
+    public PetFilter setBreeds(String... breeds) {
+        this.breeds = breeds.clone();
+        return this;
+    }
+
+    public int[] getGenders() {
+        return genders.clone();
+    }
+
+    public Integer getMinWeight() {
+        return minWeight;
+    }
+
+    public Integer getMaxWeight() {
+        return maxWeight;
+    }
+
+    public String[] getBreeds() {
+        return breeds.clone();
+    }
+
+    /**
+     * @return Whether the filter matches every pet
+     */
+    public boolean isEmpty() {
+        return genders.length == 0 && minWeight == null && maxWeight == null
+                && breeds.length == 0;
+    }
+
+    /**
+     * Appends this filter to a pets or facets URI as query parameters.
+     */
+    public Uri applyTo(Uri uri) {
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (int gender : genders) {
+            builder.appendQueryParameter(petsEntry.QUERY_PARAM_GENDER, String.valueOf(gender));
+        }
+        if (minWeight != null) {
+            builder.appendQueryParameter(petsEntry.QUERY_PARAM_MIN_WEIGHT,
+                    String.valueOf(minWeight));
+        }
+        if (maxWeight != null) {
+            builder.appendQueryParameter(petsEntry.QUERY_PARAM_MAX_WEIGHT,
+                    String.valueOf(maxWeight));
+        }
+        for (String breed : breeds) {
+            builder.appendQueryParameter(petsEntry.QUERY_PARAM_BREED, breed);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads a filter from the query parameters of a pets or facets URI.
+     *
+     * @throws IllegalArgumentException if a parameter is not a valid value
+     */
+    public static PetFilter fromUri(Uri uri) {
+        PetFilter filter = new PetFilter();
+
+        List<String> genderParams = uri.getQueryParameters(petsEntry.QUERY_PARAM_GENDER);
+        int[] genders = new int[genderParams.size()];
+        for (int i = 0; i < genders.length; i++) {
+            genders[i] = parseInt(genderParams.get(i));
+        }
+        filter.setGenders(genders);
+
+        String min = uri.getQueryParameter(petsEntry.QUERY_PARAM_MIN_WEIGHT);
+        String max = uri.getQueryParameter(petsEntry.QUERY_PARAM_MAX_WEIGHT);
+        filter.setWeightRange(min == null ? null : parseInt(min),
+                max == null ? null : parseInt(max));
+
+        List<String> breedParams = uri.getQueryParameters(petsEntry.QUERY_PARAM_BREED);
+        filter.setBreeds(breedParams.toArray(new String[breedParams.size()]));
+
+        return filter;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(FILTER_EXCEPTION + value);
+        }
+    }
+
+    /**
+     * Builds a selection over the gender, weight and breed columns.
+     *
+     * Gender and weight produce "gender IN (...) AND weight >= ? AND weight <= ?", which
+     * is answered by the (gender, weight) index. Breeds are resolved to their IDs and
+     * produce "breed_id IN (...)", plus the literal known breed term that lets SQLite
+     * use the partial breed index when only known breeds are requested. Breeds that are
+     * not in the lookup table match no pet.
+     *
+     * @param args         List the selection arguments are appended to
+     * @param breedIds     Dictionary resolving breed names to IDs
+     * @param applyGender  Whether to include the gender condition
+     * @param applyWeight  Whether to include the weight conditions
+     * @param applyBreed   Whether to include the breed condition
+     * @return The selection, or null if no condition applies
+     */
+    String buildSelection(List<String> args, BreedDictionary breedIds, boolean applyGender,
+                          boolean applyWeight, boolean applyBreed) {
+        List<String> terms = new ArrayList<>();
+
+        if (applyGender && genders.length > 0) {
+            terms.add(petsEntry.COLUMN_PET_GENDER + " IN (" + placeholders(genders.length) + ")");
+            for (int gender : genders) {
+                args.add(String.valueOf(gender));
+            }
+        }
+        if (applyWeight && minWeight != null) {
+            terms.add(petsEntry.COLUMN_PET_WEIGHT + " >= ?");
+            args.add(String.valueOf(minWeight));
+        }
+        if (applyWeight && maxWeight != null) {
+            terms.add(petsEntry.COLUMN_PET_WEIGHT + " <= ?");
+            args.add(String.valueOf(maxWeight));
+        }
+        if (applyBreed && breeds.length > 0) {
+            List<String> ids = new ArrayList<>(breeds.length);
+            for (String breed : breeds) {
+                Long id = breedIds.lookupId(breed);
+                if (id != null) {
+                    ids.add(String.valueOf(id));
+                }
+            }
+            if (ids.isEmpty()) {
+                // None of the breeds exist
+                terms.add("0");
+            } else {
+                terms.add(PetDbHelper.COLUMN_PET_BREED_ID + " IN (" +
+                        placeholders(ids.size()) + ")");
+                args.addAll(ids);
+            }
+            if (!Arrays.asList(breeds).contains("")) {
+                terms.add(PetDbHelper.KNOWN_BREED_TERM);
+            }
+        }
+
+        if (terms.isEmpty()) {
+            return null;
+        }
+        StringBuilder selection = new StringBuilder();
+        for (String term : terms) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            selection.append(term);
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Builds a selection with all conditions of the filter.
+     */
+    String buildSelection(List<String> args, BreedDictionary breedIds) {
+        return buildSelection(args, breedIds, true, true, true);
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+}
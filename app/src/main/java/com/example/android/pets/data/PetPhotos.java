@@ -0,0 +1,218 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetsContract.petsEntry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Photos of the pets, stored as one file per pet next to the database instead of in it, so
+ * the pets table and the cursors read from it stay small.
+ *
+ * Callers get file descriptors of the files themselves, which they read and write without
+ * the provider copying anything. A new photo is written to a temporary file that replaces
+ * the photo when it is closed, so readers never see half a photo. Then
+ * {@link petsEntry#COLUMN_PET_PHOTO_VERSION} changes, which tells caches the photo changed.
+ */
+public class PetPhotos {
+
+    private static final String LOG_TAG = PetPhotos.class.getSimpleName();
+
+    private static final String PHOTO_DIRECTORY = "photos";
+    private static final String PHOTO_SUFFIX = ".photo";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Told about pets whose photo changed, on the thread that changed it.
+     */
+    public interface Listener {
+        void onPhotoChanged(long petId);
+    }
+
+    private final PetDbHelper dbHelper;
+    private final File directory;
+    private final Listener listener;
+
+    // Thread running the close listeners of written photos, started on the first write
+    private Handler closeHandler;
+
+    public PetPhotos(Context context, PetDbHelper dbHelper, Listener listener) {
+        this.dbHelper = dbHelper;
+        this.directory = new File(context.getFilesDir(), PHOTO_DIRECTORY);
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the photo of a pet.
+     *
+     * @param mode "r" to read the photo, "w" or "wt" to replace it
+     * @throws FileNotFoundException if the pet has no photo to read, the pet to write does
+     *                               not exist or the mode is not supported
+     */
+    public ParcelFileDescriptor open(long petId, String mode) throws FileNotFoundException {
+        switch (mode) {
+            case "r":
+                File photo = photoFile(petId);
+                if (!photo.exists()) {
+                    throw new FileNotFoundException("No photo for pet " + petId);
+                }
+                return ParcelFileDescriptor.open(photo, ParcelFileDescriptor.MODE_READ_ONLY);
+            case "w":
+            case "wt":
+                return openForWrite(petId);
+            default:
+                throw new FileNotFoundException("Unsupported photo mode " + mode);
+        }
+    }
+
+    private ParcelFileDescriptor openForWrite(final long petId) throws FileNotFoundException {
+        // Archived pets keep their photos but cannot get new ones
+        long pets = DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                petsEntry.TABLE_NAME, petsEntry._ID + "=" + petId);
+        if (pets == 0) {
+            throw new FileNotFoundException("No pet " + petId);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FileNotFoundException("Cannot create " + directory);
+        }
+        int mode = ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                | ParcelFileDescriptor.MODE_TRUNCATE;
+
+        // Older platforms cannot tell when the caller is done, so they write the photo in
+        // place and bump the version right away
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(photoFile(petId), mode);
+            setVersion(petId, System.currentTimeMillis());
+            return descriptor;
+        }
+
+        final File temp = new File(directory, petId + TEMP_SUFFIX);
+        return ParcelFileDescriptor.open(temp, mode, getCloseHandler(),
+                new ParcelFileDescriptor.OnCloseListener() {
+                    @Override
+                    public void onClose(IOException e) {
+                        if (e == null && temp.renameTo(photoFile(petId))) {
+                            setVersion(petId, System.currentTimeMillis());
+                        } else {
+                            Log.w(LOG_TAG, "Discarding photo of pet " + petId, e);
+                            temp.delete();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Deletes the photo of a pet.
+     *
+     * @return Whether the pet had a photo
+     */
+    public boolean delete(long petId) {
+        if (!photoFile(petId).delete()) {
+            return false;
+        }
+        setVersion(petId, null);
+        return true;
+    }
+
+    /**
+     * Deletes the photos of pets that were deleted.
+     */
+    public void deleteAll(List<Long> petIds) {
+        for (long petId : petIds) {
+            photoFile(petId).delete();
+        }
+    }
+
+    /**
+     * Sets the photo version of every pet to the time its photo file was last written, or
+     * to null if it has none. Photos are not part of snapshots, so a restore brings back
+     * versions of files that may have been replaced or deleted since. Runs on the writer
+     * thread, inside the restore.
+     */
+    void resetVersions(SQLiteDatabase db) {
+        ContentValues none = new ContentValues(1);
+        none.putNull(petsEntry.COLUMN_PET_PHOTO_VERSION);
+        db.update(petsEntry.TABLE_NAME, none,
+                petsEntry.COLUMN_PET_PHOTO_VERSION + " IS NOT NULL", null);
+
+        String[] files = directory.list();
+        if (files == null) {
+            return;
+        }
+        ContentValues values = new ContentValues(1);
+        for (String file : files) {
+            if (!file.endsWith(PHOTO_SUFFIX)) {
+                continue;
+            }
+            long petId;
+            try {
+                petId = Long.parseLong(file.substring(0, file.length() - PHOTO_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            // Photos of archived pets match no row here
+            values.put(petsEntry.COLUMN_PET_PHOTO_VERSION,
+                    new File(directory, file).lastModified());
+            db.update(petsEntry.TABLE_NAME, values, petsEntry._ID + "=" + petId, null);
+        }
+    }
+
+    /**
+     * Returns whether any pet has a photo, so deletes only collect the IDs of the deleted
+     * pets when there may be photos to delete with them.
+     */
+    public boolean hasPhotos() {
+        String[] files = directory.list();
+        return files != null && files.length > 0;
+    }
+
+    private File photoFile(long petId) {
+        return new File(directory, petId + PHOTO_SUFFIX);
+    }
+
+    private void setVersion(final long petId, final Long version) {
+        int rows = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase db) {
+                ContentValues values = new ContentValues();
+                values.put(petsEntry.COLUMN_PET_PHOTO_VERSION, version);
+                // Marks the pet active, so the archiver does not move it with the old
+                // version while the file is replaced
+                values.put(PetDbHelper.COLUMN_PET_LAST_ACTIVE, System.currentTimeMillis());
+                int rows = db.update(petsEntry.TABLE_NAME, values,
+                        petsEntry._ID + "=" + petId, null);
+                if (rows > 0) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return rows;
+            }
+        });
+        dbHelper.getMaintenanceScheduler().onRowsWritten(rows);
+        if (rows > 0) {
+            listener.onPhotoChanged(petId);
+        }
+    }
+
+    private synchronized Handler getCloseHandler() {
+        if (closeHandler == null) {
+            HandlerThread thread =
+                    new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            closeHandler = new Handler(thread.getLooper());
+        }
+        return closeHandler;
+    }
+}
@@ -5,13 +5,41 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.v4.os.CancellationSignal;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetsContract.archiveEntry;
+import com.example.android.pets.data.PetsContract.backupsEntry;
+import com.example.android.pets.data.PetsContract.facetsEntry;
+import com.example.android.pets.data.PetsContract.kennelAssignmentsEntry;
+import com.example.android.pets.data.PetsContract.kennelsEntry;
+import com.example.android.pets.data.PetsContract.medicalRecordsEntry;
 import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.photosEntry;
+import com.example.android.pets.data.PetsContract.queriesEntry;
+import com.example.android.pets.data.PetsContract.sectionsEntry;
+import com.example.android.pets.data.PetsContract.similarEntry;
+import com.example.android.pets.data.PetsContract.weightsEntry;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link ContentProvider} for Pets app.
@@ -20,22 +48,107 @@ public class PetProvider extends ContentProvider {
 
     private static final int PETS = 100;
     private static final int PET_ID = 101;
+    private static final int PET_FACETS = 102;
+    private static final int PET_SECTIONS = 103;
+    private static final int PET_SIMILAR = 104;
+    private static final int PETS_ARCHIVE = 105;
+    private static final int PET_ARCHIVE_ID = 106;
+    private static final int PETS_ALL = 107;
+    private static final int PET_MEDICAL_RECORDS = 108;
+    private static final int PET_MEDICAL_RECORD_ID = 109;
+    private static final int PET_KENNEL_ASSIGNMENTS = 110;
+    private static final int PET_KENNEL_ASSIGNMENT_ID = 111;
+    private static final int KENNELS = 112;
+    private static final int KENNEL_ID = 113;
+    private static final int KENNEL_PETS = 114;
+    private static final int PET_WEIGHTS = 115;
+    private static final int PET_PHOTO = 116;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     private static final String NAME_EXCEPTION = "Pet requires a name";
     private static final String GENDER_EXCEPTION = "Pet requires a valid gender";
     private static final String WEIGHT_EXCEPTION = "Pet requires a valid weight";
+    private static final String EXTERNAL_ID_EXCEPTION = "Upserted pet requires an external ID";
+    private static final String SUMMARY_EXCEPTION = "Pet summary columns are read only";
+    private static final String VISIT_EXCEPTION = "Medical record requires a visit time";
+    private static final String KENNEL_EXCEPTION = "Kennel requires a name";
+    private static final String ASSIGNMENT_EXCEPTION = "Kennel assignment requires a kennel";
 
     private static final String QUERY_EXCEPTION = "Cannot query unknown URI ";
+    private static final String SORT_EXCEPTION = "Unknown sort ";
+    private static final String ALL_SORT_EXCEPTION =
+            "Active and archived pets are only sorted by the sort parameter";
+    private static final String SIMILAR_EXCEPTION = "Invalid similarity search ";
+    private static final String TIMEOUT_EXCEPTION = "Invalid query timeout ";
+    private static final String RESOLUTION_EXCEPTION = "Unknown weight resolution ";
     private static final String INSERT_NOT_SUPPORTED_EXCEPTION = "Insertion is not supported for ";
     private static final String UPDATE_EXCEPTION = "Update is not supported for ";
     private static final String DELETE_EXCEPTION = "Deletion is not supported for ";
+    private static final String BACKUP_EXCEPTION = "Backups need SQLite storage";
+    private static final String ARCHIVE_EXCEPTION = "The archive needs SQLite storage";
+    private static final String RECORDS_EXCEPTION = "Related tables need SQLite storage";
+    private static final String PHOTOS_EXCEPTION = "Photos need SQLite storage";
+
+    // Columns of pets written by triggers and photo writes, published when they may change
+    private static final String[] DERIVED_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_VISIT_COUNT,
+            petsEntry.COLUMN_PET_LAST_VISIT,
+            petsEntry.COLUMN_PET_KENNEL,
+            petsEntry.COLUMN_PET_PHOTO_VERSION};
+
+    // Columns of the pets published after a restore
+    private static final String[] RESTORED_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_NAME,
+            petsEntry.COLUMN_PET_BREED,
+            petsEntry.COLUMN_PET_GENDER,
+            petsEntry.COLUMN_PET_WEIGHT,
+            petsEntry.COLUMN_PET_EXTERNAL_ID,
+            petsEntry.COLUMN_PET_VISIT_COUNT,
+            petsEntry.COLUMN_PET_LAST_VISIT,
+            petsEntry.COLUMN_PET_KENNEL,
+            petsEntry.COLUMN_PET_PHOTO_VERSION};
 
     // Set up URI matcher with URI patterns that ContentProvider will accept
     static {
         sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY, PetsContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY, PetsContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/" + PetsContract.PATH_FACETS, PET_FACETS);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/" + PetsContract.PATH_SECTIONS, PET_SECTIONS);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/" + PetsContract.PATH_SIMILAR, PET_SIMILAR);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/" + PetsContract.PATH_ARCHIVE, PETS_ARCHIVE);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/" + PetsContract.PATH_ARCHIVE + "/#",
+                PET_ARCHIVE_ID);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/" + PetsContract.PATH_ALL, PETS_ALL);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/#/" + PetsContract.PATH_MEDICAL_RECORDS,
+                PET_MEDICAL_RECORDS);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/#/" + PetsContract.PATH_MEDICAL_RECORDS + "/#",
+                PET_MEDICAL_RECORD_ID);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/#/" + PetsContract.PATH_KENNEL_ASSIGNMENTS,
+                PET_KENNEL_ASSIGNMENTS);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/#/" + PetsContract.PATH_KENNEL_ASSIGNMENTS + "/#",
+                PET_KENNEL_ASSIGNMENT_ID);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY, PetsContract.PATH_KENNELS, KENNELS);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY, PetsContract.PATH_KENNELS + "/#",
+                KENNEL_ID);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_KENNELS + "/#/" + PetsContract.PATH_PETS, KENNEL_PETS);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/#/" + PetsContract.PATH_WEIGHTS, PET_WEIGHTS);
+        sUriMatcher.addURI(PetsContract.CONTENT_AUTHORITY,
+                PetsContract.PATH_PETS + "/#/" + PetsContract.PATH_PHOTO, PET_PHOTO);
     }
 
     /**
@@ -45,8 +158,32 @@ public class PetProvider extends ContentProvider {
 
     PetDbHelper dbHelper;
 
+    // Backend storing the pets, selected in onCreate()
+    PetStorageEngine storage;
+
+    // Snapshots of the database, only available with SQLite storage
+    PetBackupManager backups;
+
+    // Cold tier of inactive pets, only available with SQLite storage
+    PetArchive archive;
+
+    // Medical records and kennels, only available with SQLite storage
+    PetRecords records;
+
+    // Photo files of the pets, only available with SQLite storage
+    PetPhotos photos;
+
+    // Timeouts and outcome counts of queries
+    private final QueryWatchdog watchdog = new QueryWatchdog();
+
+    // Results of pets list queries, null if caching is turned off
+    private QueryResultCache resultCache;
+
+    // Row-level change events for reactive observers of the pets table
+    private final PetChangeStream changeStream = PetChangeStream.getInstance();
+
     /**
-     * Initialize the provider and the database helper object
+     * Initialize the provider, the database helper object and the storage engine
      *
      * @return boolean
      */
@@ -56,6 +193,53 @@ public class PetProvider extends ContentProvider {
         // ContentProvider methods.
         dbHelper = new PetDbHelper(getContext());
 
+        // Read-heavy deployments can keep the pets in memory instead of in SQLite
+        if (getContext().getResources().getBoolean(R.bool.use_in_memory_pet_storage)) {
+            storage = new ColumnStorePetStorageEngine(getContext());
+        } else {
+            SqlitePetStorageEngine sqliteStorage = new SqlitePetStorageEngine(dbHelper);
+            storage = sqliteStorage;
+            records = new PetRecords(dbHelper);
+            photos = new PetPhotos(getContext(), dbHelper, new PetPhotos.Listener() {
+                @Override
+                public void onPhotoChanged(long petId) {
+                    notifyPetChanged(petId);
+                    publishDerivedChanges(Collections.singletonList(petId));
+                }
+            });
+            backups = new PetBackupManager(getContext(), dbHelper, photos);
+
+            // Pets moving to the archive change every list of pets, and leave the table
+            // subscribers observe
+            int inactiveDays = getContext().getResources()
+                    .getInteger(R.integer.archive_inactive_days);
+            archive = new PetArchive(getContext(), dbHelper,
+                    TimeUnit.DAYS.toMillis(inactiveDays), new PetArchive.Listener() {
+                        @Override
+                        public void onPetsArchived(List<Long> petIds) {
+                            getContext().getContentResolver()
+                                    .notifyChange(petsEntry.CONTENT_URI, null);
+                            publishChanges(PetChangeEvent.TYPE_DELETE, petIds, null);
+                        }
+
+                        @Override
+                        public void onArchiveChanged() {
+                            getContext().getContentResolver()
+                                    .notifyChange(petsEntry.CONTENT_URI, null);
+                        }
+                    });
+            // Upserts of archived pets bring them back
+            sqliteStorage.setArchive(archive);
+            if (inactiveDays > 0) {
+                archive.start();
+            }
+        }
+
+        int cacheKb = getContext().getResources().getInteger(R.integer.query_cache_kb);
+        if (cacheKb > 0) {
+            resultCache = new QueryResultCache(cacheKb * 1024);
+        }
+
         return true;
     }
 
@@ -66,13 +250,89 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
                         @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        // Only the timeout can cancel this query
+        return query(uri, projection, selection, selectionArgs, sortOrder,
+                new CancellationSignal());
+    }
+
+    /**
+     * Performs the query like {@link #query(Uri, String[], String, String[], String)}, and
+     * stops it once the caller cancels it. Loaders cancel their query when they are
+     * restarted or destroyed.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder,
+                        @Nullable android.os.CancellationSignal cancellationSignal) {
+        final CancellationSignal signal = new CancellationSignal();
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(
+                    new android.os.CancellationSignal.OnCancelListener() {
+                        @Override
+                        public void onCancel() {
+                            signal.cancel();
+                        }
+                    });
+        }
+        return query(uri, projection, selection, selectionArgs, sortOrder, signal);
+    }
 
-        // Get readable database
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
+    /**
+     * Performs a query under the timeout given by the URI. The cursor is filled before it
+     * is returned, so the query runs while the signal and the timeout apply instead of on
+     * first access.
+     *
+     * @throws IllegalArgumentException if the URI or its timeout is invalid
+     */
+    private Cursor query(Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder, CancellationSignal signal) {
+        long timeoutMs = parseTimeout(uri);
+        QueryWatchdog.Watch watch = watchdog.start(signal, timeoutMs);
+        Cursor cursor = null;
+        try {
+            cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder, signal);
+            cursor.getCount();
+        } catch (RuntimeException e) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            throw watch.failed(e);
+        }
+        watch.completed();
+        return cursor;
+    }
+
+    /**
+     * Returns the timeout of a query, from the {@link queriesEntry#QUERY_PARAM_TIMEOUT}
+     * query parameter.
+     */
+    private static long parseTimeout(Uri uri) {
+        String timeout = uri.getQueryParameter(queriesEntry.QUERY_PARAM_TIMEOUT);
+        if (timeout == null) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    ? queriesEntry.DEFAULT_TIMEOUT_MS : 0;
+        }
+        try {
+            long timeoutMs = Long.parseLong(timeout);
+            if (timeoutMs >= 0) {
+                return timeoutMs;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(TIMEOUT_EXCEPTION + uri);
+    }
 
+    private Cursor queryUri(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder, CancellationSignal signal) {
         // Declare cursor to hold query result
         Cursor cursor;
 
+        // URI whose observers should be notified when the result changes
+        Uri notificationUri = uri;
+
         // Determine if URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
         switch (match) {
@@ -80,7 +340,10 @@ public class PetProvider extends ContentProvider {
                 // For the PETS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
-                cursor = db.query(petsEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                // A structured filter and a sort may be given as query parameters.
+                // Identical queries are answered from the cache until the next write.
+                cursor = queryPets(projection, selection, selectionArgs,
+                        PetFilter.fromUri(uri), resolveSortOrder(uri, sortOrder), signal);
 
                 break;
             case PET_ID:
@@ -97,8 +360,103 @@ public class PetProvider extends ContentProvider {
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = db.query(petsEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = storage.query(projection, selection, selectionArgs, new PetFilter(),
+                        sortOrder, signal);
+                break;
+            case PET_FACETS:
+                // Facet counts change whenever any pet changes, so listen on the pets URI
+                cursor = storage.queryFacets(PetFilter.fromUri(uri), signal);
+                notificationUri = petsEntry.CONTENT_URI;
+                break;
+            case PET_SECTIONS:
+                // Section counts change with the pets as well
+                cursor = storage.querySections(PetFilter.fromUri(uri), signal);
+                notificationUri = petsEntry.CONTENT_URI;
+                break;
+            case PET_SIMILAR:
+                cursor = querySimilar(uri, signal);
+                notificationUri = petsEntry.CONTENT_URI;
+                break;
+            case PETS_ARCHIVE:
+                // Pets arrive in the archive as they leave the pets table
+                cursor = requireArchive().query(projection, selection, selectionArgs,
+                        PetFilter.fromUri(uri), resolveSortOrder(uri, sortOrder), signal);
+                notificationUri = petsEntry.CONTENT_URI;
+                break;
+            case PET_ARCHIVE_ID:
+                selection = petsEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = requireArchive().query(projection, selection, selectionArgs,
+                        new PetFilter(), sortOrder, signal);
+                notificationUri = petsEntry.CONTENT_URI;
+                break;
+            case PETS_ALL:
+                // The active pets, followed by the archived ones if there is an archive.
+                // A sort order would only hold within each part, so only the name sort is
+                // taken, and the parts are merged by name.
+                if (sortOrder != null) {
+                    throw new IllegalArgumentException(ALL_SORT_EXCEPTION);
+                }
+                PetFilter filter = PetFilter.fromUri(uri);
+                String allSortOrder = resolveSortOrder(uri, null);
+                if (archive == null) {
+                    cursor = storage.query(projection, selection, selectionArgs, filter,
+                            allSortOrder, signal);
+                } else if (allSortOrder == null) {
+                    cursor = new MergeCursor(new Cursor[]{
+                            storage.query(projection, selection, selectionArgs, filter,
+                                    null, signal),
+                            archive.query(projection, selection, selectionArgs, filter,
+                                    null, signal)});
+                } else {
+                    String[] mergeProjection = withMergeColumns(projection);
+                    Cursor active = storage.query(mergeProjection, selection, selectionArgs,
+                            filter, allSortOrder, signal);
+                    cursor = new NameMergeCursor(active, archive.query(mergeProjection,
+                            selection, selectionArgs, filter, allSortOrder, signal),
+                            projection == null ? active.getColumnNames() : projection);
+                }
+                notificationUri = petsEntry.CONTENT_URI;
+                break;
+            case PET_MEDICAL_RECORD_ID:
+                selection = medicalRecordsEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                // Fall through
+            case PET_MEDICAL_RECORDS:
+                // Writes to the records notify the URI of their pet, which is a parent
+                cursor = requireRecords().queryMedicalRecords(parentId(uri), projection,
+                        selection, selectionArgs, sortOrder, signal);
+                break;
+            case PET_KENNEL_ASSIGNMENT_ID:
+                selection = kennelAssignmentsEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                // Fall through
+            case PET_KENNEL_ASSIGNMENTS:
+                cursor = requireRecords().queryKennelAssignments(parentId(uri), projection,
+                        selection, selectionArgs, sortOrder, signal);
+                break;
+            case KENNEL_ID:
+                selection = kennelsEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                // Fall through
+            case KENNELS:
+                cursor = requireRecords().queryKennels(projection, selection, selectionArgs,
+                        sortOrder, signal);
+                notificationUri = kennelsEntry.CONTENT_URI;
+                break;
+            case KENNEL_PETS:
+                // The kennel of each pet is summarized into the pets table, so this join is
+                // a filtered read of the pets
+                requireRecords();
+                cursor = storage.query(projection, PetRecords.kennelSelection(selection),
+                        PetRecords.prependId(parentId(uri), selectionArgs),
+                        PetFilter.fromUri(uri), resolveSortOrder(uri, sortOrder), signal);
+                notificationUri = petsEntry.CONTENT_URI;
+                break;
+            case PET_WEIGHTS:
+                // Weights change through the URIs of the pets, which are parents
+                cursor = requireRecords().queryWeights(parentId(uri), resolveResolution(uri),
+                        projection, selection, selectionArgs, sortOrder, signal);
                 break;
             default:
                 throw new IllegalArgumentException(QUERY_EXCEPTION + uri);
@@ -106,11 +464,123 @@ public class PetProvider extends ContentProvider {
 
         // Set notification URI on the Cursor, so we know what content URI the Cursor
         // was created for. If the data at this URI changes, then update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(),uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
         return cursor;
     }
 
+    /**
+     * Returns the resolution of a weight history query, from the
+     * {@link weightsEntry#QUERY_PARAM_RESOLUTION} query parameter.
+     *
+     * @throws IllegalArgumentException if the resolution is unknown
+     */
+    private static String resolveResolution(Uri uri) {
+        String resolution = uri.getQueryParameter(weightsEntry.QUERY_PARAM_RESOLUTION);
+        if (resolution == null) {
+            return weightsEntry.RESOLUTION_DAY;
+        }
+        switch (resolution) {
+            case weightsEntry.RESOLUTION_SAMPLES:
+            case weightsEntry.RESOLUTION_DAY:
+            case weightsEntry.RESOLUTION_WEEK:
+            case weightsEntry.RESOLUTION_MONTH:
+                return resolution;
+            default:
+                throw new IllegalArgumentException(RESOLUTION_EXCEPTION + uri);
+        }
+    }
+
+    /**
+     * Returns the sort order for a query on the pets URI. The sort query parameter takes
+     * the place of the given sort order.
+     *
+     * @throws IllegalArgumentException if the sort query parameter is unknown, or given
+     *                                  together with a sort order
+     */
+    private static String resolveSortOrder(Uri uri, String sortOrder) {
+        String sort = uri.getQueryParameter(petsEntry.QUERY_PARAM_SORT);
+        if (sort == null) {
+            return sortOrder;
+        }
+        if (!petsEntry.SORT_NAME.equals(sort) || sortOrder != null) {
+            throw new IllegalArgumentException(SORT_EXCEPTION + sort);
+        }
+        // Walks the name key index instead of collating every name
+        return PetStorageEngine.NAME_SORT_ORDER;
+    }
+
+    /**
+     * Returns the projection with the columns {@link NameMergeCursor} merges by added.
+     */
+    private static String[] withMergeColumns(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>(Arrays.asList(projection));
+        if (!columns.contains(petsEntry._ID)) {
+            columns.add(petsEntry._ID);
+        }
+        if (!columns.contains(petsEntry.COLUMN_PET_NAME)) {
+            columns.add(petsEntry.COLUMN_PET_NAME);
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Queries the list of pets, through the result cache if it is turned on.
+     */
+    private Cursor queryPets(String[] projection, String selection, String[] selectionArgs,
+                             PetFilter filter, String sortOrder, CancellationSignal signal) {
+        if (resultCache == null) {
+            return storage.query(projection, selection, selectionArgs, filter, sortOrder,
+                    signal);
+        }
+
+        // Read before the query, so a write committed while it runs makes the result stale
+        long generation = storage.getGeneration();
+        String key = QueryResultCache.key(projection, selection, selectionArgs, filter,
+                sortOrder);
+        Cursor cursor = resultCache.get(key, generation);
+        if (cursor != null) {
+            return cursor;
+        }
+        cursor = storage.query(projection, selection, selectionArgs, filter, sortOrder,
+                signal);
+        return resultCache.put(key, generation, cursor);
+    }
+
+    /**
+     * Runs a similarity search with the query parameters of a
+     * {@link similarEntry#CONTENT_URI}.
+     *
+     * @throws IllegalArgumentException if the limit or minimum score is invalid
+     */
+    private Cursor querySimilar(Uri uri, CancellationSignal signal) {
+        String name = uri.getQueryParameter(similarEntry.QUERY_PARAM_NAME);
+        String breed = uri.getQueryParameter(similarEntry.QUERY_PARAM_BREED);
+
+        int limit = similarEntry.DEFAULT_LIMIT;
+        double minScore = similarEntry.DEFAULT_MIN_SCORE;
+        try {
+            String limitParam = uri.getQueryParameter(similarEntry.QUERY_PARAM_LIMIT);
+            if (limitParam != null) {
+                limit = Integer.parseInt(limitParam);
+            }
+            String minScoreParam = uri.getQueryParameter(similarEntry.QUERY_PARAM_MIN_SCORE);
+            if (minScoreParam != null) {
+                minScore = Double.parseDouble(minScoreParam);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(SIMILAR_EXCEPTION + uri);
+        }
+        if (limit < 1 || limit > similarEntry.MAX_LIMIT || !(minScore >= 0 && minScore <= 1)) {
+            throw new IllegalArgumentException(SIMILAR_EXCEPTION + uri);
+        }
+
+        return storage.querySimilar(name, breed, limit, minScore, signal);
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -123,6 +593,35 @@ public class PetProvider extends ContentProvider {
                 return petsEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return petsEntry.CONTENT_ITEM_TYPE;
+            case PET_FACETS:
+                return facetsEntry.CONTENT_LIST_TYPE;
+            case PET_SECTIONS:
+                return sectionsEntry.CONTENT_LIST_TYPE;
+            case PET_SIMILAR:
+                return similarEntry.CONTENT_LIST_TYPE;
+            case PETS_ARCHIVE:
+            case PETS_ALL:
+                return petsEntry.CONTENT_LIST_TYPE;
+            case PET_ARCHIVE_ID:
+                return petsEntry.CONTENT_ITEM_TYPE;
+            case PET_MEDICAL_RECORDS:
+                return medicalRecordsEntry.CONTENT_LIST_TYPE;
+            case PET_MEDICAL_RECORD_ID:
+                return medicalRecordsEntry.CONTENT_ITEM_TYPE;
+            case PET_KENNEL_ASSIGNMENTS:
+                return kennelAssignmentsEntry.CONTENT_LIST_TYPE;
+            case PET_KENNEL_ASSIGNMENT_ID:
+                return kennelAssignmentsEntry.CONTENT_ITEM_TYPE;
+            case KENNELS:
+                return kennelsEntry.CONTENT_LIST_TYPE;
+            case KENNEL_ID:
+                return kennelsEntry.CONTENT_ITEM_TYPE;
+            case KENNEL_PETS:
+                return petsEntry.CONTENT_LIST_TYPE;
+            case PET_WEIGHTS:
+                return weightsEntry.CONTENT_LIST_TYPE;
+            case PET_PHOTO:
+                return photosEntry.CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI" + uri + " with match " + match);
         }
@@ -139,11 +638,80 @@ public class PetProvider extends ContentProvider {
         switch (match) {
             case PETS:
                 return insertPet(uri, contentValues);
+            case PET_MEDICAL_RECORDS:
+                return insertMedicalRecord(uri, contentValues);
+            case PET_KENNEL_ASSIGNMENTS:
+                return insertKennelAssignment(uri, contentValues);
+            case KENNELS:
+                return insertKennel(uri, contentValues);
             default:
                 throw new IllegalArgumentException(INSERT_NOT_SUPPORTED_EXCEPTION + uri);
         }
     }
 
+    /**
+     * Adds a medical record to the pet of the URI.
+     *
+     * @return URI of the new record, with ID -1 if the pet does not exist
+     */
+    private Uri insertMedicalRecord(Uri uri, ContentValues contentValues) {
+        Long visitedAt = contentValues.getAsLong(medicalRecordsEntry.COLUMN_VISITED_AT);
+        if (visitedAt == null || visitedAt < 0) {
+            throw new IllegalArgumentException(VISIT_EXCEPTION);
+        }
+
+        long petId = parentId(uri);
+        long newRowId = requireRecords().insertMedicalRecord(petId, contentValues);
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        } else {
+            notifyPetChanged(petId);
+            publishDerivedChanges(Collections.singletonList(petId));
+        }
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
+
+    /**
+     * Moves the pet of the URI to a kennel.
+     *
+     * @return URI of the new assignment, with ID -1 if the pet or the kennel does not exist
+     */
+    private Uri insertKennelAssignment(Uri uri, ContentValues contentValues) {
+        if (contentValues.getAsLong(kennelAssignmentsEntry.COLUMN_KENNEL_ID) == null) {
+            throw new IllegalArgumentException(ASSIGNMENT_EXCEPTION);
+        }
+
+        long petId = parentId(uri);
+        long newRowId = requireRecords().insertKennelAssignment(petId, contentValues);
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        } else {
+            notifyPetChanged(petId);
+            publishDerivedChanges(Collections.singletonList(petId));
+        }
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
+
+    /**
+     * Adds a kennel.
+     *
+     * @return URI of the new kennel, with ID -1 if the name is taken
+     */
+    private Uri insertKennel(Uri uri, ContentValues contentValues) {
+        String name = contentValues.getAsString(kennelsEntry.COLUMN_KENNEL_NAME);
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException(KENNEL_EXCEPTION);
+        }
+
+        long newRowId = requireRecords().insertKennel(contentValues);
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
+
     /**
      * Helper method to perform db insert
      *
@@ -152,6 +720,110 @@ public class PetProvider extends ContentProvider {
      * @return New URI with the ID assigned to the new row
      */
     private Uri insertPet(Uri uri, ContentValues contentValues) {
+        validateNewPet(contentValues);
+        if (isUpsert(uri)) {
+            return upsertPet(uri, contentValues);
+        }
+
+        long newRowId = storage.insert(contentValues);
+
+        // Log error if newRowId is -1 meaning insert failed
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        }
+
+        if(newRowId != -1) {
+            // Notify all listeners that the data has changed for the pet content URI
+            getContext().getContentResolver().notifyChange(uri, null);
+            changeStream.publish(Collections.singletonList(insertEvent(newRowId, contentValues)));
+        }
+
+        // return the new URI with the ID assigned to the new row
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
+
+    /**
+     * Inserts the pet, or updates the pet with the same external ID. Listeners are only
+     * notified if something changed.
+     *
+     * @return URI of the inserted or matching pet
+     */
+    private Uri upsertPet(Uri uri, ContentValues contentValues) {
+        validateExternalId(contentValues);
+
+        List<PetChangeEvent> changes = new ArrayList<>(1);
+        storage.upsert(new ContentValues[]{contentValues}, changes);
+        PetChangeEvent change = changes.get(0);
+        if (change == null) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return ContentUris.withAppendedId(uri, -1);
+        }
+
+        publishUpserts(uri, changes);
+        return ContentUris.withAppendedId(uri, change.getId());
+    }
+
+    /**
+     * Inserts all rows in a single transaction, so a batch costs one commit instead of
+     * one per row. Listeners are notified once for the whole batch.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != PETS) {
+            throw new IllegalArgumentException(INSERT_NOT_SUPPORTED_EXCEPTION + uri);
+        }
+
+        // Validate everything up front so a bad row does not leave half a batch behind
+        boolean upsert = isUpsert(uri);
+        for (ContentValues contentValues : values) {
+            validateNewPet(contentValues);
+            if (upsert) {
+                validateExternalId(contentValues);
+            }
+        }
+
+        if (upsert) {
+            List<PetChangeEvent> changes = new ArrayList<>(values.length);
+            int rowsChanged = storage.upsert(values, changes);
+            if (changes.contains(null)) {
+                Log.e(LOG_TAG, "Failed to insert rows for " + uri);
+            }
+            publishUpserts(uri, changes);
+            return rowsChanged;
+        }
+
+        // IDs of the inserted rows, always collected: a subscriber registering during the
+        // write may take its snapshot before the commit
+        List<Long> insertedIds = new ArrayList<>(values.length);
+
+        int rowsInserted = storage.bulkInsert(values, insertedIds);
+
+        if (rowsInserted != values.length) {
+            Log.e(LOG_TAG, "Failed to insert " + (values.length - rowsInserted) +
+                    " rows for " + uri);
+        }
+
+        if (rowsInserted != 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+
+            List<PetChangeEvent> events = new ArrayList<>(rowsInserted);
+            for (int i = 0; i < values.length; i++) {
+                if (insertedIds.get(i) != -1) {
+                    events.add(insertEvent(insertedIds.get(i), values[i]));
+                }
+            }
+            changeStream.publish(events);
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Checks that the values describe a valid new pet.
+     *
+     * @throws IllegalArgumentException if a required value is missing or invalid
+     */
+    private static void validateNewPet(ContentValues contentValues) {
         // Name should not be null
         String name = contentValues.getAsString(petsEntry.COLUMN_PET_NAME);
         Integer gender = contentValues.getAsInteger(petsEntry.COLUMN_PET_GENDER);
@@ -169,22 +841,70 @@ public class PetProvider extends ContentProvider {
             throw new IllegalArgumentException(WEIGHT_EXCEPTION);
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        validateNotSummary(contentValues);
+    }
+
+    /**
+     * Checks that the values do not write the columns summarizing the related tables.
+     *
+     * @throws IllegalArgumentException if a summary column is written
+     */
+    private static void validateNotSummary(ContentValues contentValues) {
+        if (contentValues.containsKey(petsEntry.COLUMN_PET_VISIT_COUNT)
+                || contentValues.containsKey(petsEntry.COLUMN_PET_LAST_VISIT)
+                || contentValues.containsKey(petsEntry.COLUMN_PET_KENNEL)
+                || contentValues.containsKey(PetDbHelper.COLUMN_PET_KENNEL_ID)
+                || contentValues.containsKey(petsEntry.COLUMN_PET_PHOTO_VERSION)) {
+            throw new IllegalArgumentException(SUMMARY_EXCEPTION);
+        }
+    }
 
-        long newRowId = db.insert(petsEntry.TABLE_NAME, null, contentValues);
+    /**
+     * Returns whether an insert asks for {@link petsEntry#QUERY_PARAM_UPSERT}.
+     */
+    private static boolean isUpsert(Uri uri) {
+        return uri.getBooleanQueryParameter(petsEntry.QUERY_PARAM_UPSERT, false);
+    }
 
-        // Log error if newRowId is -1 meaning insert failed
-        if (newRowId == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+    /**
+     * Checks that the values of an upsert have the external ID they are matched by.
+     *
+     * @throws IllegalArgumentException if the external ID is missing
+     */
+    private static void validateExternalId(ContentValues contentValues) {
+        String externalId = contentValues.getAsString(petsEntry.COLUMN_PET_EXTERNAL_ID);
+        if (externalId == null || externalId.isEmpty()) {
+            throw new IllegalArgumentException(EXTERNAL_ID_EXCEPTION);
         }
+    }
 
-        if(newRowId != -1) {
-            // Notify all listeners that the data has changed for the pet content URI
-            getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Notifies listeners of the rows an upsert inserted or changed. Rows that were left
+     * as they were are not reported, so a feed repeating itself causes no reloads.
+     */
+    private void publishUpserts(Uri uri, List<PetChangeEvent> changes) {
+        List<PetChangeEvent> events = new ArrayList<>(changes.size());
+        for (PetChangeEvent change : changes) {
+            if (change != null && (change.getType() == PetChangeEvent.TYPE_INSERT
+                    || change.getValues().size() > 0)) {
+                events.add(change);
+            }
+        }
+        if (events.isEmpty()) {
+            return;
         }
 
-        // return the new URI with the ID assigned to the new row
-        return ContentUris.withAppendedId(uri, newRowId);
+        getContext().getContentResolver().notifyChange(uri, null);
+        changeStream.publish(events);
+    }
+
+    /**
+     * Builds the change event for a newly inserted row.
+     */
+    private static PetChangeEvent insertEvent(long id, ContentValues contentValues) {
+        ContentValues inserted = new ContentValues(contentValues);
+        inserted.put(petsEntry._ID, id);
+        return new PetChangeEvent(PetChangeEvent.TYPE_INSERT, id, inserted);
     }
 
     /**
@@ -193,37 +913,91 @@ public class PetProvider extends ContentProvider {
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection,
                       @Nullable String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        // Number of rows deleted
-        int rowsDeleted;
-
         final int match = sUriMatcher.match(uri);
         switch(match){
             case PETS:
-                // Perform delete on db that will return number of rows affected
-                rowsDeleted = db.delete(petsEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case PET_ID:
                 // Specify the pet to delete given the ID from the URI
-                selection = petsEntry._ID + "=?";;
+                selection = petsEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                // Perform delete on db for specific row that will return number of rows affected
-                rowsDeleted = db.delete(petsEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case PET_MEDICAL_RECORD_ID:
+            case PET_KENNEL_ASSIGNMENT_ID:
+            case KENNEL_ID:
+                // Both related tables and the kennels share the ID column of BaseColumns
+                selection = kennelsEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return deleteRelated(match, uri, selection, selectionArgs);
+            case PET_MEDICAL_RECORDS:
+            case PET_KENNEL_ASSIGNMENTS:
+            case KENNELS:
+                return deleteRelated(match, uri, selection, selectionArgs);
+            case PET_PHOTO:
+                // The listener notifies the observers of the pet
+                return requirePhotos().delete(parentId(uri)) ? 1 : 0;
             default:
                 throw new IllegalArgumentException(DELETE_EXCEPTION + uri);
         }
 
+        // IDs of the deleted rows, for the change stream and the photos to delete with them
+        boolean deletesPhotos = photos != null && photos.hasPhotos();
+        List<Long> deletedIds = new ArrayList<>();
+
+        // Perform delete that will return number of rows affected
+        int rowsDeleted = storage.delete(selection, selectionArgs, deletedIds);
+        if (deletesPhotos) {
+            photos.deleteAll(deletedIds);
+        }
+
         // Notify all listeners that the data has changed for the pet content URI
         // if a row is deleted
         if(rowsDeleted != 0) {
             getContext().getContentResolver().notifyChange(uri, null);
+            publishChanges(PetChangeEvent.TYPE_DELETE, deletedIds, null);
         }
         // Return number of rows deleted
         return rowsDeleted;
     }
 
+    /**
+     * Deletes medical records, kennel assignments or kennels. Deleting a pet deletes its
+     * related rows as well, without going through here.
+     */
+    private int deleteRelated(int match, Uri uri, String selection, String[] selectionArgs) {
+        // Pets whose summary columns may change, for the change stream
+        List<Long> petIds = new ArrayList<>();
+        int rowsDeleted;
+        switch (match) {
+            case PET_MEDICAL_RECORDS:
+            case PET_MEDICAL_RECORD_ID:
+                rowsDeleted = requireRecords().deleteMedicalRecords(parentId(uri), selection,
+                        selectionArgs);
+                break;
+            case PET_KENNEL_ASSIGNMENTS:
+            case PET_KENNEL_ASSIGNMENT_ID:
+                rowsDeleted = requireRecords().deleteKennelAssignments(parentId(uri),
+                        selection, selectionArgs);
+                break;
+            default:
+                rowsDeleted = requireRecords().deleteKennels(selection, selectionArgs, petIds);
+                break;
+        }
+
+        if (rowsDeleted != 0) {
+            if (match == KENNELS || match == KENNEL_ID) {
+                // The pets in the kennels moved
+                getContext().getContentResolver().notifyChange(uri, null);
+                getContext().getContentResolver().notifyChange(petsEntry.CONTENT_URI, null);
+            } else {
+                notifyPetChanged(parentId(uri));
+                petIds.add(parentId(uri));
+            }
+            publishDerivedChanges(petIds);
+        }
+        return rowsDeleted;
+    }
+
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
@@ -241,11 +1015,44 @@ public class PetProvider extends ContentProvider {
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 return updatePet(uri, contentValues, selection, selectionArgs);
+            case KENNELS:
+                return updateKennels(uri, contentValues, selection, selectionArgs);
+            case KENNEL_ID:
+                selection = kennelsEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateKennels(uri, contentValues, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException(UPDATE_EXCEPTION + uri);
         }
     }
 
+    /**
+     * Renames kennels. The pets in them are renamed along by a trigger.
+     */
+    private int updateKennels(Uri uri, ContentValues values, String selection,
+                              String[] selectionArgs) {
+        if (values.size() == 0) {
+            return 0;
+        }
+        if (values.containsKey(kennelsEntry.COLUMN_KENNEL_NAME)) {
+            String name = values.getAsString(kennelsEntry.COLUMN_KENNEL_NAME);
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException(KENNEL_EXCEPTION);
+            }
+        }
+
+        // Pets in the kennels, for the change stream
+        List<Long> petIds = new ArrayList<>();
+        int rowsUpdated = requireRecords().updateKennels(values, selection, selectionArgs,
+                petIds);
+        if (rowsUpdated != 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            getContext().getContentResolver().notifyChange(petsEntry.CONTENT_URI, null);
+            publishDerivedChanges(petIds);
+        }
+        return rowsUpdated;
+    }
+
     private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 
         // If there are no values to update, exit early and return 0
@@ -285,18 +1092,285 @@ public class PetProvider extends ContentProvider {
             }
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        validateNotSummary(values);
+
+        // IDs of the updated rows, always collected: a subscriber registering during the
+        // write may take its snapshot before the commit
+        List<Long> updatedIds = new ArrayList<>();
 
-        // Perform update on db that will return number of rows affected
-        int rowsUpdated = db.update(petsEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform update that will return number of rows affected
+        int rowsUpdated = storage.update(values, selection, selectionArgs, updatedIds);
 
         if (rowsUpdated != 0) {
             // Notify all listeners that the data has changed for the pet content URI
             getContext().getContentResolver().notifyChange(uri, null);
+            publishChanges(PetChangeEvent.TYPE_UPDATE, updatedIds, new ContentValues(values));
         }
 
         // Return number of rows updated
         return rowsUpdated;
 
     }
+
+    /**
+     * Runs one of the backup methods of {@link backupsEntry}, or returns the query
+     * statistics of {@link queriesEntry#METHOD_QUERY_STATS}.
+     *
+     * @throws IllegalArgumentException if the snapshot to restore does not exist, or the
+     *                                  pets are kept in memory
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        Bundle result = new Bundle();
+        switch (method) {
+            case queriesEntry.METHOD_QUERY_STATS:
+                result.putLong(queriesEntry.KEY_COMPLETED, watchdog.getCompletedCount());
+                result.putLong(queriesEntry.KEY_CANCELED, watchdog.getCanceledCount());
+                result.putLong(queriesEntry.KEY_TIMED_OUT, watchdog.getTimedOutCount());
+                result.putLong(queriesEntry.KEY_CACHE_HITS,
+                        resultCache == null ? 0 : resultCache.getHitCount());
+                result.putLong(queriesEntry.KEY_CACHE_MISSES,
+                        resultCache == null ? 0 : resultCache.getMissCount());
+                GroupCommitWriter writer = dbHelper.getWriter();
+                result.putLong(queriesEntry.KEY_WRITES, writer.getWriteCount());
+                result.putLong(queriesEntry.KEY_WRITE_QUEUE_WAIT_MS,
+                        TimeUnit.NANOSECONDS.toMillis(writer.getQueueWaitNanos()));
+                result.putLong(queriesEntry.KEY_WRITE_LOCK_WAIT_MS,
+                        TimeUnit.NANOSECONDS.toMillis(writer.getLockWaitNanos()));
+                putMaintenanceReport(result);
+                break;
+            case backupsEntry.METHOD_BACKUP:
+                try {
+                    result.putString(backupsEntry.KEY_SNAPSHOT,
+                            requireBackups().createSnapshot());
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to take a snapshot", e);
+                    return null;
+                }
+                break;
+            case backupsEntry.METHOD_LIST_BACKUPS:
+                result.putStringArrayList(backupsEntry.KEY_SNAPSHOTS,
+                        new ArrayList<>(requireBackups().listSnapshots()));
+                break;
+            case backupsEntry.METHOD_RESTORE:
+                // The pets before the restore, to tell subscribers what it changed
+                Set<Long> idsBefore = queryPetIds();
+                if (archive != null) {
+                    archive.markActiveCopies();
+                }
+                try {
+                    requireBackups().restoreSnapshot(arg);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to restore snapshot " + arg, e);
+                    return null;
+                }
+                publishRestore(idsBefore);
+                // Pets archived since the snapshot was taken are active again
+                if (archive != null) {
+                    archive.removeActiveCopies();
+                }
+                // Every pet may have changed
+                getContext().getContentResolver().notifyChange(petsEntry.CONTENT_URI, null);
+                break;
+            default:
+                return super.call(method, arg, extras);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the report of the last maintenance run to the query statistics, if there is one.
+     */
+    private void putMaintenanceReport(Bundle result) {
+        // Nothing runs maintenance while the pets are kept in memory
+        DbMaintenanceScheduler.MaintenanceReport report =
+                dbHelper.getMaintenanceScheduler().getLastReport();
+        if (report == null) {
+            return;
+        }
+        result.putLong(queriesEntry.KEY_MAINTENANCE_STARTED_AT, report.startedAt);
+        result.putLong(queriesEntry.KEY_MAINTENANCE_DURATION_MS, report.durationMs);
+        result.putLong(queriesEntry.KEY_MAINTENANCE_BACKOFFS, report.backoffs);
+        result.putLong(queriesEntry.KEY_MAINTENANCE_PAGES_RECLAIMED, report.pagesReclaimed);
+        result.putLong(queriesEntry.KEY_MAINTENANCE_BYTES_RECLAIMED, report.bytesReclaimed);
+        result.putLong(queriesEntry.KEY_MAINTENANCE_FREE_PAGES, report.freePagesRemaining);
+        result.putLong(queriesEntry.KEY_MAINTENANCE_WAL_FRAMES, report.walFramesRemaining);
+    }
+
+    private PetArchive requireArchive() {
+        if (archive == null) {
+            throw new IllegalArgumentException(ARCHIVE_EXCEPTION);
+        }
+        return archive;
+    }
+
+    /**
+     * Opens the photo of a pet as a file descriptor of the photo file itself.
+     *
+     * @see PetPhotos#open(long, String)
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PET_PHOTO) {
+            return super.openFile(uri, mode);
+        }
+        return requirePhotos().open(parentId(uri), mode);
+    }
+
+    private PetRecords requireRecords() {
+        if (records == null) {
+            throw new IllegalArgumentException(RECORDS_EXCEPTION);
+        }
+        return records;
+    }
+
+    /**
+     * Returns the ID of the pet or kennel a URI of related rows belongs to, the second
+     * path segment.
+     */
+    private static long parentId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    /**
+     * Notifies the observers of a pet whose related rows changed. They include the
+     * observers of the pets URI and of the related rows of the pet.
+     */
+    private void notifyPetChanged(long petId) {
+        getContext().getContentResolver().notifyChange(
+                ContentUris.withAppendedId(petsEntry.CONTENT_URI, petId), null);
+    }
+
+    private PetPhotos requirePhotos() {
+        if (photos == null) {
+            throw new IllegalArgumentException(PHOTOS_EXCEPTION);
+        }
+        return photos;
+    }
+
+    private PetBackupManager requireBackups() {
+        if (backups == null) {
+            throw new IllegalArgumentException(BACKUP_EXCEPTION);
+        }
+        return backups;
+    }
+
+    /**
+     * Publishes the current derived columns of pets as updates to the change stream. They
+     * are read after the write, so subscribers get the values the triggers computed. The
+     * read is skipped if nobody is subscribed after the commit, since a later subscriber's
+     * snapshot already has the values.
+     *
+     * @param petIds IDs of the pets
+     */
+    private void publishDerivedChanges(List<Long> petIds) {
+        if (petIds.isEmpty() || !changeStream.hasSubscribers()) {
+            return;
+        }
+        // IDs are numbers, so they can be part of the SQL
+        Cursor cursor = storage.query(DERIVED_COLUMNS,
+                petsEntry._ID + " IN (" + TextUtils.join(",", petIds) + ")", null,
+                new PetFilter(), null, null);
+        List<PetChangeEvent> events = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                events.add(new PetChangeEvent(PetChangeEvent.TYPE_UPDATE, cursor.getLong(0),
+                        rowValues(cursor, 1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        changeStream.publish(events);
+    }
+
+    /**
+     * @return The IDs of all pets in the pets table
+     */
+    private Set<Long> queryPetIds() {
+        Cursor cursor = storage.query(new String[]{petsEntry._ID}, null, null,
+                new PetFilter(), null, null);
+        try {
+            Set<Long> ids = new HashSet<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Publishes what a restore changed to the change stream: the restored pets with all
+     * their values, as inserts if they were not there before and as updates otherwise,
+     * and deletes for the pets that are gone.
+     */
+    private void publishRestore(Set<Long> idsBefore) {
+        if (!changeStream.hasSubscribers()) {
+            return;
+        }
+        Cursor cursor = storage.query(RESTORED_COLUMNS, null, null, new PetFilter(), null,
+                null);
+        List<PetChangeEvent> events = new ArrayList<>(cursor.getCount() + idsBefore.size());
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                int type = idsBefore.remove(id) ? PetChangeEvent.TYPE_UPDATE
+                        : PetChangeEvent.TYPE_INSERT;
+                events.add(new PetChangeEvent(type, id, rowValues(cursor, 0)));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (long id : idsBefore) {
+            events.add(new PetChangeEvent(PetChangeEvent.TYPE_DELETE, id, null));
+        }
+        changeStream.publish(events);
+    }
+
+    /**
+     * Returns the values of the current row of a cursor with their types, from a column on.
+     */
+    private static ContentValues rowValues(Cursor cursor, int firstColumn) {
+        String[] columns = cursor.getColumnNames();
+        ContentValues values = new ContentValues(columns.length - firstColumn);
+        for (int i = firstColumn; i < columns.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values.putNull(columns[i]);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(columns[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values.put(columns[i], cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values.put(columns[i], cursor.getBlob(i));
+                    break;
+                default:
+                    values.put(columns[i], cursor.getString(i));
+                    break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Publishes one change event per row to the change stream.
+     *
+     * @param type   Type of the change
+     * @param ids    IDs of the changed rows
+     * @param values Values shared by all events
+     */
+    private void publishChanges(int type, List<Long> ids, ContentValues values) {
+        List<PetChangeEvent> events = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            events.add(new PetChangeEvent(type, id, values));
+        }
+        changeStream.publish(events);
+    }
 }
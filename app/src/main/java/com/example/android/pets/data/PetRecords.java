@@ -0,0 +1,371 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.os.CancellationSignal;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetsContract.kennelAssignmentsEntry;
+import com.example.android.pets.data.PetsContract.kennelsEntry;
+import com.example.android.pets.data.PetsContract.medicalRecordsEntry;
+import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.weightsEntry;
+
+import java.util.List;
+
+/**
+ * The tables related to the pets: their medical records, the kennels, the kennel
+ * assignments and the weight history.
+ *
+ * Related rows reference their pet with a foreign key and are deleted with it. Triggers
+ * summarize them into the visit and kennel columns of the pets table, so lists of pets
+ * never join them. Writes to related rows count as activity of their pet, which keeps it
+ * out of the {@link PetArchive}.
+ */
+public class PetRecords {
+
+    private static final String[] MEDICAL_RECORD_COLUMNS = {
+            medicalRecordsEntry._ID,
+            medicalRecordsEntry.COLUMN_PET_ID,
+            medicalRecordsEntry.COLUMN_VISITED_AT,
+            medicalRecordsEntry.COLUMN_DESCRIPTION};
+
+    private static final String[] KENNEL_ASSIGNMENT_COLUMNS = {
+            kennelAssignmentsEntry._ID,
+            kennelAssignmentsEntry.COLUMN_PET_ID,
+            kennelAssignmentsEntry.COLUMN_KENNEL_ID,
+            kennelAssignmentsEntry.COLUMN_ASSIGNED_AT};
+
+    private static final String[] KENNEL_COLUMNS = {
+            kennelsEntry._ID,
+            kennelsEntry.COLUMN_KENNEL_NAME};
+
+    private static final String[] WEIGHT_COLUMNS = {
+            weightsEntry._ID,
+            weightsEntry.COLUMN_PERIOD_START,
+            weightsEntry.COLUMN_MIN_WEIGHT,
+            weightsEntry.COLUMN_MAX_WEIGHT,
+            weightsEntry.COLUMN_AVG_WEIGHT,
+            weightsEntry.COLUMN_SAMPLE_COUNT};
+
+    private final PetDbHelper dbHelper;
+
+    /**
+     * Constructs a new {@link PetRecords}
+     *
+     * @param dbHelper Helper owning the database
+     */
+    public PetRecords(PetDbHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the medical records of a pet, latest visit first unless a sort order is
+     * given.
+     */
+    public Cursor queryMedicalRecords(long petId, String[] projection, String selection,
+                                      String[] selectionArgs, String sortOrder,
+                                      CancellationSignal signal) {
+        return queryForPet(medicalRecordsEntry.TABLE_NAME, petId,
+                projection == null ? MEDICAL_RECORD_COLUMNS : projection, selection,
+                selectionArgs, sortOrder == null
+                        ? medicalRecordsEntry.COLUMN_VISITED_AT + " DESC" : sortOrder, signal);
+    }
+
+    /**
+     * Returns the kennel assignments of a pet, latest first unless a sort order is given.
+     */
+    public Cursor queryKennelAssignments(long petId, String[] projection, String selection,
+                                         String[] selectionArgs, String sortOrder,
+                                         CancellationSignal signal) {
+        return queryForPet(kennelAssignmentsEntry.TABLE_NAME, petId,
+                projection == null ? KENNEL_ASSIGNMENT_COLUMNS : projection, selection,
+                selectionArgs, sortOrder == null
+                        ? kennelAssignmentsEntry.COLUMN_ASSIGNED_AT + " DESC" : sortOrder,
+                signal);
+    }
+
+    /**
+     * Returns the weight history of a pet, oldest period first unless a sort order is
+     * given. Periods are read from the rollups, so a chart over years of samples reads a
+     * row per month.
+     *
+     * @param resolution One of the RESOLUTION_* constants of {@link weightsEntry}
+     */
+    public Cursor queryWeights(long petId, String resolution, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder,
+                               CancellationSignal signal) {
+        // The pet ID and the resolution are checked values, so they can be part of the SQL
+        String periods;
+        if (weightsEntry.RESOLUTION_SAMPLES.equals(resolution)) {
+            periods = "(SELECT " + weightsEntry._ID + ", " +
+                    PetDbHelper.COLUMN_SAMPLE_MEASURED_AT + " AS " +
+                    weightsEntry.COLUMN_PERIOD_START + ", " +
+                    petsEntry.COLUMN_PET_WEIGHT + " AS " + weightsEntry.COLUMN_MIN_WEIGHT + ", " +
+                    petsEntry.COLUMN_PET_WEIGHT + " AS " + weightsEntry.COLUMN_MAX_WEIGHT + ", " +
+                    petsEntry.COLUMN_PET_WEIGHT + " AS " + weightsEntry.COLUMN_AVG_WEIGHT + ", " +
+                    "1 AS " + weightsEntry.COLUMN_SAMPLE_COUNT +
+                    " FROM " + PetDbHelper.WEIGHT_SAMPLES_TABLE_NAME +
+                    " WHERE " + PetDbHelper.COLUMN_SAMPLE_PET_ID + " = " + petId + ")";
+        } else {
+            periods = "(SELECT rowid AS " + weightsEntry._ID + ", " +
+                    weightsEntry.COLUMN_PERIOD_START + ", " +
+                    weightsEntry.COLUMN_MIN_WEIGHT + ", " + weightsEntry.COLUMN_MAX_WEIGHT +
+                    ", CAST(" + PetDbHelper.COLUMN_ROLLUP_WEIGHT_SUM + " AS REAL) / " +
+                    weightsEntry.COLUMN_SAMPLE_COUNT + " AS " +
+                    weightsEntry.COLUMN_AVG_WEIGHT + ", " + weightsEntry.COLUMN_SAMPLE_COUNT +
+                    " FROM " + PetDbHelper.WEIGHT_ROLLUPS_TABLE_NAME +
+                    " WHERE " + PetDbHelper.COLUMN_SAMPLE_PET_ID + " = " + petId +
+                    " AND " + PetDbHelper.COLUMN_ROLLUP_RESOLUTION + " = '" + resolution + "')";
+        }
+
+        Cursor cursor = SqlitePetStorageEngine.query(dbHelper.getReadableDatabase(), periods,
+                projection == null ? WEIGHT_COLUMNS : projection, selection, selectionArgs,
+                null, sortOrder == null ? weightsEntry.COLUMN_PERIOD_START : sortOrder, signal);
+        dbHelper.getMaintenanceScheduler().onDatabaseAccessed();
+        return cursor;
+    }
+
+    /**
+     * Returns the kennels, by name unless a sort order is given.
+     */
+    public Cursor queryKennels(String[] projection, String selection, String[] selectionArgs,
+                               String sortOrder, CancellationSignal signal) {
+        Cursor cursor = SqlitePetStorageEngine.query(dbHelper.getReadableDatabase(),
+                kennelsEntry.TABLE_NAME, projection == null ? KENNEL_COLUMNS : projection,
+                selection, selectionArgs, null,
+                sortOrder == null ? kennelsEntry.COLUMN_KENNEL_NAME : sortOrder, signal);
+        dbHelper.getMaintenanceScheduler().onDatabaseAccessed();
+        return cursor;
+    }
+
+    /**
+     * Returns the selection of the pets in a kennel, to query the pets with together with
+     * {@link #prependId} of the kennel ID. The kennel of each pet is a column of the pets
+     * table, so this is an index lookup.
+     */
+    static String kennelSelection(String selection) {
+        String kennel = PetDbHelper.COLUMN_PET_KENNEL_ID + " = ?";
+        return selection == null ? kennel : kennel + " AND (" + selection + ")";
+    }
+
+    /**
+     * Adds a medical record to a pet.
+     *
+     * @return The ID of the new record, or -1 if the pet does not exist
+     */
+    public long insertMedicalRecord(long petId, ContentValues values) {
+        return insertForPet(medicalRecordsEntry.TABLE_NAME, petId, values);
+    }
+
+    /**
+     * Assigns a pet to a kennel. The assignment time defaults to now.
+     *
+     * @return The ID of the new assignment, or -1 if the pet or the kennel does not exist
+     */
+    public long insertKennelAssignment(long petId, ContentValues values) {
+        if (!values.containsKey(kennelAssignmentsEntry.COLUMN_ASSIGNED_AT)) {
+            values = new ContentValues(values);
+            values.put(kennelAssignmentsEntry.COLUMN_ASSIGNED_AT, System.currentTimeMillis());
+        }
+        return insertForPet(kennelAssignmentsEntry.TABLE_NAME, petId, values);
+    }
+
+    /**
+     * Deletes medical records of a pet.
+     *
+     * @return The number of records deleted
+     */
+    public int deleteMedicalRecords(long petId, String selection, String[] selectionArgs) {
+        return deleteForPet(medicalRecordsEntry.TABLE_NAME, petId, selection, selectionArgs);
+    }
+
+    /**
+     * Deletes kennel assignments of a pet. The pet moves back to the kennel of its latest
+     * remaining assignment.
+     *
+     * @return The number of assignments deleted
+     */
+    public int deleteKennelAssignments(long petId, String selection, String[] selectionArgs) {
+        return deleteForPet(kennelAssignmentsEntry.TABLE_NAME, petId, selection,
+                selectionArgs);
+    }
+
+    /**
+     * Adds a kennel.
+     *
+     * @return The ID of the new kennel, or -1 if its name is taken
+     */
+    public long insertKennel(final ContentValues values) {
+        return dbHelper.getWriter().execute(new GroupCommitWriter.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase db) {
+                return db.insert(kennelsEntry.TABLE_NAME, null, values);
+            }
+        });
+    }
+
+    /**
+     * Renames kennels. The summary of the pets in them follows.
+     *
+     * @param affectedPetIds List the IDs of the pets in the kennels are added to, or null
+     *                       if the caller does not need them
+     * @return The number of kennels updated
+     */
+    public int updateKennels(final ContentValues values, final String selection,
+                             final String[] selectionArgs, final List<Long> affectedPetIds) {
+        return dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase db) {
+                // Read first, the rename may change what the selection matches
+                if (affectedPetIds != null) {
+                    queryPetIds(db, "SELECT " + petsEntry._ID + " FROM " +
+                            petsEntry.TABLE_NAME + " WHERE " + PetDbHelper.COLUMN_PET_KENNEL_ID +
+                            " IN " + kennelIds(selection), selectionArgs, affectedPetIds);
+                }
+                int rowsUpdated = db.update(kennelsEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+                // The trigger renames the kennel of the pets in them
+                if (rowsUpdated > 0 && (affectedPetIds == null || !affectedPetIds.isEmpty())) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return rowsUpdated;
+            }
+        });
+    }
+
+    /**
+     * Deletes kennels together with their assignments. The pets in them move back to the
+     * kennel of their latest remaining assignment.
+     *
+     * @param affectedPetIds List the IDs of the pets assigned to the kennels are added to,
+     *                       or null if the caller does not need them
+     * @return The number of kennels deleted
+     */
+    public int deleteKennels(final String selection, final String[] selectionArgs,
+                             final List<Long> affectedPetIds) {
+        return dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase db) {
+                if (affectedPetIds != null) {
+                    queryPetIds(db, "SELECT DISTINCT " + kennelAssignmentsEntry.COLUMN_PET_ID +
+                            " FROM " + kennelAssignmentsEntry.TABLE_NAME + " WHERE " +
+                            kennelAssignmentsEntry.COLUMN_KENNEL_ID + " IN " +
+                            kennelIds(selection), selectionArgs, affectedPetIds);
+                }
+                int rowsDeleted = db.delete(kennelsEntry.TABLE_NAME, selection,
+                        selectionArgs);
+                // The pets in them move to other kennels
+                if (rowsDeleted > 0 && (affectedPetIds == null || !affectedPetIds.isEmpty())) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return rowsDeleted;
+            }
+        });
+    }
+
+    /**
+     * Returns a subquery for the IDs of the kennels matching a selection.
+     */
+    private static String kennelIds(String selection) {
+        return "(SELECT " + kennelsEntry._ID + " FROM " + kennelsEntry.TABLE_NAME +
+                (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection) + ")";
+    }
+
+    /**
+     * Replaces the contents of a list with the IDs a query returns. Runs on the writer
+     * thread, so the list starts over if the write is retried.
+     */
+    private static void queryPetIds(SQLiteDatabase db, String sql, String[] selectionArgs,
+                                    List<Long> ids) {
+        ids.clear();
+        Cursor cursor = db.rawQuery(sql, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryForPet(String table, long petId, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder,
+                               CancellationSignal signal) {
+        Cursor cursor = SqlitePetStorageEngine.query(dbHelper.getReadableDatabase(), table,
+                projection, forPet(selection), prependId(petId, selectionArgs), null,
+                sortOrder, signal);
+        dbHelper.getMaintenanceScheduler().onDatabaseAccessed();
+        return cursor;
+    }
+
+    private long insertForPet(final String table, final long petId,
+                              final ContentValues values) {
+        final ContentValues stored = new ContentValues(values);
+        stored.put(medicalRecordsEntry.COLUMN_PET_ID, petId);
+        long id = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase db) {
+                // Fails the foreign key if the pet does not exist
+                long id = db.insert(table, null, stored);
+                if (id != -1) {
+                    touchPet(db, petId);
+                    // Triggers update the summary columns of the pet
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return id;
+            }
+        });
+        dbHelper.getMaintenanceScheduler().onRowsWritten(id == -1 ? 0 : 1);
+        return id;
+    }
+
+    private int deleteForPet(final String table, final long petId, final String selection,
+                             final String[] selectionArgs) {
+        int rowsDeleted = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase db) {
+                int rowsDeleted = db.delete(table, forPet(selection),
+                        prependId(petId, selectionArgs));
+                if (rowsDeleted > 0) {
+                    touchPet(db, petId);
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return rowsDeleted;
+            }
+        });
+        dbHelper.getMaintenanceScheduler().onRowsWritten(rowsDeleted);
+        return rowsDeleted;
+    }
+
+    /**
+     * Marks a pet as active. Runs on the writer thread.
+     */
+    private static void touchPet(SQLiteDatabase db, long petId) {
+        ContentValues values = new ContentValues(1);
+        values.put(PetDbHelper.COLUMN_PET_LAST_ACTIVE, System.currentTimeMillis());
+        db.update(petsEntry.TABLE_NAME, values, petsEntry._ID + "=?",
+                new String[]{String.valueOf(petId)});
+    }
+
+    // Both related tables name the pet ID column the same
+    private static String forPet(String selection) {
+        String pet = medicalRecordsEntry.COLUMN_PET_ID + " = ?";
+        return selection == null ? pet : pet + " AND (" + selection + ")";
+    }
+
+    /**
+     * Returns the selection arguments with an ID in front, for a selection that starts
+     * with a condition on that ID.
+     */
+    static String[] prependId(long id, String[] selectionArgs) {
+        int count = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[count + 1];
+        args[0] = String.valueOf(id);
+        if (count > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, count);
+        }
+        return args;
+    }
+}
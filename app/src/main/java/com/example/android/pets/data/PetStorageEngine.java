@@ -0,0 +1,126 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.v4.os.CancellationSignal;
+
+import java.util.List;
+
+/**
+ * Storage backend of {@link PetProvider}.
+ *
+ * The provider owns the URI semantics: it matches URIs, validates values, and turns a
+ * single pet URI into the selection "_id=?" and the query parameters of a list URI into
+ * a {@link PetFilter}. An engine only stores rows of the pets table, with the columns of
+ * {@link PetsContract.petsEntry}, and answers those already resolved requests.
+ *
+ * Engines must be safe to call from several threads at once.
+ *
+ * Queries take a {@link CancellationSignal}, or null. Once it is canceled a query stops as
+ * soon as it can with an {@link android.support.v4.os.OperationCanceledException}, or the
+ * platform's own OperationCanceledException when SQLite interrupts it.
+ */
+public interface PetStorageEngine {
+
+    /**
+     * Sort order listing pets alphabetically by name in the current locale. The ID breaks
+     * ties, so pets whose names compare equal keep a stable order.
+     */
+    String NAME_SORT_ORDER =
+            PetDbHelper.COLUMN_PET_NAME_KEY + ", " + PetsContract.petsEntry._ID;
+
+    /**
+     * Returns the rows matching both the selection and the filter.
+     *
+     * @param projection    Columns to return, or null for all
+     * @param selection     SQL WHERE clause without the WHERE keyword, or null
+     * @param selectionArgs Values for the "?" placeholders of the selection
+     * @param filter        Structured filter, possibly empty
+     * @param sortOrder     SQL ORDER BY clause without the ORDER BY keywords, or null.
+     *                      May be {@link #NAME_SORT_ORDER}.
+     * @param signal        Signal canceling the query, or null
+     */
+    Cursor query(String[] projection, String selection, String[] selectionArgs,
+                 PetFilter filter, String sortOrder, CancellationSignal signal);
+
+    /**
+     * Returns the facet counts for the filter, with the columns of
+     * {@link PetsContract.facetsEntry}.
+     */
+    Cursor queryFacets(PetFilter filter, CancellationSignal signal);
+
+    /**
+     * Returns the number of pets matching the filter per name section, with the columns
+     * of {@link PetsContract.sectionsEntry}, in the order of {@link #NAME_SORT_ORDER}.
+     */
+    Cursor querySections(PetFilter filter, CancellationSignal signal);
+
+    /**
+     * Returns the pets whose name and breed are most similar to the given ones, with the
+     * columns of {@link PetsContract.similarEntry}, best match first.
+     *
+     * @param name     Name to match, or null
+     * @param breed    Breed to match, or null
+     * @param limit    Maximum number of matches
+     * @param minScore Lowest score of a match, between 0 and 1
+     * @param signal   Signal canceling the query, or null
+     */
+    Cursor querySimilar(String name, String breed, int limit, double minScore,
+                        CancellationSignal signal);
+
+    /**
+     * Inserts a validated row.
+     *
+     * @return ID of the new row, or -1 if the insert failed
+     */
+    long insert(ContentValues values);
+
+    /**
+     * Inserts validated rows atomically.
+     *
+     * @param insertedIds List receiving one ID per value, in order, with -1 for rows that
+     *                    failed to insert; or null
+     * @return Number of rows inserted
+     */
+    int bulkInsert(ContentValues[] values, List<Long> insertedIds);
+
+    /**
+     * Inserts validated rows, or updates the rows with the same
+     * {@link PetsContract.petsEntry#COLUMN_PET_EXTERNAL_ID}, atomically. Updates only
+     * write the columns whose value changed, and rows without changes are not written.
+     *
+     * @param values  Rows to write, each with an external ID
+     * @param changes List receiving one event per value, in order: an insert event, an
+     *                update event holding the changed columns, an update event without
+     *                values if nothing changed, or null if the row failed to insert
+     * @return Number of rows inserted or changed
+     * @throws IllegalArgumentException if the engine does not support upserts
+     */
+    int upsert(ContentValues[] values, List<PetChangeEvent> changes);
+
+    /**
+     * Updates the rows matching the selection with validated values.
+     *
+     * @param affectedIds List the IDs of the updated rows are added to, or null if the
+     *                    caller does not need them
+     * @return Number of rows updated
+     */
+    int update(ContentValues values, String selection, String[] selectionArgs,
+               List<Long> affectedIds);
+
+    /**
+     * Deletes the rows matching the selection.
+     *
+     * @param affectedIds List the IDs of the deleted rows are added to, or null if the
+     *                    caller does not need them
+     * @return Number of rows deleted
+     */
+    int delete(String selection, String[] selectionArgs, List<Long> affectedIds);
+
+    /**
+     * Returns a counter that changes after every write, once the write is visible to
+     * queries. A result read while the counter had a value is current as long as the
+     * counter keeps that value.
+     */
+    long getGeneration();
+}
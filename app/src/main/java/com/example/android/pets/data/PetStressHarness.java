@@ -0,0 +1,534 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetsContract.facetsEntry;
+import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.queriesEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drives {@link PetProvider} with a configurable mix of concurrent readers and writers
+ * and reports throughput, latency percentiles, the time writes waited in the writer queue
+ * and for the database lock, and the result of consistency checks.
+ *
+ * The harness runs in the app's process against the real provider, so it needs a device
+ * or emulator. Every writer only touches rows it inserted itself, which lets the
+ * harness verify afterwards that each of those rows holds exactly what was last written.
+ * Rows created by a run are left in the database.
+ */
+public class PetStressHarness {
+
+    private static final String LOG_TAG = PetStressHarness.class.getSimpleName();
+
+    // Writes slower than this are counted as slow, whatever they spent the time on
+    private static final long SLOW_WRITE_THRESHOLD_NANOS = 20 * 1000 * 1000;
+
+    // Maximum number of IDs per query of the consistency check
+    private static final int CHECK_BATCH_SIZE = 500;
+
+    /**
+     * Parameters of a run.
+     */
+    public static class Config {
+        // Number of reader and writer threads
+        public int readers = 4;
+        public int writers = 2;
+
+        // Length of the measured phase
+        public long durationMs = 10 * 1000;
+
+        // Pets inserted before the measured phase starts
+        public int seedRows = 10000;
+
+        // Share of writes that update or delete one of the writer's rows. The rest inserts.
+        public double updateShare = 0.3;
+        public double deleteShare = 0.1;
+
+        // Number of rows a reader consumes from each list query
+        public int readPageSize = 50;
+
+        // Seed for all random choices of the run
+        public long seed = 42;
+    }
+
+    /**
+     * Results of a run.
+     */
+    public static class Report {
+        public long durationMs;
+        public long reads;
+        public long writes;
+        public double readsPerSecond;
+        public double writesPerSecond;
+
+        // Latency percentiles in microseconds
+        public long readP50Micros;
+        public long readP99Micros;
+        public long readMaxMicros;
+        public long writeP50Micros;
+        public long writeP99Micros;
+        public long writeMaxMicros;
+
+        // Writes that took longer than the slow write threshold
+        public long slowWrites;
+
+        // Time all writes of the run waited in the queue of the writer thread, and time
+        // its transactions waited for the database lock, as measured by the provider
+        public long writeQueueWaitMillis;
+        public long writeLockWaitMillis;
+
+        // Writes that failed because the database stayed locked
+        public long lockFailures;
+
+        // Other failed operations
+        public long errors;
+
+        // Rows written by a writer that are missing, hold different values, or still
+        // exist after being deleted
+        public long missingRows;
+        public long mismatchedRows;
+        public long resurrectedRows;
+
+        // Whether the row count and the facet total agree with the writes performed
+        public boolean rowCountConsistent;
+        public boolean facetCountConsistent;
+
+        public boolean isConsistent() {
+            return missingRows == 0 && mismatchedRows == 0 && resurrectedRows == 0
+                    && rowCountConsistent && facetCountConsistent;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{durationMs=" + durationMs
+                    + ", reads=" + reads + " (" + Math.round(readsPerSecond) + "/s)"
+                    + ", writes=" + writes + " (" + Math.round(writesPerSecond) + "/s)"
+                    + ", readMicros p50/p99/max=" + readP50Micros + "/" + readP99Micros
+                    + "/" + readMaxMicros
+                    + ", writeMicros p50/p99/max=" + writeP50Micros + "/" + writeP99Micros
+                    + "/" + writeMaxMicros
+                    + ", slowWrites=" + slowWrites
+                    + ", writeQueueWaitMillis=" + writeQueueWaitMillis
+                    + ", writeLockWaitMillis=" + writeLockWaitMillis
+                    + ", lockFailures=" + lockFailures
+                    + ", errors=" + errors
+                    + ", missingRows=" + missingRows
+                    + ", mismatchedRows=" + mismatchedRows
+                    + ", resurrectedRows=" + resurrectedRows
+                    + ", rowCountConsistent=" + rowCountConsistent
+                    + ", facetCountConsistent=" + facetCountConsistent + "}";
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final Config config;
+
+    /**
+     * Constructs a new {@link PetStressHarness}
+     *
+     * @param resolver Resolver connected to the provider under test
+     * @param config   Parameters of the run
+     */
+    public PetStressHarness(ContentResolver resolver, Config config) {
+        this.resolver = resolver;
+        this.config = config;
+    }
+
+    /**
+     * Seeds the table, runs the readers and writers for the configured duration and
+     * checks the result. Blocks until done; do not call on the main thread.
+     */
+    public Report run() throws InterruptedException {
+        new PetWorkloadGenerator(config.seed).insertPets(resolver, config.seedRows, 500);
+        int initialRows = countRows();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < config.readers; i++) {
+            workers.add(new Reader(config.seed + 1 + i, start, deadline));
+        }
+        for (int i = 0; i < config.writers; i++) {
+            workers.add(new Writer(config.seed + 1001 + i, start, deadline));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (Worker worker : workers) {
+            Thread thread = new Thread(worker, worker.getClass().getSimpleName());
+            threads.add(thread);
+            thread.start();
+        }
+
+        Bundle statsBefore = readStats();
+        long startedAt = SystemClock.elapsedRealtime();
+        deadline[0] = startedAt + config.durationMs;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Report report = new Report();
+        report.durationMs = SystemClock.elapsedRealtime() - startedAt;
+        Bundle statsAfter = readStats();
+        report.writeQueueWaitMillis = statsAfter.getLong(queriesEntry.KEY_WRITE_QUEUE_WAIT_MS)
+                - statsBefore.getLong(queriesEntry.KEY_WRITE_QUEUE_WAIT_MS);
+        report.writeLockWaitMillis = statsAfter.getLong(queriesEntry.KEY_WRITE_LOCK_WAIT_MS)
+                - statsBefore.getLong(queriesEntry.KEY_WRITE_LOCK_WAIT_MS);
+        summarize(workers, report);
+        check(workers, initialRows, report);
+        Log.i(LOG_TAG, report.toString());
+        return report;
+    }
+
+    private void summarize(List<Worker> workers, Report report) {
+        LatencyLog reads = new LatencyLog();
+        LatencyLog writes = new LatencyLog();
+        for (Worker worker : workers) {
+            if (worker instanceof Reader) {
+                reads.addAll(worker.latencies);
+            } else {
+                writes.addAll(worker.latencies);
+            }
+            report.errors += worker.errors;
+            report.lockFailures += worker.lockFailures;
+        }
+
+        double seconds = Math.max(report.durationMs, 1) / 1000.0;
+        report.reads = reads.size;
+        report.writes = writes.size;
+        report.readsPerSecond = reads.size / seconds;
+        report.writesPerSecond = writes.size / seconds;
+
+        reads.sort();
+        writes.sort();
+        report.readP50Micros = reads.percentile(0.5) / 1000;
+        report.readP99Micros = reads.percentile(0.99) / 1000;
+        report.readMaxMicros = reads.percentile(1) / 1000;
+        report.writeP50Micros = writes.percentile(0.5) / 1000;
+        report.writeP99Micros = writes.percentile(0.99) / 1000;
+        report.writeMaxMicros = writes.percentile(1) / 1000;
+
+        for (int i = 0; i < writes.size; i++) {
+            if (writes.values[i] > SLOW_WRITE_THRESHOLD_NANOS) {
+                report.slowWrites++;
+            }
+        }
+    }
+
+    /**
+     * Returns the query and write statistics of the provider.
+     */
+    private Bundle readStats() {
+        Bundle stats = resolver.call(PetsContract.BASE_CONTENT_URI,
+                queriesEntry.METHOD_QUERY_STATS, null, null);
+        return stats == null ? new Bundle() : stats;
+    }
+
+    private void check(List<Worker> workers, int initialRows, Report report) {
+        int expectedRows = initialRows;
+        for (Worker worker : workers) {
+            if (!(worker instanceof Writer)) {
+                continue;
+            }
+            Writer writer = (Writer) worker;
+            expectedRows += writer.inserted - writer.deleted.size();
+
+            // Every live row must hold the values last written to it
+            List<Long> ids = new ArrayList<>(writer.expected.keySet());
+            for (int from = 0; from < ids.size(); from += CHECK_BATCH_SIZE) {
+                List<Long> batch = ids.subList(from,
+                        Math.min(from + CHECK_BATCH_SIZE, ids.size()));
+                Map<Long, ContentValues> actual = readRows(batch);
+                for (Long id : batch) {
+                    ContentValues row = actual.get(id);
+                    if (row == null) {
+                        report.missingRows++;
+                    } else if (!matches(writer.expected.get(id), row)) {
+                        report.mismatchedRows++;
+                    }
+                }
+            }
+
+            // Deleted rows must stay deleted
+            for (int from = 0; from < writer.deleted.size(); from += CHECK_BATCH_SIZE) {
+                List<Long> batch = writer.deleted.subList(from,
+                        Math.min(from + CHECK_BATCH_SIZE, writer.deleted.size()));
+                report.resurrectedRows += readRows(batch).size();
+            }
+        }
+
+        int rows = countRows();
+        report.rowCountConsistent = rows == expectedRows;
+        report.facetCountConsistent = facetTotal() == rows;
+    }
+
+    private static boolean matches(ContentValues expected, ContentValues actual) {
+        for (String key : expected.keySet()) {
+            if (!String.valueOf(expected.get(key)).equals(actual.getAsString(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<Long, ContentValues> readRows(List<Long> ids) {
+        StringBuilder selection = new StringBuilder(petsEntry._ID + " IN (");
+        String[] args = new String[ids.size()];
+        for (int i = 0; i < args.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            args[i] = String.valueOf(ids.get(i));
+        }
+        selection.append(")");
+
+        Map<Long, ContentValues> rows = new HashMap<>();
+        Cursor cursor = resolver.query(petsEntry.CONTENT_URI, null, selection.toString(),
+                args, null);
+        if (cursor == null) {
+            return rows;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues row = new ContentValues();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    row.put(cursor.getColumnName(i), cursor.getString(i));
+                }
+                rows.put(cursor.getLong(cursor.getColumnIndex(petsEntry._ID)), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private int countRows() {
+        Cursor cursor = resolver.query(petsEntry.CONTENT_URI, new String[]{petsEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int facetTotal() {
+        Cursor cursor = resolver.query(facetsEntry.CONTENT_URI, null, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            int facetColumnIndex = cursor.getColumnIndex(facetsEntry.COLUMN_FACET);
+            int countColumnIndex = cursor.getColumnIndex(facetsEntry.COLUMN_COUNT);
+            while (cursor.moveToNext()) {
+                if (facetsEntry.FACET_TOTAL.equals(cursor.getString(facetColumnIndex))) {
+                    return cursor.getInt(countColumnIndex);
+                }
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A thread of the run, timing each operation it performs.
+     */
+    private abstract class Worker implements Runnable {
+
+        final Random random;
+        final PetWorkloadGenerator generator;
+        final LatencyLog latencies = new LatencyLog();
+        private final CountDownLatch start;
+        private final long[] deadline;
+        int errors;
+        int lockFailures;
+
+        Worker(long seed, CountDownLatch start, long[] deadline) {
+            random = new Random(seed);
+            generator = new PetWorkloadGenerator(seed);
+            this.start = start;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            while (SystemClock.elapsedRealtime() < deadline[0]) {
+                long begin = System.nanoTime();
+                try {
+                    operate();
+                    latencies.add(System.nanoTime() - begin);
+                } catch (SQLiteDatabaseLockedException e) {
+                    lockFailures++;
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "Operation failed", e);
+                    errors++;
+                }
+            }
+        }
+
+        abstract void operate();
+    }
+
+    /**
+     * Alternates between filtered list queries, single pet lookups and facet counts.
+     */
+    private class Reader extends Worker {
+
+        Reader(long seed, CountDownLatch start, long[] deadline) {
+            super(seed, start, deadline);
+        }
+
+        @Override
+        void operate() {
+            Uri uri;
+            switch (random.nextInt(3)) {
+                case 0:
+                    int minWeight = random.nextInt(30);
+                    uri = new PetFilter()
+                            .setGenders(generator.nextGender())
+                            .setWeightRange(minWeight, minWeight + 10)
+                            .applyTo(petsEntry.CONTENT_URI);
+                    break;
+                case 1:
+                    uri = ContentUris.withAppendedId(petsEntry.CONTENT_URI,
+                            1 + random.nextInt(Math.max(config.seedRows, 1)));
+                    break;
+                default:
+                    uri = new PetFilter()
+                            .setBreeds(generator.nextBreed())
+                            .applyTo(facetsEntry.CONTENT_URI);
+                    break;
+            }
+
+            Cursor cursor = resolver.query(uri, null, null, null, null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                // Consume a page, as a list screen would
+                for (int i = 0; i < config.readPageSize && cursor.moveToNext(); i++) {
+                    cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Inserts new pets and updates or deletes the pets it inserted earlier.
+     */
+    private class Writer extends Worker {
+
+        // Last values written to each live row of this writer
+        final Map<Long, ContentValues> expected = new HashMap<>();
+        final List<Long> live = new ArrayList<>();
+        final List<Long> deleted = new ArrayList<>();
+        int inserted;
+
+        Writer(long seed, CountDownLatch start, long[] deadline) {
+            super(seed, start, deadline);
+        }
+
+        @Override
+        void operate() {
+            double choice = random.nextDouble();
+            if (live.isEmpty() || choice >= config.updateShare + config.deleteShare) {
+                ContentValues values = generator.nextPet();
+                Uri uri = resolver.insert(petsEntry.CONTENT_URI, values);
+                long id = uri == null ? -1 : ContentUris.parseId(uri);
+                if (id == -1) {
+                    errors++;
+                    return;
+                }
+                inserted++;
+                live.add(id);
+                expected.put(id, values);
+            } else if (choice < config.updateShare) {
+                long id = live.get(random.nextInt(live.size()));
+                ContentValues values = new ContentValues();
+                values.put(petsEntry.COLUMN_PET_WEIGHT, generator.nextWeight());
+                values.put(petsEntry.COLUMN_PET_NAME, generator.nextName());
+                if (resolver.update(ContentUris.withAppendedId(petsEntry.CONTENT_URI, id),
+                        values, null, null) == 1) {
+                    expected.get(id).putAll(values);
+                } else {
+                    errors++;
+                }
+            } else {
+                int index = random.nextInt(live.size());
+                long id = live.get(index);
+                if (resolver.delete(ContentUris.withAppendedId(petsEntry.CONTENT_URI, id),
+                        null, null) == 1) {
+                    // Swap-remove to keep deletes cheap on long lists
+                    live.set(index, live.get(live.size() - 1));
+                    live.remove(live.size() - 1);
+                    expected.remove(id);
+                    deleted.add(id);
+                } else {
+                    errors++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Growable list of latencies in nanoseconds.
+     */
+    private static class LatencyLog {
+
+        long[] values = new long[1024];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(LatencyLog other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+        /**
+         * @param fraction Fraction between 0 and 1; the log must be sorted
+         */
+        long percentile(double fraction) {
+            if (size == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * size) - 1;
+            return values[Math.min(Math.max(index, 0), size - 1)];
+        }
+    }
+}
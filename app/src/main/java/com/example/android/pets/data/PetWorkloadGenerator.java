@@ -0,0 +1,154 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetsContract.petsEntry;
+
+import java.util.Random;
+
+/**
+ * Produces random but plausible pets for load testing: common names, a skewed breed
+ * popularity, a configurable gender mix and a long-tailed weight distribution.
+ *
+ * The same seed always produces the same sequence of pets.
+ */
+public class PetWorkloadGenerator {
+
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Buddy", "Molly",
+            "Rocky", "Sadie", "Bear", "Maggie", "Duke", "Sophie", "Tucker", "Chloe", "Jack",
+            "Bailey", "Oliver", "Lola", "Milo", "Zoe", "Toby", "Stella", "Leo", "Penny",
+            "Teddy", "Coco", "Winston", "Rosie", "Oscar", "Ruby", "Simba", "Nala", "Toto",
+            "Pepper", "Ginger", "Shadow", "Smokey", "Misty", "Tiger", "Oreo", "Biscuit"};
+
+    // Ordered from most to least common
+    private static final String[] BREEDS = {
+            "Mixed", "Labrador Retriever", "Domestic Shorthair", "German Shepherd",
+            "Golden Retriever", "Tabby", "French Bulldog", "Beagle", "Siamese", "Poodle",
+            "Bulldog", "Maine Coon", "Rottweiler", "Persian", "Dachshund", "Terrier",
+            "Boxer", "Ragdoll", "Chihuahua", "Shih Tzu", "Bengal", "Husky", "Pug",
+            "Border Collie", "Sphynx", "Great Dane", "Corgi", "Greyhound", "Abyssinian",
+            "Saint Bernard"};
+
+    // Mean and spread of the weight in kg before clamping
+    private static final double WEIGHT_MEAN = 12;
+    private static final double WEIGHT_SPREAD = 0.8;
+    private static final int MAX_WEIGHT = 90;
+
+    private final Random random;
+
+    // Share of female and male pets, the rest is of unknown gender
+    private double femaleShare = 0.46;
+    private double maleShare = 0.46;
+
+    // Share of pets without a breed
+    private double unknownBreedShare = 0.1;
+
+    /**
+     * Constructs a new {@link PetWorkloadGenerator}
+     *
+     * @param seed Seed of the random sequence
+     */
+    public PetWorkloadGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Sets the gender mix. The remainder up to 1 is of unknown gender.
+     */
+    public PetWorkloadGenerator setGenderMix(double femaleShare, double maleShare) {
+        if (femaleShare < 0 || maleShare < 0 || femaleShare + maleShare > 1) {
+            throw new IllegalArgumentException("Invalid gender mix");
+        }
+        this.femaleShare = femaleShare;
+        this.maleShare = maleShare;
+        return this;
+    }
+
+    /**
+     * Sets the share of pets that are generated without a breed.
+     */
+    public PetWorkloadGenerator setUnknownBreedShare(double unknownBreedShare) {
+        if (unknownBreedShare < 0 || unknownBreedShare > 1) {
+            throw new IllegalArgumentException("Invalid unknown breed share");
+        }
+        this.unknownBreedShare = unknownBreedShare;
+        return this;
+    }
+
+    /**
+     * @return Values of a new random pet, ready to be inserted
+     */
+    public ContentValues nextPet() {
+        ContentValues values = new ContentValues();
+        values.put(petsEntry.COLUMN_PET_NAME, nextName());
+        values.put(petsEntry.COLUMN_PET_BREED, nextBreed());
+        values.put(petsEntry.COLUMN_PET_GENDER, nextGender());
+        values.put(petsEntry.COLUMN_PET_WEIGHT, nextWeight());
+        return values;
+    }
+
+    /**
+     * @return Values of the given number of new random pets
+     */
+    public ContentValues[] nextPets(int count) {
+        ContentValues[] pets = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            pets[i] = nextPet();
+        }
+        return pets;
+    }
+
+    /**
+     * Inserts random pets through the provider, one transaction per batch.
+     *
+     * @param resolver  Resolver to insert through
+     * @param count     Number of pets to insert
+     * @param batchSize Number of pets per bulk insert
+     * @return Number of rows inserted
+     */
+    public int insertPets(ContentResolver resolver, int count, int batchSize) {
+        int inserted = 0;
+        while (inserted < count) {
+            int size = Math.min(batchSize, count - inserted);
+            inserted += resolver.bulkInsert(petsEntry.CONTENT_URI, nextPets(size));
+        }
+        return inserted;
+    }
+
+    public String nextName() {
+        String name = NAMES[random.nextInt(NAMES.length)];
+        // Give some pets a second name so names repeat less at large row counts
+        if (random.nextInt(4) == 0) {
+            name += " " + NAMES[random.nextInt(NAMES.length)];
+        }
+        return name;
+    }
+
+    public String nextBreed() {
+        if (random.nextDouble() < unknownBreedShare) {
+            return "";
+        }
+        // Multiplying two uniform values favours the popular breeds at the front
+        double skewed = random.nextDouble() * random.nextDouble();
+        return BREEDS[(int) (skewed * BREEDS.length)];
+    }
+
+    public int nextGender() {
+        double value = random.nextDouble();
+        if (value < femaleShare) {
+            return petsEntry.GENDER_FEMALE;
+        } else if (value < femaleShare + maleShare) {
+            return petsEntry.GENDER_MALE;
+        }
+        return petsEntry.GENDER_UNKNOWN;
+    }
+
+    public int nextWeight() {
+        // Log-normal: most pets are small, with a long tail of large dogs
+        double weight = WEIGHT_MEAN * Math.exp(WEIGHT_SPREAD * random.nextGaussian()
+                - WEIGHT_SPREAD * WEIGHT_SPREAD / 2);
+        return (int) Math.min(Math.round(weight), MAX_WEIGHT);
+    }
+}
@@ -15,6 +15,26 @@ public final class PetsContract {
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     // Path to the type of data i.e. table name
     public static final String PATH_PETS = "pets";
+    // Path to the facet counts of the pets table, relative to {@link #PATH_PETS}
+    public static final String PATH_FACETS = "facets";
+    // Path to the name sections of the pets table, relative to {@link #PATH_PETS}
+    public static final String PATH_SECTIONS = "sections";
+    // Path to the fuzzy name search of the pets table, relative to {@link #PATH_PETS}
+    public static final String PATH_SIMILAR = "similar";
+    // Path to the archived pets, relative to {@link #PATH_PETS}
+    public static final String PATH_ARCHIVE = "archive";
+    // Path to the active and archived pets together, relative to {@link #PATH_PETS}
+    public static final String PATH_ALL = "all";
+    // Path to the medical records of a pet, relative to a pet URI
+    public static final String PATH_MEDICAL_RECORDS = "medical_records";
+    // Path to the kennel assignments of a pet, relative to a pet URI
+    public static final String PATH_KENNEL_ASSIGNMENTS = "kennel_assignments";
+    // Path to the kennels
+    public static final String PATH_KENNELS = "kennels";
+    // Path to the weight history of a pet, relative to a pet URI
+    public static final String PATH_WEIGHTS = "weights";
+    // Path to the photo of a pet, relative to a pet URI
+    public static final String PATH_PHOTO = "photo";
 
     /* Inner class that defines the contents of the pets table */
     public static final class petsEntry implements BaseColumns {
@@ -38,6 +58,27 @@ public final class PetsContract {
         // Weight of the pet
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        // Key of the pet in the feed it came from, or null. Unique among the pets, so
+        // feeds can upsert by it. Only returned when asked for in the projection.
+        public static final String COLUMN_PET_EXTERNAL_ID = "external_id";
+
+        // Summary of the related tables, kept up to date by the provider and read only.
+        // Only returned when asked for in the projection.
+        // Number of medical records of the pet
+        public static final String COLUMN_PET_VISIT_COUNT = "visit_count";
+
+        // Time of the latest medical visit in milliseconds, or null if there is none
+        public static final String COLUMN_PET_LAST_VISIT = "last_visit";
+
+        // Name of the kennel of the latest kennel assignment, or null if there is none
+        public static final String COLUMN_PET_KENNEL = "kennel";
+
+        // Time the photo of the pet was last written in milliseconds, or null if it has
+        // none. Changes with every new photo, so it can key caches of the photo. Written
+        // through {@link photosEntry} and read only. Only returned when asked for in the
+        // projection.
+        public static final String COLUMN_PET_PHOTO_VERSION = "photo_version";
+
         // Value constants used for gender
         // Constant for unknown gender
         public static final int GENDER_UNKNOWN = 0;
@@ -61,6 +102,28 @@ public final class PetsContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY +
                         "/" + PATH_PETS;
 
+        // Query parameters accepted on {@link #CONTENT_URI} and {@link facetsEntry#CONTENT_URI}
+        // to filter the pets. Gender and breed may be repeated to match any of the values.
+        // See {@link PetFilter}.
+        public static final String QUERY_PARAM_GENDER = "gender";
+        public static final String QUERY_PARAM_MIN_WEIGHT = "min_weight";
+        public static final String QUERY_PARAM_MAX_WEIGHT = "max_weight";
+        public static final String QUERY_PARAM_BREED = "breed";
+
+        // Query parameter accepted on {@link #CONTENT_URI} to choose the order of the pets,
+        // instead of a sort order. Its only value is {@link #SORT_NAME}.
+        public static final String QUERY_PARAM_SORT = "sort";
+
+        // Alphabetical order by name in the current locale, answered from an index
+        public static final String SORT_NAME = "name";
+
+        // Query parameter accepted on {@link #CONTENT_URI} by insert and bulk insert. When
+        // "true", a pet whose {@link #COLUMN_PET_EXTERNAL_ID} already exists is updated
+        // instead, and only if a value changed. An archived pet with the external ID is
+        // moved back out of the archive and updated. A pet sent again unchanged still
+        // counts as active, so it is not archived. Every pet must have an external ID.
+        public static final String QUERY_PARAM_UPSERT = "upsert";
+
         // Returns whether or not the givien gender is valid
         public static boolean isValidGender (int gender){
             if(gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE){
@@ -71,4 +134,372 @@ public final class PetsContract {
 
         }
     }
+
+    /* Inner class that defines the medical records of the pets. Deleting a pet deletes
+       its records. */
+    public static final class medicalRecordsEntry implements BaseColumns {
+
+        // Table name
+        public static final String TABLE_NAME = "medical_records";
+
+        // Columns names
+        // ID of the pet the record belongs to, set from the URI
+        public static final String COLUMN_PET_ID = "pet_id";
+
+        // Time of the visit in milliseconds
+        public static final String COLUMN_VISITED_AT = "visited_at";
+
+        // Free text description of the visit
+        public static final String COLUMN_DESCRIPTION = "description";
+
+        // Constant for the MIME type of a list of medical records
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_MEDICAL_RECORDS;
+
+        // Constant for the MIME type of a single medical record
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_MEDICAL_RECORDS;
+
+        // Returns the Content URI of the medical records of a pet, latest visit first.
+        // Append an ID for a single record.
+        public static Uri buildPetUri(long petId) {
+            return petsEntry.CONTENT_URI.buildUpon().appendPath(String.valueOf(petId))
+                    .appendPath(PATH_MEDICAL_RECORDS).build();
+        }
+    }
+
+    /* Inner class that defines the kennels the pets are kept in */
+    public static final class kennelsEntry implements BaseColumns {
+
+        // Table name
+        public static final String TABLE_NAME = "kennels";
+
+        // Columns names
+        // Name of the kennel, unique
+        public static final String COLUMN_KENNEL_NAME = "name";
+
+        // Constant for Content URI. Append an ID for a single kennel. Deleting a kennel
+        // deletes its assignments.
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_KENNELS);
+
+        // Constant for the MIME type of the {@link #CONTENT_URI} for a list of kennels
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_KENNELS;
+
+        // Constant for the MIME type of the {@link #CONTENT_URI} for a single kennel
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_KENNELS;
+
+        // Returns the Content URI of the pets currently in a kennel. Rows have the columns
+        // of {@link petsEntry} and the URI accepts the same query parameters.
+        public static Uri buildPetsUri(long kennelId) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(kennelId))
+                    .appendPath(PATH_PETS).build();
+        }
+    }
+
+    /* Inner class that defines the kennel assignments of the pets. A pet is in the kennel
+       of its latest assignment. Deleting a pet deletes its assignments. */
+    public static final class kennelAssignmentsEntry implements BaseColumns {
+
+        // Table name
+        public static final String TABLE_NAME = "kennel_assignments";
+
+        // Columns names
+        // ID of the pet assigned, set from the URI
+        public static final String COLUMN_PET_ID = "pet_id";
+
+        // ID of the kennel the pet is assigned to
+        public static final String COLUMN_KENNEL_ID = "kennel_id";
+
+        // Time of the assignment in milliseconds, the time of the insert if not given
+        public static final String COLUMN_ASSIGNED_AT = "assigned_at";
+
+        // Constant for the MIME type of a list of kennel assignments
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_KENNEL_ASSIGNMENTS;
+
+        // Constant for the MIME type of a single kennel assignment
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_KENNEL_ASSIGNMENTS;
+
+        // Returns the Content URI of the kennel assignments of a pet, latest first. Append
+        // an ID for a single assignment.
+        public static Uri buildPetUri(long petId) {
+            return petsEntry.CONTENT_URI.buildUpon().appendPath(String.valueOf(petId))
+                    .appendPath(PATH_KENNEL_ASSIGNMENTS).build();
+        }
+    }
+
+    /* Inner class that defines the weight history of the pets. Every change of the weight
+       of a pet is recorded as a sample, and the samples are rolled up per day, week and
+       month as they are recorded. Periods are in UTC and weeks start on Monday. Deleting
+       a pet deletes its history, archiving it keeps the samples in the archive. */
+    public static final class weightsEntry implements BaseColumns {
+
+        // Columns names of a cursor returned for a weights URI, one row per period in
+        // chronological order
+        // Start of the period in milliseconds, the time of the sample for
+        // {@link #RESOLUTION_SAMPLES}
+        public static final String COLUMN_PERIOD_START = "period_start";
+
+        // Lowest, highest and average weight recorded in the period
+        public static final String COLUMN_MIN_WEIGHT = "min_weight";
+        public static final String COLUMN_MAX_WEIGHT = "max_weight";
+        public static final String COLUMN_AVG_WEIGHT = "avg_weight";
+
+        // Number of samples recorded in the period
+        public static final String COLUMN_SAMPLE_COUNT = "sample_count";
+
+        // Query parameter choosing the length of the periods, {@link #RESOLUTION_DAY} if
+        // not given
+        public static final String QUERY_PARAM_RESOLUTION = "resolution";
+
+        // Value constants used for the resolution
+        // One row per sample
+        public static final String RESOLUTION_SAMPLES = "samples";
+        public static final String RESOLUTION_DAY = "day";
+        public static final String RESOLUTION_WEEK = "week";
+        public static final String RESOLUTION_MONTH = "month";
+
+        // Constant for the MIME type of a weight history
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_WEIGHTS;
+
+        // Returns the Content URI of the weight history of a pet in a resolution
+        public static Uri buildPetUri(long petId, String resolution) {
+            return petsEntry.CONTENT_URI.buildUpon().appendPath(String.valueOf(petId))
+                    .appendPath(PATH_WEIGHTS)
+                    .appendQueryParameter(QUERY_PARAM_RESOLUTION, resolution).build();
+        }
+    }
+
+    /* Inner class that defines the photos of the pets. A photo is a file read and written
+       through ContentResolver#openFileDescriptor() with mode "r" or "w", and removed by
+       deleting its URI. Writing a photo sets {@link petsEntry#COLUMN_PET_PHOTO_VERSION}
+       once the file is closed. Deleting a pet deletes its photo. */
+    public static final class photosEntry {
+
+        // Constant for the MIME type of a photo. Photos are stored as written, in any
+        // format BitmapFactory decodes.
+        public static final String CONTENT_TYPE = "image/*";
+
+        // Returns the Content URI of the photo of a pet
+        public static Uri buildPetUri(long petId) {
+            return petsEntry.CONTENT_URI.buildUpon().appendPath(String.valueOf(petId))
+                    .appendPath(PATH_PHOTO).build();
+        }
+    }
+
+    /* Inner class that defines the facet counts of the pets table */
+    public static final class facetsEntry {
+
+        // Table holding the number of pets per gender, weight and breed combination.
+        // It is kept up to date by triggers on the pets table.
+        public static final String TABLE_NAME = "pet_facet_counts";
+
+        // Columns names of the facet counts table. Gender and weight reuse the column
+        // names of the pets table.
+        public static final String COLUMN_COUNT = "count";
+
+        // Columns names of a cursor returned for {@link #CONTENT_URI}
+        // Facet the row belongs to, one of the FACET_* constants
+        public static final String COLUMN_FACET = "facet";
+
+        // Value of the facet, null for {@link #FACET_TOTAL}
+        public static final String COLUMN_VALUE = "value";
+
+        // Value constants used for facets
+        // Number of pets matching the whole filter
+        public static final String FACET_TOTAL = "total";
+
+        // Counts per gender, per weight bucket and per breed. Each facet ignores the
+        // filter's own condition on that column, so every option shows how many pets
+        // it would match.
+        public static final String FACET_GENDER = "gender";
+        public static final String FACET_WEIGHT = "weight";
+        public static final String FACET_BREED = "breed";
+
+        // Width of the weight buckets, in kg. A bucket's value is its lower bound.
+        public static final int WEIGHT_BUCKET_SIZE = 5;
+
+        // Constant for Content URI
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(petsEntry.CONTENT_URI, PATH_FACETS);
+
+        // Constant for the MIME type of the {@link #CONTENT_URI}
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_PETS + "/" + PATH_FACETS;
+    }
+
+    /* Inner class that defines the name sections of the pets table */
+    public static final class sectionsEntry {
+
+        // Table holding the number of pets per initial letter of the name.
+        // It is kept up to date by triggers on the pets table.
+        public static final String TABLE_NAME = "pet_name_sections";
+
+        // Columns names
+        // Label of the section: the initial letter in upper case, accents included.
+        // Letters the current locale treats as the same, such as "E" and "É" in French,
+        // share one section under the label that sorts first. Letters it sorts apart,
+        // such as "A" and "Ä" in Swedish, keep their own sections.
+        public static final String COLUMN_SECTION = "section";
+
+        // Number of pets in the section
+        public static final String COLUMN_COUNT = "count";
+
+        // Label of the section for names that do not start with a letter
+        public static final String SECTION_OTHER = "#";
+
+        // Constant for Content URI. The rows come in the order of
+        // {@link petsEntry#SORT_NAME}, so the counts add up to list positions. The filter
+        // query parameters of {@link petsEntry#CONTENT_URI} are accepted.
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(petsEntry.CONTENT_URI, PATH_SECTIONS);
+
+        // Constant for the MIME type of the {@link #CONTENT_URI}
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_PETS + "/" + PATH_SECTIONS;
+    }
+
+    /* Inner class that defines the archived pets. Pets not changed for a while are moved
+       out of the pets table into a separate archive, which only supports queries. */
+    public static final class archiveEntry {
+
+        // Constant for Content URI of the archived pets. Rows have the columns of
+        // {@link petsEntry} and the URI accepts the same query parameters. Append an ID
+        // for a single archived pet.
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(petsEntry.CONTENT_URI, PATH_ARCHIVE);
+
+        // Constant for Content URI of the active pets followed by the archived ones. With
+        // the {@link petsEntry#QUERY_PARAM_SORT} parameter both are merged into one list in
+        // that order. Other sort orders are rejected.
+        public static final Uri ALL_CONTENT_URI =
+                Uri.withAppendedPath(petsEntry.CONTENT_URI, PATH_ALL);
+    }
+
+    /* Inner class that defines the options and statistics shared by all queries */
+    public static final class queriesEntry {
+
+        // Query parameter accepted on every content URI: the time in milliseconds after
+        // which the query is canceled, 0 for no limit. If not given, queries time out after
+        // {@link #DEFAULT_TIMEOUT_MS} from API 16 on. Older loaders cannot handle a
+        // canceled query, so they should not pass a timeout.
+        public static final String QUERY_PARAM_TIMEOUT = "timeout_ms";
+
+        public static final long DEFAULT_TIMEOUT_MS = 10 * 1000;
+
+        // Method called through ContentResolver#call() on {@link #BASE_CONTENT_URI}.
+        // Returns the number of queries per outcome and the write statistics since the
+        // provider started, as longs under the KEY_* constants.
+        public static final String METHOD_QUERY_STATS = "query_stats";
+
+        // Queries that returned their result
+        public static final String KEY_COMPLETED = "completed";
+
+        // Queries canceled by the caller, for example by a loader that was restarted
+        public static final String KEY_CANCELED = "canceled";
+
+        // Queries canceled because they ran longer than their timeout
+        public static final String KEY_TIMED_OUT = "timed_out";
+
+        // Pets list queries answered from the result cache, and those that were not
+        public static final String KEY_CACHE_HITS = "cache_hits";
+        public static final String KEY_CACHE_MISSES = "cache_misses";
+
+        // Writes run by the writer thread, the time they waited in its queue and the time
+        // its transactions waited for the database lock, in milliseconds. Zero when the
+        // pets are kept in memory.
+        public static final String KEY_WRITES = "writes";
+        public static final String KEY_WRITE_QUEUE_WAIT_MS = "write_queue_wait_ms";
+        public static final String KEY_WRITE_LOCK_WAIT_MS = "write_lock_wait_ms";
+
+        // Last completed database maintenance run: when it started (wall clock), the time
+        // its steps took in milliseconds, the number of times it yielded to traffic, the
+        // pages and bytes it returned to the file system, and the free pages and WAL frames
+        // left afterwards. Missing until a run completed, and when the pets are kept in
+        // memory.
+        public static final String KEY_MAINTENANCE_STARTED_AT = "maintenance_started_at";
+        public static final String KEY_MAINTENANCE_DURATION_MS = "maintenance_duration_ms";
+        public static final String KEY_MAINTENANCE_BACKOFFS = "maintenance_backoffs";
+        public static final String KEY_MAINTENANCE_PAGES_RECLAIMED =
+                "maintenance_pages_reclaimed";
+        public static final String KEY_MAINTENANCE_BYTES_RECLAIMED =
+                "maintenance_bytes_reclaimed";
+        public static final String KEY_MAINTENANCE_FREE_PAGES = "maintenance_free_pages";
+        public static final String KEY_MAINTENANCE_WAL_FRAMES = "maintenance_wal_frames";
+    }
+
+    /* Inner class that defines the backup methods of the provider, called through
+       ContentResolver#call() on {@link #BASE_CONTENT_URI} */
+    public static final class backupsEntry {
+
+        // Takes a snapshot of the database. The name of the snapshot is returned under
+        // {@link #KEY_SNAPSHOT}, or null is returned if the backup failed. The call blocks
+        // until the whole database is copied, so make it from a background thread.
+        // Snapshots do not hold the photos.
+        public static final String METHOD_BACKUP = "backup";
+
+        // Lists the names of the snapshots, newest first, under {@link #KEY_SNAPSHOTS}
+        public static final String METHOD_LIST_BACKUPS = "list_backups";
+
+        // Replaces all pets with those of the snapshot whose name is the argument. Snapshots
+        // of earlier versions of the app are migrated. Null is returned if the restore
+        // failed. Photos stay as they are, and the photo versions of the restored pets
+        // follow the current photo files.
+        public static final String METHOD_RESTORE = "restore";
+
+        // Keys of the returned bundles
+        public static final String KEY_SNAPSHOT = "snapshot";
+        public static final String KEY_SNAPSHOTS = "snapshots";
+
+        // Number of snapshots kept. Taking another one deletes the oldest.
+        public static final int MAX_SNAPSHOTS = 5;
+    }
+
+    /* Inner class that defines the fuzzy search for pets similar to a name and breed */
+    public static final class similarEntry {
+
+        // Query parameters accepted on {@link #CONTENT_URI}
+        // Name and breed to search for. At least one of them should be given.
+        public static final String QUERY_PARAM_NAME = "name";
+        public static final String QUERY_PARAM_BREED = "breed";
+
+        // Maximum number of matches to return, {@link #DEFAULT_LIMIT} if not given
+        public static final String QUERY_PARAM_LIMIT = "limit";
+
+        // Lowest score of a match, between 0 and 1, {@link #DEFAULT_MIN_SCORE} if not given
+        public static final String QUERY_PARAM_MIN_SCORE = "min_score";
+
+        public static final int DEFAULT_LIMIT = 5;
+        public static final int MAX_LIMIT = 50;
+        public static final double DEFAULT_MIN_SCORE = 0.4;
+
+        // Columns names of a cursor returned for {@link #CONTENT_URI}. The ID, name and
+        // breed columns are those of {@link petsEntry}.
+        // Share of trigrams of name and breed the pet has in common with the search,
+        // from 0 to 1. Matches come best first.
+        public static final String COLUMN_SCORE = "score";
+
+        // Constant for Content URI
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(petsEntry.CONTENT_URI, PATH_SIMILAR);
+
+        // Constant for the MIME type of the {@link #CONTENT_URI}
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY +
+                        "/" + PATH_PETS + "/" + PATH_SIMILAR;
+    }
 }
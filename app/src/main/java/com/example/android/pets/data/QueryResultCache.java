@@ -0,0 +1,412 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of pets list queries kept in memory, so identical queries from several screens
+ * or callers are answered without going to the storage engine again.
+ *
+ * Results are keyed by the shape of the query: projection, selection and its arguments,
+ * filter and sort order, with the whitespace and ordering differences that do not change
+ * the result taken out. Each result is an immutable snapshot stored column by column, and
+ * every hit gets its own cursor over the shared snapshot. Snapshots are evicted least
+ * recently used first once their estimated size exceeds the budget.
+ *
+ * Snapshots remember the {@link PetStorageEngine#getGeneration() generation} of the
+ * storage they were read under. Writes only change the generation, and a snapshot of an
+ * older generation is dropped the next time it is asked for, so writes never walk the
+ * cache.
+ */
+class QueryResultCache {
+
+    // Estimated bytes of an object header and of a reference
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    private final LruCache<String, Snapshot> snapshots;
+
+    // Largest snapshot worth caching, larger results would push out many others
+    private final int maxSnapshotBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param budgetBytes Estimated memory all snapshots may take together
+     */
+    QueryResultCache(int budgetBytes) {
+        snapshots = new LruCache<String, Snapshot>(budgetBytes) {
+            @Override
+            protected int sizeOf(String key, Snapshot snapshot) {
+                return snapshot.bytes;
+            }
+        };
+        maxSnapshotBytes = budgetBytes / 4;
+    }
+
+    /**
+     * Returns the key of a query. Queries with the same key return the same rows in the
+     * same order.
+     */
+    static String key(String[] projection, String selection, String[] selectionArgs,
+                      PetFilter filter, String sortOrder) {
+        int[] genders = filter.getGenders();
+        Arrays.sort(genders);
+        String[] breeds = filter.getBreeds();
+        Arrays.sort(breeds);
+
+        // Every part is escaped or delimited, so different queries cannot join into one key
+        StringBuilder key = new StringBuilder();
+        key.append(projection == null ? "*" : Arrays.toString(escape(projection)))
+                .append("|w=").append(selection == null ? "" : normalize(selection))
+                .append("|a=").append(selectionArgs == null ? "[]"
+                        : Arrays.toString(escape(selectionArgs)))
+                .append("|g=").append(Arrays.toString(genders))
+                .append("|min=").append(filter.getMinWeight())
+                .append("|max=").append(filter.getMaxWeight())
+                .append("|b=").append(Arrays.toString(escape(breeds)))
+                .append("|o=").append(sortOrder == null ? "" : normalize(sortOrder));
+        return key.toString();
+    }
+
+    /**
+     * Returns a cursor over the cached result of a query, or null if there is no result
+     * of the given generation.
+     */
+    Cursor get(String key, long generation) {
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot != null && snapshot.generation != generation) {
+            snapshots.remove(key);
+            snapshot = null;
+        }
+        if (snapshot == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Caches the result of a query read under the given generation, unless it is too
+     * large to be worth it.
+     *
+     * @param cursor Result of the query. It is closed if a snapshot replaces it.
+     * @return A cursor over the snapshot, or the given cursor before its first row if the
+     * result was not cached
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        Snapshot snapshot = Snapshot.read(cursor, generation, maxSnapshotBytes);
+        if (snapshot == null) {
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+        cursor.close();
+        snapshots.put(key, snapshot);
+        return new SnapshotCursor(snapshot);
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Trims and collapses whitespace outside of quoted literals and identifiers, so
+     * "name = ?" and "name=?" stay different keys but "name = ?" and "name  =  ?" do not.
+     */
+    private static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"' || c == '`')) {
+                quote = c;
+            } else if (c == quote) {
+                // A doubled quote is an escaped one and opens the literal again right away
+                quote = 0;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    private static String[] escape(String[] values) {
+        String[] escaped = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            escaped[i] = values[i] == null ? "null"
+                    : "\"" + values[i].replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+        return escaped;
+    }
+
+    /**
+     * Immutable copy of a query result. Columns holding only integers and nulls, like the
+     * IDs, genders and weights, are stored as primitive arrays.
+     */
+    private static final class Snapshot {
+
+        final long generation;
+        final String[] columnNames;
+        final int count;
+        // Per column either a long[] with a BitSet of nulls, or an Object[]
+        final Object[] columns;
+        final BitSet[] nulls;
+        final int bytes;
+
+        private Snapshot(long generation, String[] columnNames, int count, Object[] columns,
+                         BitSet[] nulls, int bytes) {
+            this.generation = generation;
+            this.columnNames = columnNames;
+            this.count = count;
+            this.columns = columns;
+            this.nulls = nulls;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Reads a whole result into a snapshot, in a single pass. Columns start out as
+         * integer columns and are turned into object columns at their first other value.
+         *
+         * @return The snapshot, or null if it would take more than the given bytes
+         */
+        static Snapshot read(Cursor cursor, long generation, int maxBytes) {
+            String[] columnNames = cursor.getColumnNames();
+            int count = cursor.getCount();
+            int columnCount = columnNames.length;
+
+            // Every value takes at least a reference, so results that cannot fit are turned
+            // down before reading any row
+            long bytes = OBJECT_BYTES * 2 + count * (long) columnCount * REFERENCE_BYTES;
+            if (bytes > maxBytes) {
+                return null;
+            }
+
+            bytes = OBJECT_BYTES * 2;
+            Object[] columns = new Object[columnCount];
+            BitSet[] nulls = new BitSet[columnCount];
+            for (int column = 0; column < columnCount; column++) {
+                columns[column] = new long[count];
+                nulls[column] = new BitSet(count);
+                bytes += integerColumnBytes(count);
+            }
+
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                for (int column = 0; column < columnCount; column++) {
+                    int type = cursor.getType(column);
+                    if (columns[column] instanceof long[]) {
+                        if (type == Cursor.FIELD_TYPE_NULL) {
+                            nulls[column].set(row);
+                            continue;
+                        }
+                        if (type == Cursor.FIELD_TYPE_INTEGER) {
+                            ((long[]) columns[column])[row] = cursor.getLong(column);
+                            continue;
+                        }
+                        columns[column] = toObjects((long[]) columns[column], nulls[column], row);
+                        nulls[column] = null;
+                        bytes += OBJECT_BYTES + count * (long) REFERENCE_BYTES
+                                - integerColumnBytes(count) + row * (OBJECT_BYTES + 8L);
+                    }
+                    Object value = valueOf(cursor, column);
+                    ((Object[]) columns[column])[row] = value;
+                    bytes += sizeOf(value);
+                }
+                if (bytes > maxBytes) {
+                    return null;
+                }
+            }
+            return new Snapshot(generation, columnNames, count, columns, nulls, (int) bytes);
+        }
+
+        private static long integerColumnBytes(int count) {
+            return OBJECT_BYTES * 2 + count * 8L + count / 8;
+        }
+
+        /**
+         * Boxes the first rows of an integer column, for a column that turned out to hold
+         * other values as well.
+         */
+        private static Object[] toObjects(long[] values, BitSet nulls, int rows) {
+            Object[] objects = new Object[values.length];
+            for (int row = 0; row < rows; row++) {
+                objects[row] = nulls.get(row) ? null : values[row];
+            }
+            return objects;
+        }
+
+        private static Object valueOf(Cursor cursor, int column) {
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return cursor.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return cursor.getDouble(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(column);
+                default:
+                    return cursor.getString(column);
+            }
+        }
+
+        private static long sizeOf(Object value) {
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof String) {
+                return OBJECT_BYTES * 2 + ((String) value).length() * 2L;
+            }
+            if (value instanceof byte[]) {
+                return OBJECT_BYTES + ((byte[]) value).length;
+            }
+            return OBJECT_BYTES + 8;
+        }
+    }
+
+    /**
+     * Cursor over a snapshot. Only its position is its own.
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+
+        private final Snapshot snapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public int getCount() {
+            return snapshot.count;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return snapshot.columnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object values = snapshot.columns[column];
+            if (values instanceof long[]) {
+                return snapshot.nulls[column].get(getPosition())
+                        ? FIELD_TYPE_NULL : FIELD_TYPE_INTEGER;
+            }
+            Object value = ((Object[]) values)[getPosition()];
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getType(column) == FIELD_TYPE_NULL;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = value(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            // Like SQLite, other values read as blobs of their text
+            return value.toString().getBytes();
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object values = snapshot.columns[column];
+            if (values instanceof long[]) {
+                return ((long[]) values)[getPosition()];
+            }
+            Object value = ((Object[]) values)[getPosition()];
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value == null ? 0 : parseDouble(value.toString()).longValue();
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object values = snapshot.columns[column];
+            if (values instanceof long[]) {
+                return ((long[]) values)[getPosition()];
+            }
+            Object value = ((Object[]) values)[getPosition()];
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value == null ? 0 : parseDouble(value.toString());
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        /**
+         * Returns the value of a column in the current row, boxed.
+         */
+        private Object value(int column) {
+            Object values = snapshot.columns[column];
+            if (values instanceof long[]) {
+                return snapshot.nulls[column].get(getPosition())
+                        ? null : ((long[]) values)[getPosition()];
+            }
+            return ((Object[]) values)[getPosition()];
+        }
+
+        /**
+         * Reads text as a number the way SQLite does, as 0 if it does not start with one.
+         */
+        private static Double parseDouble(String text) {
+            try {
+                return Double.valueOf(text.trim());
+            } catch (NumberFormatException e) {
+                return 0.0;
+            }
+        }
+    }
+}
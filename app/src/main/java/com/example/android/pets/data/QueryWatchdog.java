@@ -0,0 +1,114 @@
+package com.example.android.pets.data;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cancels provider queries that run longer than their timeout, and counts how queries
+ * ended: completed, canceled by the caller, or timed out.
+ *
+ * The timeouts of all queries are posted to one background thread, so a query without
+ * a timeout costs nothing and one with a timeout costs a posted message.
+ */
+class QueryWatchdog {
+
+    private static final String LOG_TAG = QueryWatchdog.class.getSimpleName();
+
+    private final Handler handler;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong canceled = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    QueryWatchdog() {
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Starts watching a query.
+     *
+     * @param signal    Signal the query is canceled through
+     * @param timeoutMs Time after which the signal is canceled, 0 for no timeout
+     */
+    Watch start(CancellationSignal signal, long timeoutMs) {
+        Watch watch = new Watch(signal);
+        if (timeoutMs > 0) {
+            handler.postDelayed(watch, timeoutMs);
+        }
+        return watch;
+    }
+
+    long getCompletedCount() {
+        return completed.get();
+    }
+
+    long getCanceledCount() {
+        return canceled.get();
+    }
+
+    long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * The timeout of one query. Exactly one of {@link #completed()} and
+     * {@link #failed(RuntimeException)} must be called when the query ends.
+     */
+    final class Watch implements Runnable {
+
+        private final CancellationSignal signal;
+        private volatile boolean fired;
+
+        private Watch(CancellationSignal signal) {
+            this.signal = signal;
+        }
+
+        @Override
+        public void run() {
+            fired = true;
+            signal.cancel();
+        }
+
+        /**
+         * Disarms the timeout of a query that returned its result.
+         */
+        void completed() {
+            handler.removeCallbacks(this);
+            completed.incrementAndGet();
+        }
+
+        /**
+         * Disarms the timeout of a query that threw.
+         *
+         * @return The exception to throw to the caller: an OperationCanceledException if
+         * the query was canceled, otherwise the given failure
+         */
+        RuntimeException failed(RuntimeException failure) {
+            handler.removeCallbacks(this);
+            if (!signal.isCanceled()) {
+                return failure;
+            }
+            (fired ? timedOut : canceled).incrementAndGet();
+            return operationCanceled(fired ? "Query timed out" : "Query canceled");
+        }
+    }
+
+    /**
+     * Loaders from API 16 on only recognize the platform's OperationCanceledException, so
+     * that one is thrown where it exists.
+     */
+    private static RuntimeException operationCanceled(String message) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new android.os.OperationCanceledException(message);
+        }
+        return new OperationCanceledException(message);
+    }
+}
@@ -0,0 +1,540 @@
+package com.example.android.pets.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses and evaluates the subset of SQL WHERE clauses that callers of the provider use,
+ * for storage engines that do not run on SQLite.
+ *
+ * Supported are column references, string and number literals, "?" placeholders,
+ * parentheses, AND, OR, NOT, the comparisons =, ==, !=, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=,
+ * IN (...) and IS [NOT] NULL. Comparisons follow the affinity rules of SQLite: a column
+ * holding numbers converts text that looks like a number on the other side, a column
+ * holding text converts literals and arguments to text, and otherwise numbers sort before
+ * text. NULL propagates through comparisons, NOT, AND and OR like in SQLite, and a row
+ * only matches if the selection is true. Anything else is rejected with an
+ * {@link IllegalArgumentException}.
+ */
+final class SelectionExpression {
+
+    private static final String SYNTAX_EXCEPTION = "Unsupported selection: ";
+
+    // Type affinities of operands. Literals, arguments and the results of expressions have
+    // none.
+    private static final int AFFINITY_NONE = 0;
+    private static final int AFFINITY_NUMERIC = 1;
+    private static final int AFFINITY_TEXT = 2;
+
+    /**
+     * Access to the column values of the row being evaluated.
+     */
+    interface Row {
+        /**
+         * @return The value as a Long, a String, or null. Columns returning Strings have
+         * TEXT affinity, those returning Longs numeric affinity.
+         */
+        Object get(String column);
+    }
+
+    private final Node root;
+
+    private SelectionExpression(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses a selection.
+     *
+     * @param selection     WHERE clause without the WHERE keyword, or null to match all rows
+     * @param selectionArgs Values for the "?" placeholders
+     * @param columns       Columns the selection may refer to
+     */
+    static SelectionExpression parse(String selection, String[] selectionArgs,
+                                     Set<String> columns) {
+        if (selection == null || selection.trim().isEmpty()) {
+            return new SelectionExpression(null);
+        }
+        Parser parser = new Parser(selection, selectionArgs, columns);
+        Node root = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException(SYNTAX_EXCEPTION + selection);
+        }
+        if (parser.argIndex != (selectionArgs == null ? 0 : selectionArgs.length)) {
+            throw new IllegalArgumentException("Wrong number of selection arguments for "
+                    + selection);
+        }
+        return new SelectionExpression(root);
+    }
+
+    /**
+     * @return Whether the row satisfies the selection
+     */
+    boolean matches(Row row) {
+        return root == null || isTrue(root.eval(row));
+    }
+
+    /**
+     * @return The ID if the selection is exactly "_id = value", otherwise null. Lets an
+     * engine answer single pet lookups without evaluating every row.
+     */
+    Long exactId(String idColumn) {
+        if (!(root instanceof Comparison)) {
+            return null;
+        }
+        Comparison comparison = (Comparison) root;
+        if (!comparison.operator.equals("=") || !(comparison.left instanceof ColumnRef)
+                || !((ColumnRef) comparison.left).name.equals(idColumn)
+                || !(comparison.right instanceof Literal)) {
+            return null;
+        }
+        return asLong(((Literal) comparison.right).value);
+    }
+
+    private static boolean isTrue(Object value) {
+        Long number = asLong(value);
+        return number != null && number != 0;
+    }
+
+    private static Long asLong(Object value) {
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares two non-null values after applying the affinity of one side to the other,
+     * like SQLite does before a comparison.
+     */
+    private static int compare(Object left, int leftAffinity, Object right,
+                               int rightAffinity) {
+        if (leftAffinity == AFFINITY_NUMERIC && rightAffinity != AFFINITY_NUMERIC) {
+            right = toNumeric(right);
+        } else if (rightAffinity == AFFINITY_NUMERIC && leftAffinity != AFFINITY_NUMERIC) {
+            left = toNumeric(left);
+        } else if (leftAffinity == AFFINITY_TEXT && rightAffinity == AFFINITY_NONE) {
+            right = String.valueOf(right);
+        } else if (rightAffinity == AFFINITY_TEXT && leftAffinity == AFFINITY_NONE) {
+            left = String.valueOf(left);
+        }
+
+        if (left instanceof Long && right instanceof Long) {
+            return ((Long) left).compareTo((Long) right);
+        }
+        // Numbers sort before text
+        if (left instanceof Long) {
+            return -1;
+        }
+        if (right instanceof Long) {
+            return 1;
+        }
+        return ((String) left).compareTo((String) right);
+    }
+
+    /**
+     * Returns text that looks like a number as the number, and anything else unchanged.
+     */
+    private static Object toNumeric(Object value) {
+        Long number = asLong(value);
+        return number != null ? number : value;
+    }
+
+    private abstract static class Node {
+        abstract Object eval(Row row);
+
+        /**
+         * @return The affinity of a value this node evaluated to
+         */
+        int affinity(Object value) {
+            return AFFINITY_NONE;
+        }
+    }
+
+    private static final class Literal extends Node {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Row row) {
+            return value;
+        }
+    }
+
+    private static final class ColumnRef extends Node {
+        final String name;
+
+        ColumnRef(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Row row) {
+            return row.get(name);
+        }
+
+        @Override
+        int affinity(Object value) {
+            return value instanceof String ? AFFINITY_TEXT : AFFINITY_NUMERIC;
+        }
+    }
+
+    private static final class Comparison extends Node {
+        final String operator;
+        final Node left;
+        final Node right;
+
+        Comparison(String operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Row row) {
+            Object leftValue = left.eval(row);
+            Object rightValue = right.eval(row);
+            if (leftValue == null || rightValue == null) {
+                return null;
+            }
+            int result = compare(leftValue, left.affinity(leftValue), rightValue,
+                    right.affinity(rightValue));
+            boolean matches;
+            switch (operator) {
+                case "=":
+                    matches = result == 0;
+                    break;
+                case "<>":
+                    matches = result != 0;
+                    break;
+                case "<":
+                    matches = result < 0;
+                    break;
+                case "<=":
+                    matches = result <= 0;
+                    break;
+                case ">":
+                    matches = result > 0;
+                    break;
+                default:
+                    matches = result >= 0;
+                    break;
+            }
+            return matches ? 1L : 0L;
+        }
+    }
+
+    private static final class In extends Node {
+        final Node value;
+        final List<Node> options;
+
+        In(Node value, List<Node> options) {
+            this.value = value;
+            this.options = options;
+        }
+
+        @Override
+        Object eval(Row row) {
+            Object actual = value.eval(row);
+            if (actual == null) {
+                return null;
+            }
+            // Without a match, a NULL in the list makes the result NULL
+            boolean sawNull = false;
+            for (Node option : options) {
+                Object candidate = option.eval(row);
+                if (candidate == null) {
+                    sawNull = true;
+                } else if (compare(actual, value.affinity(actual), candidate,
+                        option.affinity(candidate)) == 0) {
+                    return 1L;
+                }
+            }
+            return sawNull ? null : 0L;
+        }
+    }
+
+    private static final class IsNull extends Node {
+        final Node value;
+        final boolean negated;
+
+        IsNull(Node value, boolean negated) {
+            this.value = value;
+            this.negated = negated;
+        }
+
+        @Override
+        Object eval(Row row) {
+            return (value.eval(row) == null) != negated ? 1L : 0L;
+        }
+    }
+
+    private static final class Logical extends Node {
+        final boolean and;
+        final Node left;
+        final Node right;
+
+        Logical(boolean and, Node left, Node right) {
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Row row) {
+            // Either side decides on its own: false AND x, true OR x
+            Object leftValue = left.eval(row);
+            if (leftValue != null && isTrue(leftValue) != and) {
+                return and ? 0L : 1L;
+            }
+            Object rightValue = right.eval(row);
+            if (rightValue != null && isTrue(rightValue) != and) {
+                return and ? 0L : 1L;
+            }
+            if (leftValue == null || rightValue == null) {
+                return null;
+            }
+            return and ? 1L : 0L;
+        }
+    }
+
+    private static final class Not extends Node {
+        final Node value;
+
+        Not(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Row row) {
+            Object operand = value.eval(row);
+            if (operand == null) {
+                return null;
+            }
+            return isTrue(operand) ? 0L : 1L;
+        }
+    }
+
+    /**
+     * Recursive descent parser over a token list.
+     */
+    private static final class Parser {
+
+        final String selection;
+        final String[] args;
+        final Set<String> columns;
+        final List<String> tokens;
+        int position;
+        int argIndex;
+
+        Parser(String selection, String[] args, Set<String> columns) {
+            this.selection = selection;
+            this.args = args;
+            this.columns = columns;
+            this.tokens = tokenize(selection);
+        }
+
+        Node parseOr() {
+            Node node = parseAnd();
+            while (acceptKeyword("OR")) {
+                node = new Logical(false, node, parseAnd());
+            }
+            return node;
+        }
+
+        Node parseAnd() {
+            Node node = parseNot();
+            while (acceptKeyword("AND")) {
+                node = new Logical(true, node, parseNot());
+            }
+            return node;
+        }
+
+        Node parseNot() {
+            if (acceptKeyword("NOT")) {
+                return new Not(parseNot());
+            }
+            return parsePredicate();
+        }
+
+        Node parsePredicate() {
+            Node left = parseOperand();
+
+            if (acceptKeyword("IS")) {
+                boolean negated = acceptKeyword("NOT");
+                expectKeyword("NULL");
+                return new IsNull(left, negated);
+            }
+
+            boolean negated = acceptKeyword("NOT");
+            if (acceptKeyword("IN")) {
+                expect("(");
+                List<Node> options = new ArrayList<>();
+                do {
+                    options.add(parseOperand());
+                } while (accept(","));
+                expect(")");
+                Node in = new In(left, options);
+                return negated ? new Not(in) : in;
+            }
+            if (negated) {
+                throw syntaxError();
+            }
+
+            String operator = peek();
+            if (operator != null && isComparison(operator)) {
+                position++;
+                if (operator.equals("==")) {
+                    operator = "=";
+                } else if (operator.equals("!=")) {
+                    operator = "<>";
+                }
+                return new Comparison(operator, left, parseOperand());
+            }
+            return left;
+        }
+
+        Node parseOperand() {
+            String token = next();
+            if (token.equals("(")) {
+                Node node = parseOr();
+                expect(")");
+                return node;
+            }
+            if (token.equals("?")) {
+                if (args == null || argIndex >= args.length) {
+                    throw new IllegalArgumentException(
+                            "Missing selection argument for " + selection);
+                }
+                return new Literal(args[argIndex++]);
+            }
+            if (token.startsWith("'")) {
+                return new Literal(token.substring(1, token.length() - 1).replace("''", "'"));
+            }
+            if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '-') {
+                try {
+                    return new Literal(Long.parseLong(token));
+                } catch (NumberFormatException e) {
+                    throw syntaxError();
+                }
+            }
+            if (token.equalsIgnoreCase("NULL")) {
+                return new Literal(null);
+            }
+            if (columns.contains(token)) {
+                return new ColumnRef(token);
+            }
+            throw new IllegalArgumentException("No such column: " + token);
+        }
+
+        private static boolean isComparison(String token) {
+            return token.equals("=") || token.equals("==") || token.equals("!=")
+                    || token.equals("<>") || token.equals("<") || token.equals("<=")
+                    || token.equals(">") || token.equals(">=");
+        }
+
+        private String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private String next() {
+            if (position >= tokens.size()) {
+                throw syntaxError();
+            }
+            return tokens.get(position++);
+        }
+
+        private boolean accept(String token) {
+            if (token.equals(peek())) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            String token = peek();
+            if (token != null && token.equalsIgnoreCase(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw syntaxError();
+            }
+        }
+
+        private void expectKeyword(String keyword) {
+            if (!acceptKeyword(keyword)) {
+                throw syntaxError();
+            }
+        }
+
+        private IllegalArgumentException syntaxError() {
+            return new IllegalArgumentException(SYNTAX_EXCEPTION + selection);
+        }
+
+        private List<String> tokenize(String text) {
+            List<String> result = new ArrayList<>();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    // String literal, '' is an escaped quote
+                    int end = i + 1;
+                    while (true) {
+                        if (end >= text.length()) {
+                            throw syntaxError();
+                        }
+                        if (text.charAt(end) == '\'') {
+                            if (end + 1 < text.length() && text.charAt(end + 1) == '\'') {
+                                end += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        end++;
+                    }
+                    result.add(text.substring(i, end + 1));
+                    i = end + 1;
+                } else if (Character.isLetterOrDigit(c) || c == '_'
+                        || (c == '-' && i + 1 < text.length()
+                        && Character.isDigit(text.charAt(i + 1)))) {
+                    int end = i + 1;
+                    while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end))
+                            || text.charAt(end) == '_')) {
+                        end++;
+                    }
+                    result.add(text.substring(i, end));
+                    i = end;
+                } else if (i + 1 < text.length()
+                        && isComparison(text.substring(i, i + 2))) {
+                    result.add(text.substring(i, i + 2));
+                    i += 2;
+                } else if ("=<>(),?".indexOf(c) >= 0) {
+                    result.add(String.valueOf(c));
+                    i++;
+                } else {
+                    throw syntaxError();
+                }
+            }
+            return result;
+        }
+    }
+}
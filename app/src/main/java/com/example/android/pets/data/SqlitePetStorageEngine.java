@@ -0,0 +1,800 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.v4.os.CancellationSignal;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetsContract.facetsEntry;
+import com.example.android.pets.data.PetsContract.petsEntry;
+import com.example.android.pets.data.PetsContract.sectionsEntry;
+import com.example.android.pets.data.PetsContract.similarEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * {@link PetStorageEngine} backed by the SQLite database of {@link PetDbHelper}.
+ *
+ * Writes go through the {@link GroupCommitWriter} of the helper, so concurrent writers
+ * share transactions instead of queueing on the database lock.
+ *
+ * Breeds are stored as IDs into the breeds lookup table. Breed names in written values
+ * are resolved to IDs, and the breed column of query results is resolved back to names
+ * through a {@link BreedDictionary}. Unknown breeds, null or empty, read back as the
+ * empty string.
+ *
+ * Every write of a name also stores its collation key, which
+ * {@link PetStorageEngine#NAME_SORT_ORDER} orders by.
+ *
+ * From API 16 on, a canceled query is interrupted inside SQLite. Older versions cannot
+ * interrupt a statement, so the signal is only checked before it starts.
+ */
+public class SqlitePetStorageEngine implements PetStorageEngine {
+
+    // Lower bound of the weight bucket of a facet counts row
+    private static final String WEIGHT_BUCKET = "(" + petsEntry.COLUMN_PET_WEIGHT + " / " +
+            facetsEntry.WEIGHT_BUCKET_SIZE + ") * " + facetsEntry.WEIGHT_BUCKET_SIZE;
+
+    // Name of the breed of a facet counts row
+    private static final String BREED_NAME = "(SELECT " + PetDbHelper.COLUMN_BREED_NAME +
+            " FROM " + PetDbHelper.BREEDS_TABLE_NAME + " WHERE " +
+            PetDbHelper.BREEDS_TABLE_NAME + "." + PetDbHelper.COLUMN_BREED_KEY + " = " +
+            facetsEntry.TABLE_NAME + "." + PetDbHelper.COLUMN_PET_BREED_ID + ")";
+
+    // How long a pet an upsert sends again unchanged stays active before the upsert stamps
+    // its activity again, so pets a feed keeps sending are not archived
+    private static final long UPSERT_ACTIVITY_REFRESH_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String[] SIMILAR_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_NAME,
+            petsEntry.COLUMN_PET_BREED,
+            similarEntry.COLUMN_SCORE};
+
+    private static final String[] ALL_COLUMNS = {
+            petsEntry._ID,
+            petsEntry.COLUMN_PET_NAME,
+            petsEntry.COLUMN_PET_BREED,
+            petsEntry.COLUMN_PET_GENDER,
+            petsEntry.COLUMN_PET_WEIGHT};
+
+    // Matches clauses referring to the breed name column, but not to breed_id
+    private static final Pattern BREED_REFERENCE =
+            Pattern.compile("\\b" + petsEntry.COLUMN_PET_BREED + "\\b");
+
+    private final PetDbHelper dbHelper;
+
+    // Cache of the breeds lookup table
+    private final BreedDictionary breeds;
+
+    // Collator for the name keys. Collators are not thread safe, so it is only used on
+    // the writer thread.
+    private final Collator nameCollator = Collator.getInstance();
+
+    // Archive upserts look external IDs up in when the pets table has no match, or null
+    private PetArchive archive;
+
+    /**
+     * Constructs a new {@link SqlitePetStorageEngine}
+     *
+     * @param dbHelper Helper owning the database
+     */
+    public SqlitePetStorageEngine(PetDbHelper dbHelper) {
+        this.dbHelper = dbHelper;
+        this.breeds = dbHelper.getBreeds();
+    }
+
+    /**
+     * Lets upserts bring back archived pets sent again, instead of adding a second pet
+     * with the same external ID. Set before the engine is used.
+     */
+    public void setArchive(PetArchive archive) {
+        this.archive = archive;
+    }
+
+    @Override
+    public Cursor query(String[] projection, String selection, String[] selectionArgs,
+                        PetFilter filter, String sortOrder, CancellationSignal signal) {
+        // Get readable database
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        // Selections and sort orders on the breed name need the joined view
+        boolean byBreedName = refersToBreed(selection) || refersToBreed(sortOrder);
+
+        // The filter is added to the selection
+        List<String> args = new ArrayList<>();
+        if (selectionArgs != null) {
+            args.addAll(Arrays.asList(selectionArgs));
+        }
+        String filterSelection = filter.buildSelection(args, breeds);
+        if (filterSelection != null) {
+            selection = selection == null ? filterSelection
+                    : "(" + selection + ") AND " + filterSelection;
+            selectionArgs = args.toArray(new String[args.size()]);
+        }
+
+        Cursor cursor;
+        if (byBreedName) {
+            cursor = query(db, PetDbHelper.PETS_WITH_BREED_VIEW, projection, selection,
+                    selectionArgs, null, sortOrder, signal);
+        } else {
+            // Read breed IDs and resolve them to names through the dictionary
+            String[] columns = projection == null ? ALL_COLUMNS : projection.clone();
+            boolean[] breedColumns = new boolean[columns.length];
+            boolean hasBreed = false;
+            for (int i = 0; i < columns.length; i++) {
+                if (petsEntry.COLUMN_PET_BREED.equals(columns[i])) {
+                    columns[i] = PetDbHelper.COLUMN_PET_BREED_ID + " AS " +
+                            petsEntry.COLUMN_PET_BREED;
+                    breedColumns[i] = true;
+                    hasBreed = true;
+                }
+            }
+            cursor = query(db, petsEntry.TABLE_NAME, columns, selection, selectionArgs,
+                    null, sortOrder, signal);
+            if (hasBreed) {
+                cursor = new BreedNameCursor(cursor, breedColumns, breeds);
+            }
+        }
+
+        // Keep maintenance from running while the provider is serving queries
+        dbHelper.getMaintenanceScheduler().onDatabaseAccessed();
+
+        return cursor;
+    }
+
+    /**
+     * All counts are sums over the facet counts table, which holds one row per distinct
+     * gender, weight and breed combination, so the cost does not grow with the number
+     * of pets.
+     */
+    @Override
+    public Cursor queryFacets(PetFilter filter, CancellationSignal signal) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        List<String> args = new ArrayList<>();
+        String sql =
+                facetSelect(facetsEntry.FACET_TOTAL, "NULL", null,
+                        filter.buildSelection(args, breeds, true, true, true)) +
+                " UNION ALL " +
+                facetSelect(facetsEntry.FACET_GENDER, petsEntry.COLUMN_PET_GENDER,
+                        petsEntry.COLUMN_PET_GENDER,
+                        filter.buildSelection(args, breeds, false, true, true)) +
+                " UNION ALL " +
+                facetSelect(facetsEntry.FACET_WEIGHT, WEIGHT_BUCKET, WEIGHT_BUCKET,
+                        filter.buildSelection(args, breeds, true, false, true)) +
+                " UNION ALL " +
+                facetSelect(facetsEntry.FACET_BREED, BREED_NAME,
+                        PetDbHelper.COLUMN_PET_BREED_ID,
+                        filter.buildSelection(args, breeds, true, true, false));
+
+        Cursor cursor = rawQuery(db, sql, args.toArray(new String[args.size()]), signal);
+        dbHelper.getMaintenanceScheduler().onDatabaseAccessed();
+        return cursor;
+    }
+
+    /**
+     * Without a filter the counts come from the section counts table. With one, the
+     * matching pets are grouped by section, which reads the section column but never
+     * has to sort or collate names.
+     */
+    @Override
+    public Cursor querySections(PetFilter filter, CancellationSignal signal) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        List<String> args = new ArrayList<>();
+        String selection = filter.buildSelection(args, breeds);
+        Cursor cursor;
+        if (selection == null) {
+            cursor = query(db, sectionsEntry.TABLE_NAME, new String[]{
+                    sectionsEntry.COLUMN_SECTION, sectionsEntry.COLUMN_COUNT},
+                    null, null, null, null, signal);
+        } else {
+            cursor = query(db, petsEntry.TABLE_NAME, new String[]{
+                    PetDbHelper.COLUMN_PET_NAME_SECTION, "COUNT(*)"},
+                    selection, args.toArray(new String[args.size()]),
+                    PetDbHelper.COLUMN_PET_NAME_SECTION, null, signal);
+        }
+
+        Map<String, Integer> counts = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        dbHelper.getMaintenanceScheduler().onDatabaseAccessed();
+        return NameSections.toCursor(counts);
+    }
+
+    /**
+     * Candidates come from the trigram index: only pets sharing enough trigrams with the
+     * search to reach the minimum score are grouped and scored, so common trigrams do
+     * not turn the lookup into a scan of the pets table.
+     */
+    @Override
+    public Cursor querySimilar(String name, String breed, int limit, double minScore,
+                               CancellationSignal signal) {
+        long[] trigrams = Trigrams.of(name, breed);
+        if (trigrams.length == 0) {
+            return new MatrixCursor(SIMILAR_COLUMNS);
+        }
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        // A pet sharing fewer trigrams cannot reach the minimum score, whatever its size
+        int minShared = Math.max(1, (int) Math.ceil(minScore * trigrams.length - 1e-9));
+
+        // Only the trigrams are bound. Numbers bound as arguments would be compared as
+        // text against the computed counts and scores, so they are part of the SQL.
+        String[] args = new String[trigrams.length];
+        String[] placeholders = new String[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            args[i] = String.valueOf(trigrams[i]);
+            placeholders[i] = "?";
+        }
+
+        String score = "m.shared * 1.0 / (" + trigrams.length + " + p." +
+                PetDbHelper.COLUMN_PET_TRIGRAM_COUNT + " - m.shared)";
+        String sql = "SELECT p." + petsEntry._ID + " AS " + petsEntry._ID + ", " +
+                "p." + petsEntry.COLUMN_PET_NAME + " AS " + petsEntry.COLUMN_PET_NAME + ", " +
+                "p." + PetDbHelper.COLUMN_PET_BREED_ID + " AS " + petsEntry.COLUMN_PET_BREED +
+                ", " + score + " AS " + similarEntry.COLUMN_SCORE +
+                " FROM (SELECT " + PetDbHelper.COLUMN_TRIGRAM_PET_ID + ", COUNT(*) AS shared" +
+                " FROM " + PetDbHelper.TRIGRAMS_TABLE_NAME +
+                " WHERE " + PetDbHelper.COLUMN_TRIGRAM + " IN (" +
+                TextUtils.join(",", placeholders) + ")" +
+                " GROUP BY " + PetDbHelper.COLUMN_TRIGRAM_PET_ID +
+                " HAVING COUNT(*) >= " + minShared + ") AS m" +
+                " JOIN " + petsEntry.TABLE_NAME + " AS p ON p." + petsEntry._ID + " = m." +
+                PetDbHelper.COLUMN_TRIGRAM_PET_ID +
+                " WHERE " + score + " >= " + minScore +
+                " ORDER BY " + similarEntry.COLUMN_SCORE + " DESC, p." + petsEntry._ID +
+                " LIMIT " + limit;
+
+        Cursor cursor = rawQuery(db, sql, args, signal);
+        dbHelper.getMaintenanceScheduler().onDatabaseAccessed();
+        return new BreedNameCursor(cursor, new boolean[]{false, false, true, false}, breeds);
+    }
+
+    /**
+     * Queries a table or view, interrupting the query once the signal is canceled.
+     */
+    static Cursor query(SQLiteDatabase db, String table, String[] columns,
+                                String selection, String[] selectionArgs, String groupBy,
+                                String sortOrder, CancellationSignal signal) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, table, columns, selection,
+                groupBy, null, sortOrder, null);
+        return rawQuery(db, sql, selectionArgs, signal);
+    }
+
+    /**
+     * Runs a query, interrupting it once the signal is canceled.
+     */
+    private static Cursor rawQuery(SQLiteDatabase db, String sql, String[] selectionArgs,
+                                   CancellationSignal signal) {
+        if (signal != null) {
+            signal.throwIfCanceled();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                return db.rawQuery(sql, selectionArgs,
+                        (android.os.CancellationSignal) signal.getCancellationSignalObject());
+            }
+        }
+        return db.rawQuery(sql, selectionArgs);
+    }
+
+    private static String facetSelect(String facet, String value, String groupBy,
+                                      String selection) {
+        return "SELECT '" + facet + "' AS " + facetsEntry.COLUMN_FACET + ", " +
+                value + " AS " + facetsEntry.COLUMN_VALUE + ", " +
+                "IFNULL(SUM(" + facetsEntry.COLUMN_COUNT + "), 0) AS " +
+                facetsEntry.COLUMN_COUNT +
+                " FROM " + facetsEntry.TABLE_NAME +
+                (selection == null ? "" : " WHERE " + selection) +
+                (groupBy == null ? "" : " GROUP BY " + groupBy);
+    }
+
+    @Override
+    public long insert(final ContentValues values) {
+        long newRowId = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase db) {
+                long newRowId = insertRow(db, values);
+                if (newRowId != -1) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return newRowId;
+            }
+        });
+
+        if (newRowId != -1) {
+            dbHelper.getMaintenanceScheduler().onRowsWritten(1);
+        }
+        return newRowId;
+    }
+
+    @Override
+    public int bulkInsert(final ContentValues[] values, final List<Long> insertedIds) {
+        // The writer already runs the whole batch in one transaction
+        int rowsInserted = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase db) {
+                // Start over if the write is retried after a rollback
+                if (insertedIds != null) {
+                    insertedIds.clear();
+                }
+                int rowsInserted = 0;
+                for (ContentValues contentValues : values) {
+                    long newRowId = insertRow(db, contentValues);
+                    if (newRowId != -1) {
+                        rowsInserted++;
+                    }
+                    if (insertedIds != null) {
+                        insertedIds.add(newRowId);
+                    }
+                }
+                if (rowsInserted > 0) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return rowsInserted;
+            }
+        });
+
+        dbHelper.getMaintenanceScheduler().onRowsWritten(rowsInserted);
+        return rowsInserted;
+    }
+
+    /**
+     * Each row is first looked up by the unique index on its external ID on a read
+     * connection, and its stored values are compared in Java. Rows that are unchanged cost
+     * that one lookup and never wait for the writer, so a feed repeating itself writes
+     * nothing. Only the other rows go through the writer, where they are compared again.
+     *
+     * An unchanged row still counts as activity of the pet: its last activity is stamped
+     * once it is older than {@link #UPSERT_ACTIVITY_REFRESH_MS}, so a pet the feed keeps
+     * sending is not archived. Rows not in the pets table are looked up in the archive
+     * before they are inserted, and archived pets are moved back to the pets table and
+     * reported as inserted.
+     */
+    @Override
+    public int upsert(final ContentValues[] values, final List<PetChangeEvent> changes) {
+        final PetChangeEvent[] results = new PetChangeEvent[values.length];
+        final List<Integer> toWrite = new ArrayList<>();
+        SQLiteDatabase readDb = dbHelper.getReadableDatabase();
+        long activeSince = System.currentTimeMillis() - UPSERT_ACTIVITY_REFRESH_MS;
+        for (int i = 0; i < values.length; i++) {
+            results[i] = unchangedRow(readDb, values[i], activeSince);
+            if (results[i] == null) {
+                toWrite.add(i);
+            }
+        }
+
+        final List<Long> unarchivedIds = new ArrayList<>();
+        int rowsChanged = 0;
+        if (!toWrite.isEmpty()) {
+            rowsChanged = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+                @Override
+                public Integer apply(SQLiteDatabase db) {
+                    // Start over if the write is retried after a rollback
+                    unarchivedIds.clear();
+                    int rowsChanged = 0;
+                    for (int i : toWrite) {
+                        PetChangeEvent change = upsertRow(db, values[i], unarchivedIds);
+                        if (change != null && (change.getType() == PetChangeEvent.TYPE_INSERT
+                                || change.getValues().size() > 0)) {
+                            rowsChanged++;
+                        }
+                        results[i] = change;
+                    }
+                    // Rows left as they were keep cached lists valid
+                    if (rowsChanged > 0) {
+                        dbHelper.getWriter().markPetsChanged();
+                    }
+                    return rowsChanged;
+                }
+            });
+        }
+        if (changes != null) {
+            Collections.addAll(changes, results);
+        }
+
+        // The archived copies are only removed once the pets are committed here
+        if (!unarchivedIds.isEmpty()) {
+            archive.removeArchivedCopies(unarchivedIds);
+        }
+        dbHelper.getMaintenanceScheduler().onRowsWritten(rowsChanged);
+        return rowsChanged;
+    }
+
+    @Override
+    public int update(final ContentValues values, String selection,
+                      final String[] selectionArgs, final List<Long> affectedIds) {
+        final String rowSelection = byRowId(selection);
+        int rowsUpdated = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase db) {
+                // New names or breeds change the trigrams of the updated pets
+                boolean reindex = values.containsKey(petsEntry.COLUMN_PET_NAME)
+                        || values.containsKey(petsEntry.COLUMN_PET_BREED);
+
+                // Reading the IDs in the same transaction as the update keeps them exact.
+                // They are read first because the update may change what the selection
+                // matches.
+                List<Long> ids = null;
+                if (affectedIds != null || reindex) {
+                    ids = queryIds(db, rowSelection, selectionArgs);
+                }
+                if (affectedIds != null) {
+                    affectedIds.clear();
+                    affectedIds.addAll(ids);
+                }
+
+                // Samples are taken while the old weights are still there to compare with
+                if (values.containsKey(petsEntry.COLUMN_PET_WEIGHT)) {
+                    recordWeights(db, rowSelection, selectionArgs,
+                            values.getAsInteger(petsEntry.COLUMN_PET_WEIGHT));
+                }
+
+                // Perform update on db that will return number of rows affected
+                int rowsUpdated = db.update(petsEntry.TABLE_NAME, toStoredValues(db, values),
+                        rowSelection, selectionArgs);
+
+                if (reindex) {
+                    for (long id : ids) {
+                        reindexTrigrams(db, id);
+                    }
+                }
+                if (rowsUpdated > 0) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return rowsUpdated;
+            }
+        });
+
+        dbHelper.getMaintenanceScheduler().onRowsWritten(rowsUpdated);
+        return rowsUpdated;
+    }
+
+    @Override
+    public int delete(String selection, final String[] selectionArgs,
+                      final List<Long> affectedIds) {
+        final String rowSelection = byRowId(selection);
+        int rowsDeleted = dbHelper.getWriter().execute(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase db) {
+                if (affectedIds != null) {
+                    affectedIds.clear();
+                    affectedIds.addAll(queryIds(db, rowSelection, selectionArgs));
+                }
+                // Perform delete on db that will return number of rows affected
+                int rowsDeleted = db.delete(petsEntry.TABLE_NAME, rowSelection,
+                        selectionArgs);
+                if (rowsDeleted > 0) {
+                    dbHelper.getWriter().markPetsChanged();
+                }
+                return rowsDeleted;
+            }
+        });
+
+        dbHelper.getMaintenanceScheduler().onRowsWritten(rowsDeleted);
+        return rowsDeleted;
+    }
+
+    /**
+     * Every write to the database goes through the writer. Writes mark the transactions
+     * that changed pets, including those that only changed their summary columns through
+     * the related tables.
+     */
+    @Override
+    public long getGeneration() {
+        return dbHelper.getWriter().getGeneration();
+    }
+
+    /**
+     * Inserts a pet together with its trigrams. Runs on the writer thread.
+     *
+     * @return ID of the new row, or -1 if the insert failed
+     */
+    private long insertRow(SQLiteDatabase db, ContentValues values) {
+        long[] trigrams = Trigrams.of(values.getAsString(petsEntry.COLUMN_PET_NAME),
+                values.getAsString(petsEntry.COLUMN_PET_BREED));
+
+        ContentValues stored = toStoredValues(db, values);
+        stored.put(PetDbHelper.COLUMN_PET_TRIGRAM_COUNT, trigrams.length);
+
+        long newRowId = db.insert(petsEntry.TABLE_NAME, null, stored);
+        if (newRowId != -1) {
+            insertTrigrams(db, newRowId, trigrams);
+            recordWeight(db, newRowId, values.getAsInteger(petsEntry.COLUMN_PET_WEIGHT));
+        }
+        return newRowId;
+    }
+
+    /**
+     * Appends a sample to the weight history of a pet. Runs on the writer thread.
+     *
+     * @param weight The new weight. 0 is the weight of pets whose weight is unknown, so it
+     *               is not recorded.
+     */
+    private static void recordWeight(SQLiteDatabase db, long petId, Integer weight) {
+        if (weight == null || weight <= 0) {
+            return;
+        }
+        ContentValues sample = new ContentValues(3);
+        sample.put(PetDbHelper.COLUMN_SAMPLE_PET_ID, petId);
+        sample.put(PetDbHelper.COLUMN_SAMPLE_MEASURED_AT, System.currentTimeMillis());
+        sample.put(petsEntry.COLUMN_PET_WEIGHT, weight);
+        db.insert(PetDbHelper.WEIGHT_SAMPLES_TABLE_NAME, null, sample);
+    }
+
+    /**
+     * Appends a sample to the weight history of every pet of the selection whose weight
+     * differs from the new one. Runs on the writer thread, before the update.
+     *
+     * @see #recordWeight
+     */
+    private static void recordWeights(SQLiteDatabase db, String selection,
+                                      String[] selectionArgs, Integer weight) {
+        if (weight == null || weight <= 0) {
+            return;
+        }
+        // The weight and the time are numbers, so they can be part of the SQL
+        String changed = petsEntry.COLUMN_PET_WEIGHT + " <> " + weight;
+        db.execSQL("INSERT INTO " + PetDbHelper.WEIGHT_SAMPLES_TABLE_NAME + " (" +
+                PetDbHelper.COLUMN_SAMPLE_PET_ID + ", " +
+                PetDbHelper.COLUMN_SAMPLE_MEASURED_AT + ", " + petsEntry.COLUMN_PET_WEIGHT +
+                ") SELECT " + petsEntry._ID + ", " + System.currentTimeMillis() + ", " +
+                weight + " FROM " + petsEntry.TABLE_NAME + " WHERE " +
+                (selection == null ? changed : "(" + selection + ") AND " + changed),
+                selectionArgs == null ? new Object[0] : selectionArgs);
+    }
+
+    /**
+     * Inserts a pet, or updates the changed columns of the pet with the same external ID.
+     * Runs on the writer thread.
+     *
+     * @param unarchivedIds List the IDs of pets brought back from the archive are added to
+     * @return The change made, see {@link PetStorageEngine#upsert}
+     */
+    private PetChangeEvent upsertRow(SQLiteDatabase db, ContentValues values,
+                                     List<Long> unarchivedIds) {
+        String externalId = values.getAsString(petsEntry.COLUMN_PET_EXTERNAL_ID);
+        Cursor cursor = queryByExternalId(db, externalId);
+        boolean unarchived = false;
+        if (cursor.getCount() == 0 && archive != null) {
+            long archivedId = archive.copyToPets(db, externalId);
+            if (archivedId != -1) {
+                unarchivedIds.add(archivedId);
+                unarchived = true;
+                cursor.close();
+                cursor = queryByExternalId(db, externalId);
+            }
+        }
+        long id;
+        ContentValues changed;
+        try {
+            if (!cursor.moveToFirst()) {
+                long newRowId = insertRow(db, values);
+                if (newRowId == -1) {
+                    return null;
+                }
+                ContentValues inserted = new ContentValues(values);
+                inserted.put(petsEntry._ID, newRowId);
+                return new PetChangeEvent(PetChangeEvent.TYPE_INSERT, newRowId, inserted);
+            }
+
+            id = cursor.getLong(0);
+            changed = changedValues(cursor, values);
+        } finally {
+            cursor.close();
+        }
+
+        if (changed.size() == 0 && !unarchived) {
+            // Sent again as it is, the pet is still in the feed
+            ContentValues activity = new ContentValues(1);
+            activity.put(PetDbHelper.COLUMN_PET_LAST_ACTIVE, System.currentTimeMillis());
+            db.update(petsEntry.TABLE_NAME, activity, petsEntry._ID + "=" + id, null);
+        } else if (changed.size() > 0) {
+            String[] idArgs = {String.valueOf(id)};
+            db.update(petsEntry.TABLE_NAME, toStoredValues(db, changed), petsEntry._ID + "=?",
+                    idArgs);
+            if (changed.containsKey(petsEntry.COLUMN_PET_NAME)
+                    || changed.containsKey(petsEntry.COLUMN_PET_BREED)) {
+                reindexTrigrams(db, id);
+            }
+            recordWeight(db, id, changed.getAsInteger(petsEntry.COLUMN_PET_WEIGHT));
+        }
+        if (unarchived) {
+            // Readers of the pets table had not seen the pet
+            ContentValues inserted = new ContentValues(values);
+            inserted.put(petsEntry._ID, id);
+            return new PetChangeEvent(PetChangeEvent.TYPE_INSERT, id, inserted);
+        }
+        return new PetChangeEvent(PetChangeEvent.TYPE_UPDATE, id, changed);
+    }
+
+    /**
+     * Returns the change event of a row the pets table already holds with the same values,
+     * for a pet that was active since the given time, or null if the row has to go through
+     * the writer.
+     */
+    private static PetChangeEvent unchangedRow(SQLiteDatabase db, ContentValues values,
+                                               long activeSince) {
+        Cursor cursor = queryByExternalId(db,
+                values.getAsString(petsEntry.COLUMN_PET_EXTERNAL_ID));
+        try {
+            if (!cursor.moveToFirst() || cursor.getLong(5) < activeSince
+                    || changedValues(cursor, values).size() > 0) {
+                return null;
+            }
+            return new PetChangeEvent(PetChangeEvent.TYPE_UPDATE, cursor.getLong(0),
+                    new ContentValues());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the values that differ from those of the row of
+     * {@link #queryByExternalId} the cursor is on.
+     */
+    private static ContentValues changedValues(Cursor cursor, ContentValues values) {
+        ContentValues changed = new ContentValues();
+        for (String column : values.keySet()) {
+            Object stored;
+            Object value;
+            if (petsEntry.COLUMN_PET_NAME.equals(column)) {
+                stored = cursor.getString(1);
+                value = values.getAsString(column);
+            } else if (petsEntry.COLUMN_PET_BREED.equals(column)) {
+                // Unknown breeds are stored as the empty name
+                stored = cursor.getString(2);
+                value = values.getAsString(column) == null ? ""
+                        : values.getAsString(column);
+            } else if (petsEntry.COLUMN_PET_GENDER.equals(column)) {
+                stored = cursor.getInt(3);
+                value = values.getAsInteger(column);
+            } else if (petsEntry.COLUMN_PET_WEIGHT.equals(column)) {
+                stored = cursor.getInt(4);
+                value = values.getAsInteger(column) == null ? Integer.valueOf(0)
+                        : values.getAsInteger(column);
+            } else {
+                // The external ID is the one that matched
+                continue;
+            }
+            if (value instanceof String && !stored.equals(value)) {
+                changed.put(column, (String) value);
+            } else if (value instanceof Integer && !stored.equals(value)) {
+                changed.put(column, (Integer) value);
+            }
+        }
+        return changed;
+    }
+
+    private static Cursor queryByExternalId(SQLiteDatabase db, String externalId) {
+        // The breed name is read through the join, the dictionary only caches committed
+        // breeds
+        return db.rawQuery("SELECT p." + petsEntry._ID + ", p." +
+                petsEntry.COLUMN_PET_NAME + ", b." + PetDbHelper.COLUMN_BREED_NAME + ", p." +
+                petsEntry.COLUMN_PET_GENDER + ", p." + petsEntry.COLUMN_PET_WEIGHT + ", p." +
+                PetDbHelper.COLUMN_PET_LAST_ACTIVE +
+                " FROM " + petsEntry.TABLE_NAME + " AS p JOIN " +
+                PetDbHelper.BREEDS_TABLE_NAME + " AS b ON b." + PetDbHelper.COLUMN_BREED_KEY +
+                " = p." + PetDbHelper.COLUMN_PET_BREED_ID +
+                " WHERE p." + petsEntry.COLUMN_PET_EXTERNAL_ID + " = ?",
+                new String[]{externalId});
+    }
+
+    /**
+     * Replaces the trigrams of a pet with those of its current name and breed. Runs on
+     * the writer thread, or in an upgrade.
+     */
+    static void reindexTrigrams(SQLiteDatabase db, long id) {
+        String[] idArgs = {String.valueOf(id)};
+        Cursor cursor = db.query(PetDbHelper.PETS_WITH_BREED_VIEW, new String[]{
+                        petsEntry.COLUMN_PET_NAME, petsEntry.COLUMN_PET_BREED},
+                petsEntry._ID + "=?", idArgs, null, null, null);
+        long[] trigrams;
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            trigrams = Trigrams.of(cursor.getString(0), cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+
+        db.delete(PetDbHelper.TRIGRAMS_TABLE_NAME,
+                PetDbHelper.COLUMN_TRIGRAM_PET_ID + "=?", idArgs);
+        insertTrigrams(db, id, trigrams);
+
+        ContentValues count = new ContentValues();
+        count.put(PetDbHelper.COLUMN_PET_TRIGRAM_COUNT, trigrams.length);
+        db.update(petsEntry.TABLE_NAME, count, petsEntry._ID + "=?", idArgs);
+    }
+
+    private static void insertTrigrams(SQLiteDatabase db, long id, long[] trigrams) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " +
+                PetDbHelper.TRIGRAMS_TABLE_NAME + " VALUES (?, ?)");
+        try {
+            for (long trigram : trigrams) {
+                insert.bindLong(1, trigram);
+                insert.bindLong(2, id);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Returns the values to store, with the breed name replaced by its ID, the name key
+     * and section computed from the name, and the pet marked active. Runs on the writer
+     * thread.
+     */
+    private ContentValues toStoredValues(SQLiteDatabase db, ContentValues values) {
+        boolean hasBreed = values.containsKey(petsEntry.COLUMN_PET_BREED);
+        boolean hasName = values.containsKey(petsEntry.COLUMN_PET_NAME);
+        ContentValues stored = new ContentValues(values);
+        stored.put(PetDbHelper.COLUMN_PET_LAST_ACTIVE, System.currentTimeMillis());
+        if (hasBreed) {
+            stored.remove(petsEntry.COLUMN_PET_BREED);
+            stored.put(PetDbHelper.COLUMN_PET_BREED_ID,
+                    breeds.idFor(db, values.getAsString(petsEntry.COLUMN_PET_BREED)));
+        }
+        if (hasName) {
+            String name = values.getAsString(petsEntry.COLUMN_PET_NAME);
+            stored.put(PetDbHelper.COLUMN_PET_NAME_KEY, PetDbHelper.nameKey(nameCollator, name));
+            stored.put(PetDbHelper.COLUMN_PET_NAME_SECTION, PetDbHelper.nameSection(name));
+        }
+        return stored;
+    }
+
+    private static boolean refersToBreed(String clause) {
+        return clause != null && BREED_REFERENCE.matcher(clause).find();
+    }
+
+    /**
+     * Returns a selection on the pets table. Selections on the breed name are evaluated
+     * against the joined view and matched back by ID.
+     */
+    private static String byRowId(String selection) {
+        if (!refersToBreed(selection)) {
+            return selection;
+        }
+        return petsEntry._ID + " IN (SELECT " + petsEntry._ID + " FROM " +
+                PetDbHelper.PETS_WITH_BREED_VIEW + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Returns the IDs of the rows matching the selection. Must be called inside the
+     * transaction of the write it describes.
+     */
+    private static List<Long> queryIds(SQLiteDatabase db, String selection,
+                                       String[] selectionArgs) {
+        Cursor cursor = db.query(petsEntry.TABLE_NAME, new String[]{petsEntry._ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            List<Long> ids = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
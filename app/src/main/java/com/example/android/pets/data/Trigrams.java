@@ -0,0 +1,93 @@
+package com.example.android.pets.data;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Splits pet names and breeds into trigrams for fuzzy matching.
+ *
+ * Text is lower cased, stripped of accents and split into words. Each word is padded
+ * with two spaces in front and one behind, so short words and word starts get trigrams
+ * of their own, and then cut into every run of three characters. A trigram is packed
+ * into a long, 16 bits per character, so it can be stored and compared as an integer.
+ */
+final class Trigrams {
+
+    private Trigrams() {}
+
+    /**
+     * Returns the distinct trigrams of all texts, sorted.
+     *
+     * @param texts Texts to split, null entries are skipped
+     */
+    static long[] of(String... texts) {
+        long[] trigrams = new long[16];
+        int count = 0;
+        for (String text : texts) {
+            if (text == null) {
+                continue;
+            }
+            String normalized = Normalizer.normalize(text.toLowerCase(Locale.ROOT),
+                    Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+            for (String word : normalized.split("[^\\p{L}\\p{N}]+")) {
+                if (word.isEmpty()) {
+                    continue;
+                }
+                String padded = "  " + word + " ";
+                for (int i = 0; i + 3 <= padded.length(); i++) {
+                    if (count == trigrams.length) {
+                        trigrams = Arrays.copyOf(trigrams, count * 2);
+                    }
+                    trigrams[count++] = pack(padded.charAt(i), padded.charAt(i + 1),
+                            padded.charAt(i + 2));
+                }
+            }
+        }
+
+        // Sort and drop duplicates
+        Arrays.sort(trigrams, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || trigrams[distinct - 1] != trigrams[i]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+    /**
+     * Returns the Jaccard similarity of two trigram sets from {@link #of(String...)}: the
+     * number of shared trigrams divided by the number of trigrams in either.
+     */
+    static double similarity(long[] first, long[] second) {
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < first.length && j < second.length) {
+            if (first[i] == second[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (first[i] < second[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return similarity(shared, first.length, second.length);
+    }
+
+    /**
+     * Returns the Jaccard similarity of two trigram sets of the given sizes that share
+     * the given number of trigrams.
+     */
+    static double similarity(int shared, int firstCount, int secondCount) {
+        int union = firstCount + secondCount - shared;
+        return union == 0 ? 0 : (double) shared / union;
+    }
+
+    private static long pack(char first, char second, char third) {
+        return ((long) first << 32) | ((long) second << 16) | third;
+    }
+}